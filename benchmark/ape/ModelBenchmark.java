@@ -0,0 +1,324 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ape;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.w3c.dom.Document;
+
+import com.android.commands.monkey.ApeRRFormatter;
+import com.android.commands.monkey.ape.model.ActionType;
+import com.android.commands.monkey.ape.model.Graph;
+import com.android.commands.monkey.ape.model.Model;
+import com.android.commands.monkey.ape.model.ModelAction;
+import com.android.commands.monkey.ape.model.ModelReplay;
+import com.android.commands.monkey.ape.model.State;
+import com.android.commands.monkey.ape.model.StateTransition;
+import com.android.commands.monkey.ape.naming.NamingManager;
+import com.android.commands.monkey.ape.tree.GUITree;
+import com.android.commands.monkey.ape.tree.GUITreeBuilder;
+import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.Utils;
+
+import android.content.ComponentName;
+
+/**
+ * An offline benchmark of the model building pipeline. It replays the
+ * step-N.xml files saved by StatefulAgent.saveGUI() (ape.saveGUITreeToXmlEveryStep)
+ * through GUI tree building, naming, state lookup, transition insertion and
+ * non-determinism resolution, and reports throughput and allocation per
+ * stage. Trees are built unnamed and named in their own stage. Trees are
+ * connected by the model actions recorded in action-history.log, and the
+ * activities of steps come from step-activities.log. The given activity is
+ * used for steps without one. Model evolution by abstraction refinement is
+ * not benchmarked. Like the reducer, it runs on a J2SE VM with the framework
+ * jar on the class path, and stubs/ before it.
+ * <p>
+ * Usage: ModelBenchmark output-dir [activity] [warmup-rounds] [rounds]
+ * @author txgu
+ *
+ */
+public class ModelBenchmark {
+
+    static final Pattern STEP_XML = Pattern.compile("step-([0-9]+)\\.xml");
+
+    static class Stage {
+        final String name;
+        long count;
+        long nanos;
+        long bytes;
+        private long beginNanos;
+        private long beginBytes;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void begin() {
+            beginBytes = allocatedBytes();
+            beginNanos = System.nanoTime();
+        }
+
+        void end() {
+            nanos += System.nanoTime() - beginNanos;
+            bytes += allocatedBytes() - beginBytes;
+            count++;
+        }
+
+        void reset() {
+            count = 0;
+            nanos = 0;
+            bytes = 0;
+        }
+
+        void print() {
+            if (count == 0) {
+                Logger.format("%-12s %10s", name, "-");
+                return;
+            }
+            Logger.format("%-12s %10d ops %12.1f ops/s %10.1f us/op %12d B/op", name, count,
+                    count * 1e9 / nanos, nanos / 1e3 / count, bytes / count);
+        }
+    }
+
+    static final com.sun.management.ThreadMXBean threadBean;
+
+    static {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threadBean = (com.sun.management.ThreadMXBean) bean;
+        } else {
+            threadBean = null;
+        }
+    }
+
+    static long allocatedBytes() {
+        if (threadBean == null) {
+            return 0;
+        }
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    final Stage build = new Stage("build");
+    final Stage naming = new Stage("naming");
+    final Stage state = new Stage("state");
+    final Stage transition = new Stage("transition");
+    final Stage resolve = new Stage("resolve");
+    final Stage[] stages = new Stage[] { build, naming, state, transition, resolve };
+
+    final File[] xmlFiles;
+    final ComponentName activity;
+    final Map<Integer, ComponentName> activities = new HashMap<>();
+    final Map<Integer, JSONObject> actions = new HashMap<>();
+
+    int unresolvedActions;
+
+    ModelBenchmark(File[] xmlFiles, ComponentName activity) {
+        this.xmlFiles = xmlFiles;
+        this.activity = activity;
+    }
+
+    /**
+     * Load the activities and the model actions of steps. Only the last
+     * action of a step is kept, and a step ending with a non-model action,
+     * e.g., a restart, does not lead to a transition.
+     */
+    void load(File outputDir) throws IOException {
+        File activityFile = new File(outputDir, "step-activities.log");
+        if (activityFile.exists()) {
+            try (BufferedReader br = new BufferedReader(new FileReader(activityFile))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] tokens = line.split(" ", 2);
+                    if (tokens.length == 2) {
+                        activities.put(Integer.parseInt(tokens[0]), ComponentName.unflattenFromString(tokens[1]));
+                    }
+                }
+            }
+        }
+        for (JSONObject jAction : ApeRRFormatter.readActions(new File(outputDir, "action-history.log").getPath())) {
+            int step = jAction.optInt("timestamp", -1);
+            ActionType type;
+            try {
+                type = ActionType.valueOf(jAction.getString("actionType"));
+            } catch (JSONException | IllegalArgumentException e) {
+                continue;
+            }
+            if (type.isModelAction()) {
+                actions.put(step, jAction);
+            } else if (type != ActionType.PHANTOM_CRASH) {
+                actions.remove(step);
+            }
+        }
+        Logger.iformat("Loaded %d activities and %d model actions from %s", activities.size(), actions.size(),
+                outputDir);
+    }
+
+    ModelAction resolveAction(int step, GUITree tree, State state) throws JSONException, XPathExpressionException {
+        JSONObject jAction = actions.get(step);
+        if (jAction == null) {
+            return null;
+        }
+        ModelAction action = ModelReplay.resolveModelAction(state, tree, step, jAction);
+        if (action == null) {
+            unresolvedActions++;
+        }
+        return action;
+    }
+
+    /**
+     * Build a fresh model from all GUI trees in the order of steps.
+     */
+    Model round() {
+        Model model = new Model(new Graph());
+        NamingManager nm = model.getNamingManager();
+        GUITree lastTree = null;
+        State lastState = null;
+        ModelAction lastAction = null;
+        unresolvedActions = 0;
+        for (File xmlFile : xmlFiles) {
+            int step = step(xmlFile);
+            ComponentName stepActivity = activities.get(step);
+            if (stepActivity == null) {
+                stepActivity = activity;
+            }
+            build.begin();
+            Document document;
+            try {
+                document = Utils.readXml(xmlFile.getPath());
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Cannot read the GUI tree from " + xmlFile, e);
+            }
+            GUITree tree = new GUITreeBuilder(stepActivity, document).getGUITree();
+            build.end();
+
+            naming.begin();
+            new GUITreeBuilder(nm, tree);
+            naming.end();
+
+            state.begin();
+            State newState = model.getState(tree);
+            state.end();
+
+            if (lastAction != null) {
+                transition.begin();
+                StateTransition edge = model.addTransition(lastState, lastAction, newState, lastTree,
+                        lastAction.getResolvedGUITreeAction(), tree);
+                transition.end();
+                if (edge != null) {
+                    resolve.begin();
+                    Model newModel = model.resolveNonDeterministicTransitions(edge);
+                    resolve.end();
+                    if (newModel != null) {
+                        newState = newModel.update(tree);
+                    }
+                }
+            }
+            tree.setTimestamp(step);
+            try {
+                lastAction = resolveAction(step, tree, newState);
+            } catch (JSONException | XPathExpressionException | IllegalStateException e) {
+                Logger.wformat("Cannot resolve action at step %d: %s", step, e.getMessage());
+                lastAction = null;
+                unresolvedActions++;
+            }
+            lastTree = tree;
+            lastState = newState;
+        }
+        return model;
+    }
+
+    void run(int warmupRounds, int rounds) {
+        for (int i = 0; i < warmupRounds; i++) {
+            round();
+        }
+        for (Stage stage : stages) {
+            stage.reset();
+        }
+        Model model = null;
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            model = round();
+        }
+        long end = System.nanoTime();
+        Logger.format("%d GUI trees, %d rounds, %d states, %d unresolved actions, %.1f ms/round", xmlFiles.length,
+                rounds, model == null ? 0 : model.getGraph().size(), unresolvedActions,
+                (end - begin) / 1e6 / Math.max(1, rounds));
+        for (Stage stage : stages) {
+            stage.print();
+        }
+    }
+
+    static File[] listStepXmlFiles(File outputDir) {
+        File[] files = outputDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return STEP_XML.matcher(name).matches();
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Integer.compare(step(o1), step(o2));
+            }
+        });
+        return files;
+    }
+
+    static int step(File file) {
+        Matcher matcher = STEP_XML.matcher(file.getName());
+        matcher.matches();
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    public static void main(String[] args) {
+        File outputDir = new File(args[0]);
+        File[] xmlFiles = listStepXmlFiles(outputDir);
+        if (xmlFiles.length == 0) {
+            throw new IllegalArgumentException(String.format("No step-N.xml files in %s.", outputDir));
+        }
+        ComponentName activity = ComponentName.unflattenFromString(args.length > 1 ? args[1] : "ape/.Benchmark");
+        int warmupRounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        ModelBenchmark benchmark = new ModelBenchmark(xmlFiles, activity);
+        try {
+            benchmark.load(outputDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        benchmark.run(warmupRounds, rounds);
+        Logger.flush();
+    }
+}
@@ -18,7 +18,6 @@ package ape;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -26,21 +25,29 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import com.android.commands.monkey.ApeRRFormatter;
 import com.android.commands.monkey.ape.Subsequence;
 import com.android.commands.monkey.ape.model.Action;
+import com.android.commands.monkey.ape.model.ActionType;
 import com.android.commands.monkey.ape.model.CrashAction;
 import com.android.commands.monkey.ape.model.Model;
 import com.android.commands.monkey.ape.model.Model.ActionRecord;
 import com.android.commands.monkey.ape.model.ModelAction;
+import com.android.commands.monkey.ape.model.ModelCheckpoint;
+import com.android.commands.monkey.ape.model.ModelIndex;
 import com.android.commands.monkey.ape.model.State;
 import com.android.commands.monkey.ape.model.StateTransition;
 import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.ModelSerialization;
 import com.android.commands.monkey.ape.utils.Utils;
 
 /**
  * A trivial action sequence reducer, which works really bad.
  * This tiny reducer should be compatible with J2SE and can be invoked in your development environment.
+ * Put stubs/ before the framework jar on the class path.
  * @author txgu
  *
  */
@@ -128,14 +135,126 @@ public class Reducer {
         }
     }
 
+    /**
+     * The same reduction as {@link #reduce(Model, List)} on a mapped model
+     * index, without deserializing the model.
+     */
+    static void reduce(ModelIndex index, int begin, int end) {
+        if (end - begin <= 2) {
+            Logger.wprintln("Trivial crash log: fewer than two states.");
+            return;
+        }
+        if (!index.getRecordType(begin).canStartApp()) {
+            Logger.wformat("The first action is expected to be START, but we get %s.", index.getRecordAction(begin));
+            return;
+        }
+        int firstState = -1;
+        int lastState = -1;
+        int lastStart = -1;
+        int lastNonCrash = -1;
+        for (int i = begin; i < end; i++) {
+            int state = index.getRecordState(i);
+            if (state != -1) {
+                lastState = state;
+                if (firstState == -1) {
+                    firstState = lastState;
+                }
+            }
+            if (index.getRecordType(i).canStartApp()) {
+                lastStart = i;
+                firstState = -1;
+            }
+        }
+        if (firstState == -1 || lastState == -1) {
+            throw new IllegalArgumentException("Invalid ");
+        }
+        if (firstState == lastState) {
+            Logger.iformat("It seems to be a trivial crash on startup.");
+            return;
+        }
+        for (int i = end - 2; i >= begin; i--) {
+            if (index.getRecordType(i) != ActionType.PHANTOM_CRASH) {
+                lastNonCrash = i;
+                break;
+            }
+        }
+        if (lastNonCrash == -1) {
+            Logger.iprintln("No last non-crash action.");
+            return;
+        }
+        int[] path = index.findPath(firstState, lastState);
+        if (path == null) {
+            Logger.iformat("%s is not reachable from %s.", index.getStateGraphId(lastState),
+                    index.getStateGraphId(firstState));
+        } else {
+            for (int edge : path) {
+                Logger.println("Source: " + index.getStateGraphId(index.getTransitionSource(edge)));
+                Logger.println("Action: " + index.getTransitionAction(edge));
+                Logger.println("Target: " + index.getStateGraphId(index.getTransitionTarget(edge)));
+            }
+            PrintWriter pw = new PrintWriter(System.out);
+            pw.format("%d %s\n", 0, index.getRecordActionJson(lastStart));
+            for (int edge : path) {
+                pw.format("%d %s\n", 0, index.getTransitionActionJson(edge));
+            }
+            pw.format("%d %s\n", 0, index.getRecordActionJson(lastNonCrash));
+            pw.flush();
+        }
+    }
+
+    static void reduceIndex(File indexFile) {
+        try {
+            ModelIndex index = ModelIndex.open(indexFile);
+            int begin = 0;
+            for (int i = 0; i < index.getRecordCount(); i++) {
+                if (index.getRecordType(i) == ActionType.PHANTOM_CRASH) {
+                    CrashAction crashAction = (CrashAction) CrashAction
+                            .fromJSON(new JSONObject(index.getRecordActionJson(i)));
+                    crashAction.crash.print();
+                    for (int j = begin; j <= i; j++) {
+                        int state = index.getRecordState(j);
+                        Logger.iformat("%4d %s%s", j - begin, state == -1 ? "" : index.getStateGraphId(state) + " ",
+                                index.getRecordAction(j));
+                    }
+                    reduce(index, begin, i + 1);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read sataModel.obj, or replay sataModel.ckpt if the run kept a
+     * checkpoint log instead.
+     */
+    static Model readModel(File outputDir) throws IOException, ClassNotFoundException {
+        File modelFile = new File(outputDir, "sataModel.obj");
+        if (modelFile.isFile()) {
+            try (FileInputStream in = new FileInputStream(modelFile)) {
+                return (Model) ModelSerialization.read(in);
+            }
+        }
+        File checkpointFile = new File(outputDir, "sataModel.ckpt");
+        if (checkpointFile.isFile()) {
+            Model model = ModelCheckpoint.load(checkpointFile);
+            if (model != null) {
+                return model;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Neither %s nor %s can be read.", modelFile, checkpointFile));
+    }
+
     public static void main(String[] args) {
         String outputDir = args[0];
-        File modelFile = new File(outputDir, "sataModel.obj");
-        if (!modelFile.isFile()) {
-            throw new IllegalArgumentException(String.format("File %s does not exist.", modelFile));
+        if (args.length > 1 && args[1].equals("--index")) {
+            reduceIndex(new File(outputDir, "sataModel.idx"));
+            return;
         }
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(modelFile))) {
-            Model model = (Model) ois.readObject();
+        try {
+            Model model = readModel(new File(outputDir));
             List<ActionRecord> actionRecords = model.getActionHistory();
             int begin = 0;
             for (int i = 0; i < actionRecords.size(); i++) {
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ape;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONObject;
+
+import com.android.commands.monkey.ApeRRFormatter;
+import com.android.commands.monkey.ape.model.Graph;
+import com.android.commands.monkey.ape.model.Model;
+import com.android.commands.monkey.ape.model.ModelReplay;
+import com.android.commands.monkey.ape.tree.GUITree;
+import com.android.commands.monkey.ape.tree.GUITreeBuilder;
+import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.ModelSerialization;
+
+import android.content.ComponentName;
+
+/**
+ * Rebuild a model on a workstation from the output of a run, i.e., the
+ * step-N.xml GUI trees, step-activities.log and action-history.log. GUI
+ * trees and actions are fed to the model in the order of steps by
+ * ModelReplay, the same way StatefulAgent does on the device, including
+ * state abstraction, action refinement and the resolution of
+ * non-deterministic transitions (ape.evolveModel).
+ * <p>
+ * The output may still differ from the model saved by the run. GUI trees
+ * that the agent fetched again for trivial states are not saved, and the
+ * agent picks target nodes randomly where the replay uses the first
+ * matching node. Model actions of steps without a saved GUI tree cannot be
+ * resolved and are counted as unresolved.
+ * <p>
+ * Like the reducer, it runs on a J2SE VM with the framework jar on the
+ * class path. The classes in stubs/ must come before the framework jar,
+ * since the framework implements android.os.SystemClock with native
+ * methods.
+ * <p>
+ * Usage: ModelReplayer output-dir [model-file]
+ * @author txgu
+ *
+ */
+public class ModelReplayer {
+
+    static final Pattern STEP_XML = Pattern.compile("step-([0-9]+)\\.xml");
+
+    static class Record {
+        final long clockTimestamp;
+        final JSONObject action;
+
+        Record(long clockTimestamp, JSONObject action) {
+            this.clockTimestamp = clockTimestamp;
+            this.action = action;
+        }
+    }
+
+    final File outputDir;
+    final Model model = new Model(new Graph());
+    final ModelReplay replay = new ModelReplay(model);
+    final TreeMap<Integer, File> xmlFiles = new TreeMap<>();
+    final Map<Integer, ComponentName> activities = new HashMap<>();
+    final Map<Integer, List<Record>> records = new HashMap<>();
+
+    ModelReplayer(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    void load() throws IOException {
+        File[] files = outputDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = STEP_XML.matcher(file.getName());
+                if (matcher.matches()) {
+                    xmlFiles.put(Integer.parseInt(matcher.group(1)), file);
+                }
+            }
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(new File(outputDir, "step-activities.log")))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.split(" ", 2);
+                if (tokens.length == 2) {
+                    activities.put(Integer.parseInt(tokens[0]), ComponentName.unflattenFromString(tokens[1]));
+                }
+            }
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(new File(outputDir, "action-history.log")))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int index = line.indexOf(' ');
+                if (index == -1) {
+                    continue;
+                }
+                JSONObject action = ApeRRFormatter.readAction(line.substring(index + 1));
+                if (action == null) {
+                    Logger.wformat("Fail to parse action line: %s", line);
+                    continue;
+                }
+                int step = action.optInt("timestamp", -1);
+                List<Record> list = records.get(step);
+                if (list == null) {
+                    list = new ArrayList<>(1);
+                    records.put(step, list);
+                }
+                list.add(new Record(Long.parseLong(line.substring(0, index)), action));
+            }
+        }
+        Logger.iformat("Loaded %d GUI trees and %d steps of actions from %s", xmlFiles.size(), records.size(),
+                outputDir);
+    }
+
+    void replay() {
+        TreeSet<Integer> steps = new TreeSet<>(xmlFiles.keySet());
+        steps.addAll(records.keySet());
+        for (int step : steps) {
+            File xmlFile = xmlFiles.get(step);
+            ComponentName activity = activities.get(step);
+            if (xmlFile != null && activity == null) {
+                Logger.wformat("No activity for step %d, skip %s", step, xmlFile);
+            } else if (xmlFile != null) {
+                GUITree tree = new GUITreeBuilder(model.getNamingManager(), activity, xmlFile.getPath())
+                        .getGUITree();
+                replay.replayGUITree(tree, step);
+            }
+            List<Record> list = records.get(step);
+            if (list == null) {
+                continue;
+            }
+            for (Record record : list) {
+                replay.replayAction(record.clockTimestamp, step, record.action);
+            }
+        }
+    }
+
+    void save(File modelFile) throws IOException {
+        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(modelFile))) {
+            ModelSerialization.write(out, model);
+        }
+        Logger.iformat("Save model to %s", modelFile);
+    }
+
+    public static void main(String[] args) {
+        File outputDir = new File(args[0]);
+        File modelFile = args.length > 1 ? new File(args[1]) : new File(outputDir, "sataModel.replay.obj");
+        ModelReplayer replayer = new ModelReplayer(outputDir);
+        ModelReplay replay = replayer.replay;
+        try {
+            replayer.load();
+            long begin = System.nanoTime();
+            replayer.replay();
+            long end = System.nanoTime();
+            Logger.format("Replayed %d GUI trees and %d actions (%d unresolved) in %d ms, %d states.",
+                    replay.getReplayedGUITrees(), replay.getReplayedActions(), replay.getUnresolvedActions(),
+                    TimeUnit.NANOSECONDS.toMillis(end - begin), replayer.model.getGraph().size());
+            replayer.model.printCounters();
+            replayer.save(modelFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Logger.flush();
+    }
+}
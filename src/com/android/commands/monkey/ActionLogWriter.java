@@ -0,0 +1,166 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey;
+
+import static com.android.commands.monkey.ape.utils.Config.actionLogFlushInterval;
+import static com.android.commands.monkey.ape.utils.Config.actionLogFlushSteps;
+import static com.android.commands.monkey.ape.utils.Config.actionTrace;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+
+import com.android.commands.monkey.ape.utils.Logger;
+
+import android.os.SystemClock;
+
+/**
+ * An action log that does not flush on every action. Buffered lines are
+ * flushed every ape.actionLogFlushSteps actions, when an action is logged
+ * ape.actionLogFlushInterval ms after the last flush, on close and on
+ * shutdown.
+ * 
+ * With ape.actionTrace=gzip, actions are also written to a gzip trace with
+ * the same lines. Every batch is a separate gzip member so that the trace
+ * stays a valid gzip file. An index file records the first step, the file
+ * offset and the number of actions of each member for random access.
+ * 
+ * @author txgu
+ *
+ */
+public class ActionLogWriter extends PrintWriter {
+
+    public static final String TRACE_SUFFIX = ".gz";
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final List<ActionLogWriter> openWriters = new ArrayList<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                flushAll();
+            }
+        });
+    }
+
+    /**
+     * Flush all open action logs, e.g., before the process dies.
+     */
+    public static void flushAll() {
+        synchronized (openWriters) {
+            for (ActionLogWriter writer : openWriters) {
+                writer.flush();
+            }
+        }
+    }
+
+    private final File traceFile;
+    private final File indexFile;
+    private final StringBuilder traceBatch = new StringBuilder();
+    private int traceBatchSize;
+    private int steps;
+    private int pending;
+    private long lastFlush = SystemClock.elapsedRealtime();
+
+    public ActionLogWriter(File file) throws IOException {
+        super(new BufferedWriter(new FileWriter(file)));
+        if ("gzip".equals(actionTrace)) {
+            traceFile = new File(file.getPath() + TRACE_SUFFIX);
+            indexFile = new File(file.getPath() + INDEX_SUFFIX);
+            new FileOutputStream(traceFile).close();
+            new FileOutputStream(indexFile).close();
+        } else {
+            traceFile = null;
+            indexFile = null;
+        }
+        synchronized (openWriters) {
+            openWriters.add(this);
+        }
+    }
+
+    /**
+     * Called after an action line has been printed.
+     */
+    public synchronized void actionLogged(long clockTime, JSONObject action) {
+        steps++;
+        if (traceFile != null) {
+            traceBatch.append(clockTime).append(' ').append(action).append('\n');
+            traceBatchSize++;
+        }
+        pending++;
+        long now = SystemClock.elapsedRealtime();
+        if (pending >= actionLogFlushSteps || now - lastFlush >= actionLogFlushInterval) {
+            flush();
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        super.flush();
+        if (traceBatchSize > 0) {
+            writeTraceBatch();
+        }
+        pending = 0;
+        lastFlush = SystemClock.elapsedRealtime();
+    }
+
+    private void writeTraceBatch() {
+        int firstStep = steps - traceBatchSize;
+        long offset = traceFile.length();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(traceBatch.length() / 2);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                gzip.write(traceBatch.toString().getBytes(UTF8));
+            }
+            try (FileOutputStream out = new FileOutputStream(traceFile, true)) {
+                bytes.writeTo(out);
+            }
+            try (Writer index = new OutputStreamWriter(new FileOutputStream(indexFile, true), UTF8)) {
+                index.write(firstStep + " " + offset + " " + traceBatchSize + "\n");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logger.wformat("Fail to write action trace %s.", traceFile);
+        }
+        traceBatch.setLength(0);
+        traceBatchSize = 0;
+    }
+
+    @Override
+    public void close() {
+        synchronized (openWriters) {
+            openWriters.remove(this);
+        }
+        synchronized (this) {
+            flush();
+            super.close();
+        }
+    }
+}
@@ -18,18 +18,23 @@ package com.android.commands.monkey;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.android.commands.monkey.ape.ScreenshotProfile;
 import com.android.commands.monkey.ape.model.Action;
 import com.android.commands.monkey.ape.utils.Logger;
 import com.android.commands.monkey.ape.utils.Utils;
@@ -157,8 +162,13 @@ public class ApeRRFormatter {
     }
 
     public static void startLogAction(PrintWriter pw, Action action, long clockTime, long timestamp) {
-        pw.format("%d %s\n", clockTime, recordAction(action, timestamp));
-        pw.flush();
+        JSONObject jAction = recordAction(action, timestamp);
+        pw.format("%d %s\n", clockTime, jAction);
+        if (pw instanceof ActionLogWriter) {
+            ((ActionLogWriter) pw).actionLogged(clockTime, jAction);
+        } else {
+            pw.flush();
+        }
     }
 
     private static final Pattern decimalNumber = Pattern.compile("[0-9]+");
@@ -190,9 +200,27 @@ public class ApeRRFormatter {
         return null;
     }
 
+    /**
+     * Read actions from a text action log or a gzip action trace.
+     * @param logfile
+     * @return
+     */
     public static List<JSONObject> readActions(String logfile) {
+        return readActions(logfile, 0);
+    }
+
+    /**
+     * Read actions starting from the given step. The index of a gzip action
+     * trace is used to skip to the member containing the step.
+     * @param logfile
+     * @param fromStep
+     * @return
+     */
+    public static List<JSONObject> readActions(String logfile, int fromStep) {
         List<JSONObject> actions = new ArrayList<JSONObject>(); 
-        try (BufferedReader br = new BufferedReader(new FileReader(logfile))) {
+        long[] member = findTraceMember(logfile, fromStep);
+        try (BufferedReader br = openActionLog(logfile, member[1])) {
+            int skip = (int) (fromStep - member[0]);
             String line;
             while ((line = br.readLine()) != null) {
                 int index = line.indexOf(' ');
@@ -205,6 +233,10 @@ public class ApeRRFormatter {
                             Logger.wformat("Fail to parse action line: %s", line);
                             continue;
                         }
+                        if (skip > 0) {
+                            skip--;
+                            continue;
+                        }
                         actions.add(action);
                     }
                 }
@@ -215,6 +247,60 @@ public class ApeRRFormatter {
         return actions;
     }
 
+    /**
+     * @return the first step and the file offset of the gzip member
+     *         containing the given step, {0, 0} for text logs.
+     */
+    private static long[] findTraceMember(String logfile, int step) {
+        long[] member = new long[2];
+        if (step <= 0 || !logfile.endsWith(ActionLogWriter.TRACE_SUFFIX)) {
+            return member;
+        }
+        File index = new File(logfile.substring(0, logfile.length() - ActionLogWriter.TRACE_SUFFIX.length())
+                + ActionLogWriter.INDEX_SUFFIX);
+        if (!index.exists()) {
+            return member;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(index))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.split(" ");
+                int firstStep = Integer.parseInt(tokens[0]);
+                if (firstStep > step) {
+                    break;
+                }
+                member[0] = firstStep;
+                member[1] = Long.parseLong(tokens[1]);
+            }
+        } catch (IOException | NumberFormatException e) {
+            Logger.wformat("Fail to read action trace index %s.", index);
+            member[0] = 0;
+            member[1] = 0;
+        }
+        return member;
+    }
+
+    private static BufferedReader openActionLog(String logfile, long offset) throws IOException {
+        if (!logfile.endsWith(ActionLogWriter.TRACE_SUFFIX)) {
+            return new BufferedReader(new FileReader(logfile));
+        }
+        FileInputStream fis = new FileInputStream(logfile);
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = fis.skip(offset - skipped);
+                if (n <= 0) {
+                    throw new IOException("Cannot seek to " + offset + " in " + logfile);
+                }
+                skipped += n;
+            }
+            return new BufferedReader(new InputStreamReader(new GZIPInputStream(fis), "UTF-8"));
+        } catch (IOException e) {
+            fis.close();
+            throw e;
+        }
+    }
+
     public static void endLogAction(PrintWriter pw, Action action, long timestamp) {
     }
 
@@ -239,6 +325,7 @@ public class ApeRRFormatter {
             int id = 0;
             long startTime = Long.MAX_VALUE;
             long endTime = Long.MIN_VALUE;
+            Map<String, String> screenshots = ScreenshotProfile.loadReferences(logFile.getParentFile());
             while ((line = reader.readLine()) != null) {
                 int index = line.indexOf(" ");
                 String type = line.substring(0, index);
@@ -259,7 +346,7 @@ public class ApeRRFormatter {
                 }
                 JSONObject jAction = readAction(line.substring(index + 1).trim());
                 int step = jAction.getInt("timestamp");
-                String screenURL = String.format("step-%d.png", step);
+                String screenURL = ScreenshotProfile.resolve(screenshots, ScreenshotProfile.getStepScreenshotName(step));
                 String content = String.format("%s@%d", jAction.getString("actionType"), step);
                 String rect = null;
                 if (jAction.has("bounds")) {
@@ -38,6 +38,8 @@ import com.android.commands.monkey.ape.Agent;
 import com.android.commands.monkey.ape.AndroidDevice;
 import com.android.commands.monkey.ape.utils.Config;
 import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.StepTimer;
+import com.android.commands.monkey.ape.utils.StepTimer.Phase;
 
 import android.app.IActivityController;
 import android.app.IActivityManager;
@@ -447,6 +449,7 @@ public class Monkey {
                 if (agent != null) {
                     agent.appCrashed(processName, pid, shortMsg, longMsg, timeMillis, stackTrace);
                 }
+                ActionLogWriter.flushAll();
             }
 
             StrictMode.setThreadPolicy(savedPolicy);
@@ -1378,7 +1381,14 @@ public class Monkey {
 
             MonkeyEvent ev = mEventSource.getNextEvent();
             if (ev != null) {
-                int injectCode = ev.injectEvent(mWm, mAm, mVerbose);
+                Phase phase = ev instanceof MonkeyThrottleEvent ? Phase.THROTTLE : Phase.INJECT;
+                StepTimer.begin(phase);
+                int injectCode;
+                try {
+                    injectCode = ev.injectEvent(mWm, mAm, mVerbose);
+                } finally {
+                    StepTimer.end(phase);
+                }
                 if (injectCode == MonkeyEvent.INJECT_FAIL) {
                     System.out.println("    // Injection Failed " + ev);
                     if (ev instanceof MonkeyKeyEvent) {
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey;
+
+import com.android.commands.monkey.ape.Agent;
+import com.android.commands.monkey.ape.model.Action;
+
+import android.app.IActivityManager;
+import android.view.IWindowManager;
+
+/**
+ * A throttle that ends as soon as the UI settles.
+ */
+public class MonkeySettleEvent extends MonkeyThrottleEvent {
+
+    /**
+     * Queued before the events of an action to mark its start. Like a
+     * throttle, it is not counted as an injected event.
+     */
+    public static class Begin extends MonkeyThrottleEvent {
+
+        private final UiSettleDetector mDetector;
+
+        public Begin(UiSettleDetector detector) {
+            super(0);
+            mDetector = detector;
+        }
+
+        @Override
+        public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
+            mDetector.begin();
+            return MonkeyEvent.INJECT_SUCCESS;
+        }
+    }
+
+    private final UiSettleDetector mDetector;
+    private final Agent mAgent;
+    private final Action mAction;
+
+    /**
+     * @param agent notified of the settle latency of the action
+     */
+    public MonkeySettleEvent(UiSettleDetector detector, long throttle, Agent agent, Action action) {
+        super(throttle);
+        mDetector = detector;
+        mAgent = agent;
+        mAction = action;
+    }
+
+    @Override
+    public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
+        if (verbose > 1) {
+            System.out.println("Waiting for the UI to settle in " + mThrottle + " milliseconds");
+        }
+        try {
+            long waited = mDetector.awaitSettled(mThrottle);
+            if (waited >= 0) {
+                mAgent.onActionSettled(mAction, waited, true);
+            } else if (mDetector.hasChanged()) {
+                mAgent.onActionSettled(mAction, mThrottle, false);
+            }
+        } catch (InterruptedException e1) {
+            System.out.println("** Monkey interrupted in sleep.");
+            return MonkeyEvent.INJECT_FAIL;
+        }
+        return MonkeyEvent.INJECT_SUCCESS;
+    }
+}
@@ -20,8 +20,11 @@ import static com.android.commands.monkey.ape.utils.Config.defaultGUIThrottle;
 import static com.android.commands.monkey.ape.utils.Config.doFuzzing;
 import static com.android.commands.monkey.ape.utils.Config.fuzzingRate;
 import static com.android.commands.monkey.ape.utils.Config.imageWriterCount;
+import static com.android.commands.monkey.ape.utils.Config.skipIdenticalScreenshots;
 import static com.android.commands.monkey.ape.utils.Config.refectchInfoCount;
 import static com.android.commands.monkey.ape.utils.Config.refectchInfoWaitingInterval;
+import static com.android.commands.monkey.ape.utils.Config.settleDetection;
+import static com.android.commands.monkey.ape.utils.Config.settleQuietMillis;
 import static com.android.commands.monkey.ape.utils.Config.swipeDuration;
 
 import java.io.BufferedWriter;
@@ -37,7 +40,9 @@ import java.util.concurrent.TimeoutException;
 
 import com.android.commands.monkey.ape.Agent;
 import com.android.commands.monkey.ape.AndroidDevice;
+import com.android.commands.monkey.ape.Frame;
 import com.android.commands.monkey.ape.ImageWriterQueue;
+import com.android.commands.monkey.ape.ScreenshotProfile;
 import com.android.commands.monkey.ape.StopTestingException;
 import com.android.commands.monkey.ape.agent.ApeAgent;
 import com.android.commands.monkey.ape.agent.ReplayAgent;
@@ -50,6 +55,8 @@ import com.android.commands.monkey.ape.model.StartAction;
 import com.android.commands.monkey.ape.tree.GUITreeNode;
 import com.android.commands.monkey.ape.utils.Logger;
 import com.android.commands.monkey.ape.utils.RandomHelper;
+import com.android.commands.monkey.ape.utils.StepTimer;
+import com.android.commands.monkey.ape.utils.StepTimer.Phase;
 
 import android.accessibilityservice.AccessibilityServiceInfo;
 import android.app.ActivityManager.RunningAppProcessInfo;
@@ -116,6 +123,8 @@ public class MonkeySourceApe implements MonkeyEventSource {
     private File mEventProduceLoggerFile;
     private File mEventConsumeLoggerFile;
     private ImageWriterQueue[] mImageWriters;
+    private File mLastScreenshotFile;
+    private long mLastScreenshotHash;
 
     // Counter
 
@@ -127,6 +136,7 @@ public class MonkeySourceApe implements MonkeyEventSource {
      */
     protected final HandlerThread mHandlerThread = new HandlerThread("MonkeySourceApe");
     protected UiAutomation mUiAutomation;
+    protected UiSettleDetector mSettleDetector;
 
     public static String getKeyName(int keycode) {
         return KeyEvent.keyCodeToString(keycode);
@@ -176,8 +186,13 @@ public class MonkeySourceApe implements MonkeyEventSource {
 
         mUiAutomation.setServiceInfo(info);
 
+        if (settleDetection) {
+            mSettleDetector = new UiSettleDetector(settleQuietMillis);
+            mUiAutomation.setOnAccessibilityEventListener(mSettleDetector);
+        }
+
         mImageWriters = new ImageWriterQueue[imageWriterCount];
-        for (int i = 0; i < 3; i++) {
+        for (int i = 0; i < imageWriterCount; i++) {
             mImageWriters[i] = new ImageWriterQueue();
             Thread imageThread = new Thread(mImageWriters[i]);
             imageThread.start();
@@ -207,6 +222,9 @@ public class MonkeySourceApe implements MonkeyEventSource {
         }
         this.mEventProduceLogger.close();
         this.mEventConsumeLogger.close();
+        if (mSettleDetector != null) {
+            mSettleDetector.printStatistics();
+        }
         File visOutput = new File(getOutputDirectory(), "sataTimeline.vis.js");
         ApeRRFormatter.toVisTimeline(mEventProduceLoggerFile, visOutput);
     }
@@ -231,7 +249,7 @@ public class MonkeySourceApe implements MonkeyEventSource {
         // mPermissionUtil.populatePermissionsMapping();
         mOutputDirectory = outputDirectory;
         mEventProduceLoggerFile = new File(mOutputDirectory, "produce.log");
-        mEventProduceLogger = openWriter(mEventProduceLoggerFile);
+        mEventProduceLogger = openActionLogWriter(mEventProduceLoggerFile);
         mEventConsumeLoggerFile = new File(mOutputDirectory, "consume.log");
         mEventConsumeLogger = openWriter(mEventConsumeLoggerFile);
 
@@ -239,6 +257,17 @@ public class MonkeySourceApe implements MonkeyEventSource {
         connect();
     }
 
+    static PrintWriter openActionLogWriter(File logFile) {
+        try {
+            return new ActionLogWriter(logFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logger.wprintln("Cannot open " + logFile);
+            System.exit(1);
+        }
+        return null;
+    }
+
     static PrintWriter openWriter(File logFile) {
         try {
             return new PrintWriter(new BufferedWriter(new FileWriter(logFile)));
@@ -769,6 +798,7 @@ public class MonkeySourceApe implements MonkeyEventSource {
         if (hasEvent()) {
             return;
         }
+        StepTimer.nextStep();
 
         ComponentName topComp = null;
         AccessibilityNodeInfo info = null;
@@ -776,12 +806,17 @@ public class MonkeySourceApe implements MonkeyEventSource {
 
         Action action = null;
         while (repeat-- > 0) {
-            topComp = this.getTopActivityComponentName();
-            info = getRootInActiveWindow();
-            // this two operations may not be the same
-            if (info == null) {
-                sleep(refectchInfoWaitingInterval);
-                continue;
+            StepTimer.begin(Phase.FETCH);
+            try {
+                topComp = this.getTopActivityComponentName();
+                info = getRootInActiveWindow();
+                // this two operations may not be the same
+                if (info == null) {
+                    sleep(refectchInfoWaitingInterval);
+                    continue;
+                }
+            } finally {
+                StepTimer.end(Phase.FETCH);
             }
             if (info != null) {
                 nullInfoCounter = 0;
@@ -888,9 +923,17 @@ public class MonkeySourceApe implements MonkeyEventSource {
         long clockTimestamp = System.currentTimeMillis();
         startLogAction(clockTimestamp, action);
         mAgent.appendToActionHistory(clockTimestamp, action);
+        boolean settle = mSettleDetector != null && !mRandomizeThrottle;
+        if (settle) {
+            addEvent(new MonkeySettleEvent.Begin(mSettleDetector));
+        }
         generateEventsForActionInternal(action);
         long throttle = mThrottle + action.getThrottle();
-        generateThrottleEvent(throttle);
+        if (settle) {
+            addEvent(new MonkeySettleEvent(mSettleDetector, throttle, mAgent, action));
+        } else {
+            generateThrottleEvent(throttle);
+        }
         endLogAction(action);
     }
 
@@ -1301,10 +1344,46 @@ public class MonkeySourceApe implements MonkeyEventSource {
         return mImageWriters[mRandom.nextInt(mImageWriters.length)];
     }
 
-    public boolean takeScreenshot(File screenshotFile) {
-        Bitmap map = mUiAutomation.takeScreenshot();
-        nextImageWriter().add(map, screenshotFile);
-        return true;
+    /**
+     * @return the file holding the screenshot, which is an earlier file if
+     *         the frame is identical to the last written one
+     */
+    public File takeScreenshot(File screenshotFile) {
+        return takeScreenshot(screenshotFile, skipIdenticalScreenshots);
+    }
+
+    /**
+     * @param skipIdentical
+     *            whether the frame may refer to the last written one instead
+     *            of being written
+     */
+    public File takeScreenshot(File screenshotFile, boolean skipIdentical) {
+        Frame frame = captureFrame();
+        try {
+            return takeScreenshot(screenshotFile, frame, skipIdentical);
+        } finally {
+            if (frame != null) {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * Save a frame that has already been captured for this step. The caller
+     * keeps its reference of the frame.
+     */
+    public File takeScreenshot(File screenshotFile, Frame frame, boolean skipIdentical) {
+        if (frame != null && skipIdentical) {
+            long hash = ScreenshotProfile.averageHash(frame.getBitmap());
+            if (mLastScreenshotFile != null && ScreenshotProfile.isSimilar(hash, mLastScreenshotHash)) {
+                ScreenshotProfile.addReference(screenshotFile, mLastScreenshotFile.getName());
+                return mLastScreenshotFile;
+            }
+            mLastScreenshotHash = hash;
+            mLastScreenshotFile = screenshotFile;
+        }
+        nextImageWriter().add(frame == null ? null : frame.retain(), screenshotFile);
+        return screenshotFile;
     }
 
     public void takeScreenshot(String fileName) {
@@ -1315,8 +1394,15 @@ public class MonkeySourceApe implements MonkeyEventSource {
         return this.mThrottle;
     }
 
-    public Bitmap captureBitmap() {
+    /**
+     * @return a new frame owned by the caller, or null if the screen cannot be
+     *         captured
+     */
+    public Frame captureFrame() {
         Bitmap map = mUiAutomation.takeScreenshot();
-        return map;
+        if (map == null) {
+            return null;
+        }
+        return new Frame(map);
     }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.android.commands.monkey.ape.utils.Logger;
+
+import android.app.UiAutomation;
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityEvent;
+
+/**
+ * Tracks accessibility events that change the UI of the app under test and
+ * waits until the UI has been quiet for a short window after a change.
+ * Changes count from the start of the action, see {@link #begin()}. The UI
+ * is only reported settled once it has changed since then, so slow
+ * transitions that have not started yet are waited out by the throttle.
+ * 
+ * @author txgu
+ *
+ */
+public class UiSettleDetector implements UiAutomation.OnAccessibilityEventListener {
+
+    private static final int UI_CHANGES = AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+            | AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED;
+
+    private final long quietMillis;
+    private volatile long lastChangeMillis;
+    private volatile long beginMillis;
+
+    private final AtomicLong changes = new AtomicLong();
+    private long settles;
+    private long timeouts;
+    private long unchanged;
+    private long waitedMillis;
+    private long savedMillis;
+
+    public UiSettleDetector(long quietMillis) {
+        this.quietMillis = quietMillis;
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if ((event.getEventType() & UI_CHANGES) == 0) {
+            return;
+        }
+        CharSequence packageName = event.getPackageName();
+        if (packageName == null || !MonkeyUtils.getPackageFilter().checkEnteringPackage(packageName.toString())) {
+            return;
+        }
+        lastChangeMillis = SystemClock.uptimeMillis();
+        changes.incrementAndGet();
+    }
+
+    /**
+     * Mark the start of an action. Only later UI changes are attributed to
+     * the action.
+     */
+    public void begin() {
+        beginMillis = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * @return whether the UI has changed since {@link #begin()}
+     */
+    public boolean hasChanged() {
+        return lastChangeMillis >= beginMillis;
+    }
+
+    /**
+     * Wait until the UI has changed since {@link #begin()} and no further
+     * change is observed for the quiet window.
+     * @param timeoutMillis the upper bound of waiting
+     * @return the time waited for the UI to settle, or -1 on timeout
+     */
+    public long awaitSettled(long timeoutMillis) throws InterruptedException {
+        long begin = SystemClock.uptimeMillis();
+        long deadline = begin + timeoutMillis;
+        while (true) {
+            long now = SystemClock.uptimeMillis();
+            boolean changed = hasChanged();
+            long settledAt = changed ? lastChangeMillis + quietMillis : deadline;
+            if (changed && settledAt <= now || deadline <= now) {
+                boolean settled = changed && settledAt <= now;
+                long waited = now - begin;
+                synchronized (this) {
+                    waitedMillis += waited;
+                    if (settled) {
+                        settles++;
+                        savedMillis += Math.max(0, timeoutMillis - waited);
+                    } else if (changed) {
+                        timeouts++;
+                    } else {
+                        unchanged++;
+                    }
+                }
+                return settled ? waited : -1;
+            }
+            // Poll at least every quiet window to see the first change.
+            Thread.sleep(Math.max(1, Math.min(Math.min(settledAt, deadline), now + quietMillis) - now));
+        }
+    }
+
+    public synchronized void printStatistics() {
+        Logger.format(
+                "UI settle detection: settled (%d), timed out (%d), unchanged (%d), waited (%d ms), saved (%d ms), UI changes (%d)",
+                settles, timeouts, unchanged, waitedMillis, savedMillis, changes.get());
+    }
+}
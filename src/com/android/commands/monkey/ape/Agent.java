@@ -70,4 +70,11 @@ public interface Agent {
     boolean onLostFocused(int counter);
 
     void notifyActionConsumed();
+
+    /**
+     * Called only if the UI changed after the action.
+     * @param latencyMillis time for the UI to settle after the action, or the
+     *            throttle if it did not settle in time
+     */
+    void onActionSettled(Action action, long latencyMillis, boolean settled);
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape;
+
+import android.graphics.Bitmap;
+
+/**
+ * A reference counted screen capture shared by the consumers of a step, e.g.,
+ * image text hashing and the image writers. The bitmap is recycled when the
+ * last reference is released.
+ * 
+ * @author txgu
+ *
+ */
+public class Frame {
+
+    private final Bitmap bitmap;
+    private int refCount = 1;
+
+    public Frame(Bitmap bitmap) {
+        if (bitmap == null) {
+            throw new IllegalArgumentException("Null bitmap");
+        }
+        this.bitmap = bitmap;
+    }
+
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    public synchronized Frame retain() {
+        if (refCount <= 0) {
+            throw new IllegalStateException("Frame has been released.");
+        }
+        refCount++;
+        return this;
+    }
+
+    public synchronized void release() {
+        if (refCount <= 0) {
+            throw new IllegalStateException("Frame has been released.");
+        }
+        if (--refCount == 0) {
+            bitmap.recycle();
+        }
+    }
+}
@@ -15,88 +15,202 @@
  */
 package com.android.commands.monkey.ape;
 
+import static com.android.commands.monkey.ape.utils.Config.flushImagesThreshold;
+import static com.android.commands.monkey.ape.utils.Config.imageQueuePolicy;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
 
-import com.android.commands.monkey.ape.utils.Config;
 import com.android.commands.monkey.ape.utils.Logger;
 
 import android.graphics.Bitmap;
 
+/**
+ * Writes screenshots on a background thread. Requests are kept in a bounded
+ * ring buffer. When it is full, the oldest pending or the new screenshot is
+ * dropped, or the new screenshot is downscaled and the oldest one dropped
+ * only if there is still no room. Blocking the exploration thread until
+ * there is room is opt-in. Dropped screenshots and blocked adds are counted.
+ */
 public class ImageWriterQueue implements Runnable {
 
+    public enum OverflowPolicy {
+        BLOCK, DROP_OLDEST, DROP_NEWEST, DOWNSCALE;
+
+        static OverflowPolicy parse(String value) {
+            if ("block".equalsIgnoreCase(value)) {
+                return BLOCK;
+            }
+            if ("dropOldest".equalsIgnoreCase(value)) {
+                return DROP_OLDEST;
+            }
+            if ("dropNewest".equalsIgnoreCase(value)) {
+                return DROP_NEWEST;
+            }
+            if ("downscale".equalsIgnoreCase(value)) {
+                return DOWNSCALE;
+            }
+            throw new IllegalArgumentException("Unknown image queue policy: " + value);
+        }
+    }
 
     static class Req {
-        final Bitmap map;
+        final Frame frame;
         final File dst;
 
-        public Req(Bitmap map, File dst) {
-            this.map = map;
+        public Req(Frame frame, File dst) {
+            this.frame = frame;
             this.dst = dst;
         }
+
+        void release() {
+            if (frame != null) {
+                frame.release();
+            }
+        }
     }
 
-    private LinkedList<Req> requestQueue = new LinkedList<Req>();
+    private static final OverflowPolicy policy = OverflowPolicy.parse(imageQueuePolicy);
+
+    private final ArrayBlockingQueue<Req> requestQueue = new ArrayBlockingQueue<Req>(Math.max(1, flushImagesThreshold));
+
+    private volatile int maxDepth;
+    private volatile int written;
+    private volatile int dropped;
+    private volatile int blocked;
+    private volatile int downscaled;
+    private volatile long encodeTime;
+    private volatile long bytesWritten;
 
     @Override
     public void run() {
         while (!Thread.currentThread().isInterrupted()) {
             Req req = null;
             try {
-                req = read();
+                req = requestQueue.take();
             } catch (InterruptedException e) {
                 continue;
             }
-            if (req != null) {
-                writePNG(req);
-            }
+            write(req);
         }
     }
 
-    private void writePNG(Req req) {
-        Bitmap map = req.map;
+    private void write(Req req) {
         File dst = req.dst;
-        if (map == null) {
+        if (req.frame == null) {
             Logger.format("No screen shot for %s", dst.getAbsolutePath());
             return;
         }
+        long begin = System.currentTimeMillis();
+        Bitmap map = req.frame.getBitmap();
+        Bitmap scaled = ScreenshotProfile.scale(map);
         try (FileOutputStream fos = new FileOutputStream(dst)) {
-            map.compress(Bitmap.CompressFormat.PNG, 85, fos);
+            scaled.compress(ScreenshotProfile.format, ScreenshotProfile.quality, fos);
         } catch (IOException e) {
             e.printStackTrace();
             Logger.format("Fail to save screen shot to %s", dst.getAbsolutePath());
         } finally {
-            map.recycle();
+            if (scaled != map) {
+                scaled.recycle();
+            }
+            req.release();
+        }
+        synchronized (this) {
+            encodeTime += System.currentTimeMillis() - begin;
+            bytesWritten += dst.length();
+            written++;
         }
     }
 
-    public synchronized void add(Bitmap map, File dst) {
-        requestQueue.add(new Req(map, dst));
-        if (requestQueue.size() > Config.flushImagesThreshold) {
-            Logger.format("ImageQueue is too full (%d)! Try to flush it.", requestQueue.size());
-            flush();
+    /**
+     * Queue a frame to be written to the file. The queue takes over one
+     * reference of the frame.
+     */
+    public void add(Frame frame, File dst) {
+        Req req = new Req(frame, dst);
+        if (!requestQueue.offer(req)) {
+            switch (policy) {
+            case BLOCK:
+                blocked++;
+                put(req);
+                break;
+            case DROP_NEWEST:
+                Logger.format("ImageQueue is full (%d)! Drop screen shot %s.", flushImagesThreshold,
+                        dst.getAbsolutePath());
+                req.release();
+                dropped++;
+                break;
+            case DOWNSCALE:
+                if (frame != null) {
+                    Bitmap map = frame.getBitmap();
+                    if (map.getWidth() > 1 && map.getHeight() > 1) {
+                        Frame scaled = new Frame(
+                                Bitmap.createScaledBitmap(map, map.getWidth() >> 1, map.getHeight() >> 1, true));
+                        frame.release();
+                        req = new Req(scaled, dst);
+                        downscaled++;
+                    }
+                }
+                if (requestQueue.offer(req)) {
+                    break;
+                }
+                // fall through
+            case DROP_OLDEST:
+                while (!requestQueue.offer(req)) {
+                    Req oldest = requestQueue.poll();
+                    if (oldest != null) {
+                        Logger.format("ImageQueue is full (%d)! Drop screen shot %s.", flushImagesThreshold,
+                                oldest.dst.getAbsolutePath());
+                        oldest.release();
+                        dropped++;
+                    }
+                }
+                break;
+            }
+        }
+        int depth = requestQueue.size();
+        if (depth > maxDepth) {
+            maxDepth = depth;
         }
-        notifyAll();
     }
 
-    public synchronized void flush() {
-        while (!requestQueue.isEmpty()) {
-            Req req = requestQueue.removeFirst();
-            writePNG(req);
+    private void put(Req req) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                requestQueue.put(req);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private synchronized Req read() throws InterruptedException {
-        while (requestQueue.isEmpty()) {
-            wait();
+    public void flush() {
+        Req req;
+        while ((req = requestQueue.poll()) != null) {
+            write(req);
         }
-        Req req = requestQueue.removeFirst();
-        return req;
     }
 
-    public synchronized void tearDown() {
+    public int getQueueDepth() {
+        return requestQueue.size();
+    }
+
+    public synchronized void printStatistics() {
+        Logger.format(
+                "ImageQueue(%s): depth (%d/%d), max depth (%d), written (%d), dropped (%d), blocked (%d), downscaled (%d), encode time (%d ms), bytes (%d)",
+                policy, requestQueue.size(), flushImagesThreshold, maxDepth, written, dropped, blocked, downscaled,
+                encodeTime, bytesWritten);
+    }
+
+    public void tearDown() {
         flush();
+        printStatistics();
     }
 }
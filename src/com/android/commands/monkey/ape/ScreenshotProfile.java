@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape;
+
+import static com.android.commands.monkey.ape.utils.Config.screenshotFormat;
+import static com.android.commands.monkey.ape.utils.Config.screenshotHashDistance;
+import static com.android.commands.monkey.ape.utils.Config.screenshotQuality;
+import static com.android.commands.monkey.ape.utils.Config.screenshotScale;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.android.commands.monkey.ape.utils.Logger;
+
+import android.graphics.Bitmap;
+
+/**
+ * How screenshots are encoded and which frames are skipped. Skipped frames
+ * refer to the file of the last written frame, the references are appended to
+ * {@link #REFERENCES_FILE} next to the screenshots.
+ * 
+ * @author txgu
+ *
+ */
+public class ScreenshotProfile {
+
+    static final Bitmap.CompressFormat format;
+    static final String extension;
+    static final int quality = screenshotQuality;
+    static final float scale = (float) screenshotScale;
+
+    static {
+        if ("png".equalsIgnoreCase(screenshotFormat)) {
+            format = Bitmap.CompressFormat.PNG;
+            extension = "png";
+        } else if ("jpeg".equalsIgnoreCase(screenshotFormat) || "jpg".equalsIgnoreCase(screenshotFormat)) {
+            format = Bitmap.CompressFormat.JPEG;
+            extension = "jpg";
+        } else if ("webp".equalsIgnoreCase(screenshotFormat)) {
+            format = Bitmap.CompressFormat.WEBP;
+            extension = "webp";
+        } else {
+            throw new IllegalArgumentException("Unknown screenshot format: " + screenshotFormat);
+        }
+    }
+
+    private static final int HASH_SIZE = 8;
+
+    public static final String REFERENCES_FILE = "screenshot-references.log";
+
+    public static String getExtension() {
+        return extension;
+    }
+
+    public static String getStepScreenshotName(int step) {
+        return String.format("step-%d.%s", step, extension);
+    }
+
+    /**
+     * @return the name of the file that holds the screenshot of the given
+     *         file name
+     */
+    public static String resolve(Map<String, String> references, String name) {
+        String ref = references.get(name);
+        return ref == null ? name : ref;
+    }
+
+    /**
+     * Record that the skipped screenshot file is identical to the written
+     * file ref in the same directory.
+     */
+    public static synchronized void addReference(File file, String ref) {
+        File log = new File(file.getParentFile(), REFERENCES_FILE);
+        try (PrintWriter pw = new PrintWriter(new FileWriter(log, true))) {
+            pw.format("%s %s\n", file.getName(), ref);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logger.wformat("Fail to save screenshot reference to %s", log);
+        }
+    }
+
+    /**
+     * @return skipped screenshot file names mapped to the written files in the
+     *         directory
+     */
+    public static synchronized Map<String, String> loadReferences(File dir) {
+        Map<String, String> references = new HashMap<>();
+        File log = new File(dir, REFERENCES_FILE);
+        if (!log.exists()) {
+            return references;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(log))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int index = line.indexOf(' ');
+                if (index != -1) {
+                    references.put(line.substring(0, index), line.substring(index + 1));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logger.wformat("Fail to load screenshot references from %s", log);
+        }
+        return references;
+    }
+
+    /**
+     * Scale the bitmap according to the profile. The caller recycles the
+     * returned bitmap if it is a new one.
+     */
+    static Bitmap scale(Bitmap map) {
+        if (scale >= 1.0F) {
+            return map;
+        }
+        int width = Math.max(1, (int) (map.getWidth() * scale));
+        int height = Math.max(1, (int) (map.getHeight() * scale));
+        return Bitmap.createScaledBitmap(map, width, height, true);
+    }
+
+    /**
+     * An average hash of the bitmap: one bit per cell of an 8x8 grayscale
+     * thumbnail, set if the cell is brighter than the mean.
+     */
+    public static long averageHash(Bitmap map) {
+        Bitmap thumbnail = Bitmap.createScaledBitmap(map, HASH_SIZE, HASH_SIZE, true);
+        int[] pixels = new int[HASH_SIZE * HASH_SIZE];
+        thumbnail.getPixels(pixels, 0, HASH_SIZE, 0, 0, HASH_SIZE, HASH_SIZE);
+        if (thumbnail != map) {
+            thumbnail.recycle();
+        }
+        return averageHash(pixels, pixels.length);
+    }
+
+    /**
+     * Average hash of the first length colors, which are overwritten by their
+     * luminance.
+     */
+    public static long averageHash(int[] pixels, int length) {
+        int total = 0;
+        for (int i = 0; i < length; i++) {
+            int luma = luminance(pixels[i]);
+            pixels[i] = luma;
+            total += luma;
+        }
+        int mean = total / length;
+        long hash = 0L;
+        for (int i = 0; i < length; i++) {
+            if (pixels[i] > mean) {
+                hash |= 1L << i;
+            }
+        }
+        return hash;
+    }
+
+    static int luminance(int color) {
+        int r = (color >> 16) & 0xFF;
+        int g = (color >> 8) & 0xFF;
+        int b = color & 0xFF;
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+
+    public static boolean isSimilar(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2) <= screenshotHashDistance;
+    }
+}
@@ -26,10 +26,20 @@ import com.android.commands.monkey.ape.utils.Logger;
 
 public class Subsequence implements Cloneable {
 
+    /**
+     * Materialized lazily for paths built by extension, see {@link #getEdges()}.
+     */
     private StateTransition[] edges;
     private int hash;
     private State start;
 
+    /**
+     * Parent pointer of a path built by extending another path.
+     */
+    private Subsequence parent;
+    private StateTransition last;
+    private int size;
+
     private boolean closed;
 
     public boolean isClosed() {
@@ -45,7 +55,7 @@ public class Subsequence implements Cloneable {
         final int prime = 31;
         if (hash == 0) {
             int result = 1;
-            result = prime * result + Arrays.hashCode(edges);
+            result = prime * result + Arrays.hashCode(getEdges());
             result = prime * result + ((start == null) ? 0 : start.hashCode());
             hash = result;
             return result;
@@ -54,6 +64,18 @@ public class Subsequence implements Cloneable {
     }
 
     public StateTransition[] getEdges() {
+        if (edges == null) {
+            StateTransition[] newStateTransitions = new StateTransition[size];
+            Subsequence current = this;
+            int i = size - 1;
+            while (current.edges == null) {
+                newStateTransitions[i--] = current.last;
+                current = current.parent;
+            }
+            System.arraycopy(current.edges, 0, newStateTransitions, 0, current.size);
+            edges = newStateTransitions;
+            parent = null;
+        }
         return edges;
     }
 
@@ -66,7 +88,9 @@ public class Subsequence implements Cloneable {
         if (getClass() != obj.getClass())
             return false;
         Subsequence other = (Subsequence) obj;
-        if (!Arrays.equals(edges, other.edges))
+        if (size != other.size)
+            return false;
+        if (!Arrays.equals(getEdges(), other.getEdges()))
             return false;
         if (start == null) {
             if (other.start != null)
@@ -83,18 +107,22 @@ public class Subsequence implements Cloneable {
         this.edges = EMPTY;
     }
 
+    /**
+     * Extend a path by one edge. Only a parent pointer is kept, the edge array
+     * is built on demand.
+     */
     public Subsequence(Subsequence seq, StateTransition edge) {
         this.start = seq.start;
-        int size = seq.size();
-        StateTransition[] newStateTransitions = new StateTransition[size + 1];
-        this.edges = newStateTransitions;
-        System.arraycopy(seq.edges, 0, this.edges, 0, size);
-        newStateTransitions[size] = edge;
+        this.parent = seq;
+        this.last = edge;
+        this.size = seq.size + 1;
     }
 
     public Subsequence(StateTransition edge) {
         this.start = edge.source;
         this.edges = new StateTransition[] { edge };
+        this.last = edge;
+        this.size = 1;
     }
 
     public Subsequence(List<StateTransition> edges) {
@@ -102,27 +130,23 @@ public class Subsequence implements Cloneable {
         int size = edges.size();
         this.edges = new StateTransition[size];
         this.edges = edges.toArray(this.edges);
+        this.last = this.edges[size - 1];
+        this.size = size;
     }
 
     public Subsequence(Subsequence seq, StateTransition edge1, StateTransition edge2) {
-        this.start = seq.start;
-        int size = seq.size();
-        StateTransition[] newStateTransitions = new StateTransition[size + 2];
-        this.edges = newStateTransitions;
-        System.arraycopy(seq.edges, 0, this.edges, 0, size);
-        newStateTransitions[size++] = edge1;
-        newStateTransitions[size] = edge2;
+        this(new Subsequence(seq, edge1), edge2);
     }
 
     public State getLastState() {
-        if (edges.length == 0) {
+        if (size == 0) {
             throw new IllegalStateException("Empty subsequence");
         }
-        return edges[edges.length - 1].target;
+        return last.target;
     }
 
     public int size() {
-        return edges.length;
+        return size;
     }
 
     public State getStartState() {
@@ -131,6 +155,7 @@ public class Subsequence implements Cloneable {
 
     public void fillBuffer(LinkedList<StateTransition> actionBuffer) {
         Logger.iprintln("Fill buffer..");
+        StateTransition[] edges = getEdges();
         for (int i = 0; i < edges.length; i++) {
             Logger.iformat(" %3d %s", i, edges[i]);
             actionBuffer.add(edges[i]);
@@ -138,32 +163,39 @@ public class Subsequence implements Cloneable {
     }
 
     public ModelAction getFirstAction() {
-        if (edges.length == 0) {
+        if (size == 0) {
             throw new IllegalStateException("Empty subsequence");
         }
-        return edges[0].action;
+        return getEdges()[0].action;
     }
 
     public boolean isEmpty() {
-        return edges.length == 0;
+        return size == 0;
     }
 
     public StateTransition getLastStateTransition() {
-        if (edges.length == 0) {
+        if (size == 0) {
             throw new IllegalStateException("Empty subsequence");
         }
-        return (edges)[edges.length - 1];
+        return last;
     }
 
     public ModelAction getLastAction() {
-        if (edges.length == 0) {
+        if (size == 0) {
             throw new IllegalStateException("Empty subsequence");
         }
-        return (edges)[edges.length - 1].action;
+        return last.action;
     }
 
     public boolean contains(State target) {
-        for (StateTransition edge : edges) {
+        Subsequence current = this;
+        while (current.edges == null) {
+            if (current.last.target.equals(target)) {
+                return true;
+            }
+            current = current.parent;
+        }
+        for (StateTransition edge : current.edges) {
             if (edge.target.equals(target)) {
                 return true;
             }
@@ -172,17 +204,27 @@ public class Subsequence implements Cloneable {
     }
 
     public State getLastLastState() {
-        if (edges.length == 0) {
+        if (size == 0) {
             throw new IllegalStateException("Empty subsequence");
         }
-        if (edges.length == 1) {
+        if (size == 1) {
             return start;
         }
-        return edges[edges.length - 2].target;
+        if (edges == null) {
+            return parent.last.target;
+        }
+        return edges[size - 2].target;
     }
 
     public boolean contains(ModelAction target) {
-        for (StateTransition edge : edges) {
+        Subsequence current = this;
+        while (current.edges == null) {
+            if (current.last.action.equals(target)) {
+                return true;
+            }
+            current = current.parent;
+        }
+        for (StateTransition edge : current.edges) {
             if (edge.action.equals(target)) {
                 return true;
             }
@@ -191,6 +233,7 @@ public class Subsequence implements Cloneable {
     }
 
     public void print() {
+        StateTransition[] edges = getEdges();
         for (int i = 0, k = 1; i < edges.length; i++, k++) {
             StateTransition edge = edges[i];
             Logger.format("%3d %s", k, edge.toShortString());
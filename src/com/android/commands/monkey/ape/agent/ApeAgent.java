@@ -266,6 +266,10 @@ public abstract class ApeAgent implements Agent {
         return true;
     }
 
+    public void onActionSettled(Action action, long latencyMillis, boolean settled) {
+
+    }
+
     public final Action updateState(ComponentName topComp, AccessibilityNodeInfo info) {
         Action action = updateStateWrapper(topComp, info);
         return action;
@@ -17,17 +17,23 @@ package com.android.commands.monkey.ape.agent;
 
 import static com.android.commands.monkey.ape.utils.Config.activityStableRestartThreshold;
 import static com.android.commands.monkey.ape.utils.Config.baseThrottle;
+import static com.android.commands.monkey.ape.utils.Config.checkpoint;
 import static com.android.commands.monkey.ape.utils.Config.enableXPathAction;
 import static com.android.commands.monkey.ape.utils.Config.evolveModel;
 import static com.android.commands.monkey.ape.utils.Config.fuzzingActivityVisitThreshold;
 import static com.android.commands.monkey.ape.utils.Config.graphStableRestartThreshold;
+import static com.android.commands.monkey.ape.utils.Config.learnedThrottle;
+import static com.android.commands.monkey.ape.utils.Config.learnedThrottleMinSamples;
 import static com.android.commands.monkey.ape.utils.Config.maxExtraPriorityAliasedActions;
 import static com.android.commands.monkey.ape.utils.Config.maxThrottle;
 import static com.android.commands.monkey.ape.utils.Config.saveDotGraph;
 import static com.android.commands.monkey.ape.utils.Config.saveGUITreeToXmlEveryStep;
+import static com.android.commands.monkey.ape.utils.Config.saveModelIndex;
 import static com.android.commands.monkey.ape.utils.Config.saveObjModel;
 import static com.android.commands.monkey.ape.utils.Config.saveStates;
 import static com.android.commands.monkey.ape.utils.Config.saveVisGraph;
+import static com.android.commands.monkey.ape.utils.Config.settleQuietMillis;
+import static com.android.commands.monkey.ape.utils.Config.skipIdenticalScreenshots;
 import static com.android.commands.monkey.ape.utils.Config.stateStableRestartThreshold;
 import static com.android.commands.monkey.ape.utils.Config.takeScreenshot;
 import static com.android.commands.monkey.ape.utils.Config.takeScreenshotForEveryStep;
@@ -35,10 +41,11 @@ import static com.android.commands.monkey.ape.utils.Config.takeScreenshotForNewS
 import static com.android.commands.monkey.ape.utils.Config.throttleForActivityTransition;
 import static com.android.commands.monkey.ape.utils.Config.throttleForUnvisitedAction;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.Collections;
@@ -49,10 +56,13 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import com.android.commands.monkey.ApeRRFormatter;
 import com.android.commands.monkey.MonkeySourceApe;
 import com.android.commands.monkey.ape.ActionFilter;
 import com.android.commands.monkey.ape.BadStateException;
 import com.android.commands.monkey.ape.BaseActionFilter;
+import com.android.commands.monkey.ape.Frame;
+import com.android.commands.monkey.ape.ScreenshotProfile;
 import com.android.commands.monkey.ape.Subsequence;
 import com.android.commands.monkey.ape.model.Action;
 import com.android.commands.monkey.ape.model.ActionCounters;
@@ -60,7 +70,10 @@ import com.android.commands.monkey.ape.model.ActionType;
 import com.android.commands.monkey.ape.model.ActivityNode;
 import com.android.commands.monkey.ape.model.Graph;
 import com.android.commands.monkey.ape.model.GraphListener;
+import com.android.commands.monkey.ape.model.LatencyEstimate;
 import com.android.commands.monkey.ape.model.Model;
+import com.android.commands.monkey.ape.model.ModelCheckpoint;
+import com.android.commands.monkey.ape.model.ModelIndex;
 import com.android.commands.monkey.ape.model.Model.ActionRecord;
 import com.android.commands.monkey.ape.model.xpathaction.XPathActionController;
 import com.android.commands.monkey.ape.model.ModelAction;
@@ -68,6 +81,9 @@ import com.android.commands.monkey.ape.model.State;
 import com.android.commands.monkey.ape.model.StateKey;
 import com.android.commands.monkey.ape.model.StateTransition;
 import com.android.commands.monkey.ape.naming.Name;
+import com.android.commands.monkey.ape.naming.NameManager;
+import com.android.commands.monkey.ape.naming.NamingCache;
+import com.android.commands.monkey.ape.naming.NamingFactory;
 import com.android.commands.monkey.ape.naming.Naming;
 import com.android.commands.monkey.ape.tree.GUITree;
 import com.android.commands.monkey.ape.tree.GUITreeAction;
@@ -75,7 +91,11 @@ import com.android.commands.monkey.ape.tree.GUITreeBuilder;
 import com.android.commands.monkey.ape.tree.GUITreeNode;
 import com.android.commands.monkey.ape.tree.GUITreeWidgetDiffer;
 import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.ModelSerialization;
+import com.android.commands.monkey.ape.utils.StepTimer;
+import com.android.commands.monkey.ape.utils.StepTimer.Phase;
 import com.android.commands.monkey.ape.utils.Utils;
+import com.android.commands.monkey.ape.utils.XPathBuilder;
 
 import android.content.ComponentName;
 import android.content.Intent;
@@ -104,10 +124,17 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
     protected ModelAction newAction;
     protected GUITreeAction newGUITreeAction;
 
+    /**
+     * The screen capture of the latest GUI tree of this step.
+     */
+    private Frame stepFrame;
+
     protected StateTransition currentStateTransition;
 
     protected Model model;
 
+    private ModelCheckpoint modelCheckpoint;
+
     private ActionCounters actionCounters = new ActionCounters();
 
     private LinkedList<StateTransition> actionBuffer = new LinkedList<StateTransition>();
@@ -128,6 +155,7 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
     };
     private Set<State> refreshStatesCheckingBlacklist = new HashSet<>();
     private boolean currentStateRecovered;
+    private boolean validatingAllNewActions;
     private boolean appActivityJustStartedFromClean;
 
     public StatefulAgent(MonkeySourceApe ape, Graph graph) {
@@ -463,8 +491,24 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
         return super.appNotResponding(arg0, arg1, arg2);
     }
 
+    /**
+     * Capture the screen for the GUI tree being built. The frame is kept as
+     * the frame of this step until the next capture, so that screenshots of
+     * this step reuse it instead of capturing the screen again.
+     */
     Bitmap captureBitmap() {
-        return ape.captureBitmap();
+        if (stepFrame != null) {
+            stepFrame.release();
+        }
+        stepFrame = ape.captureFrame();
+        return stepFrame == null ? null : stepFrame.getBitmap();
+    }
+
+    private File takeScreenshot(File screenshotFile, boolean skipIdentical) {
+        if (stepFrame == null) {
+            return ape.takeScreenshot(screenshotFile, skipIdentical);
+        }
+        return ape.takeScreenshot(screenshotFile, stepFrame, skipIdentical);
     }
 
     protected State refreshNewState() {
@@ -602,18 +646,42 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
      * 
      */
     protected Action updateStateInternal(ComponentName topComp, AccessibilityNodeInfo info) {
+        if (checkpoint) {
+            getCheckpoint().beginStep(model); // start the log before the model grows
+        }
         recoverCurrentState();
-        buildAndValidateNewState(topComp, info);
-        preEvolveModel();
+        StepTimer.begin(Phase.STATE);
+        try {
+            buildAndValidateNewState(topComp, info);
+        } finally {
+            StepTimer.end(Phase.STATE);
+        }
+        StepTimer.begin(Phase.EVOLVE);
+        try {
+            preEvolveModel();
+        } finally {
+            StepTimer.end(Phase.EVOLVE);
+        }
         getGraph().markVisited(newState, getTimestamp());
         saveGUI();
-        updateGraph();
-        // checkCircleTransition();
-        checkNonDeterministicTransitions();
+        StepTimer.begin(Phase.GRAPH);
+        try {
+            updateGraph();
+            // checkCircleTransition();
+            checkNonDeterministicTransitions();
+        } finally {
+            StepTimer.end(Phase.GRAPH);
+        }
         if (newState.isUnvisited()) {
             getGraph().markVisited(newState, getTimestamp());
         }
-        Action action = resolveNewAction();
+        Action action;
+        StepTimer.begin(Phase.SELECT);
+        try {
+            action = resolveNewAction();
+        } finally {
+            StepTimer.end(Phase.SELECT);
+        }
         if (action.isModelAction()) {
             getGraph().markVisited((ModelAction) action, getTimestamp());
             moveForward();
@@ -630,6 +698,44 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
         GUITree.releaseLoadedData();
     }
 
+    @Override
+    public void onActionSettled(Action action, long latencyMillis, boolean settled) {
+        if (!action.isModelAction()) {
+            return;
+        }
+        // A timeout only bounds the latency from below, let the estimate grow past the throttle.
+        long observed = settled ? latencyMillis : Math.max(2 * latencyMillis, settleQuietMillis);
+        ModelAction modelAction = (ModelAction) action;
+        modelAction.getLatency().record(observed, settled);
+        ActivityNode node = getGraph().getActivityNode(modelAction.getState().getActivity());
+        if (node != null) {
+            node.getLatency().record(observed, settled);
+        }
+    }
+
+    /**
+     * @return a throttle learned from settle latencies of the action or its
+     *         activity, or -1 if there are too few observations
+     */
+    protected int getLearnedThrottle(State state, ModelAction action) {
+        if (!learnedThrottle) {
+            return -1;
+        }
+        if (action.hasLatency() && action.getLatency().getCount() >= learnedThrottleMinSamples) {
+            return (int) Math.min(action.getLatency().getUpperBound(), Integer.MAX_VALUE);
+        }
+        if (action.isUnvisited()) {
+            ActivityNode node = getGraph().getActivityNode(state.getActivity());
+            if (node != null) {
+                LatencyEstimate latency = node.getLatency();
+                if (latency.getCount() >= learnedThrottleMinSamples) {
+                    return (int) Math.min(latency.getUpperBound(), Integer.MAX_VALUE);
+                }
+            }
+        }
+        return -1;
+    }
+
     protected void checkNonDeterministicTransitions() {
         if (!evolveModel) {
             return;
@@ -792,17 +898,32 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
                 e.printStackTrace();
                 Logger.wformat("Fail to save GUI tree to %s at step %d", xmlFile, getTimestamp());
             }
+            // The XML does not carry the activity, which is needed to rebuild states offline.
+            File activityFile = new File(checkOutputDir(), "step-activities.log");
+            try (PrintWriter pw = new PrintWriter(new FileWriter(activityFile, true))) {
+                pw.format("%d %s\n", getTimestamp(), newGUITree.getActivityName().flattenToString());
+            } catch (IOException e) {
+                e.printStackTrace();
+                Logger.wformat("Fail to save activity to %s at step %d", activityFile, getTimestamp());
+            }
         }
         if (takeScreenshot && takeScreenshotForEveryStep) {
             checkOutputDir();
-            File screenshotFile = new File(checkOutputDir(), String.format("step-%d.png", getTimestamp()));
+            File screenshotFile = new File(checkOutputDir(), ScreenshotProfile.getStepScreenshotName(getTimestamp()));
             Logger.iformat("Saving screen shot to %s at step %d", screenshotFile, getTimestamp());
-            ape.takeScreenshot(screenshotFile);
+            File saved = takeScreenshot(screenshotFile, skipIdenticalScreenshots);
+            if (!saved.equals(screenshotFile)) {
+                Logger.iformat("Screen shot at step %d is identical to %s", getTimestamp(), saved.getName());
+            }
         }
     }
 
     protected State buildState(ComponentName topComp, AccessibilityNodeInfo rootInfo, Bitmap bitmap) {
-        return model.getState(topComp, rootInfo, bitmap);
+        State state = model.getState(topComp, rootInfo, bitmap);
+        if (checkpoint && state != null) {
+            getCheckpoint().appendGUITree(getTimestamp(), state.getLatestGUITree());
+        }
+        return state;
     }
 
     public void onAppActivityStarted(ComponentName app, boolean clean) {
@@ -965,9 +1086,10 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
         if (takeScreenshot && takeScreenshotForNewState) {
             checkOutputDir();
             String id = node.getGraphId();
-            File screenshotFile = new File(checkOutputDir(), String.format("%s.png", id));
+            File screenshotFile = new File(checkOutputDir(), String.format("%s.%s", id, ScreenshotProfile.getExtension()));
             Logger.format("Saving screen shot for new state %s to %s", id, screenshotFile);
-            ape.takeScreenshot(screenshotFile);
+            // Never skipped, this is the only screenshot of the state if steps are not captured.
+            takeScreenshot(screenshotFile, false);
         }
     }
 
@@ -1000,19 +1122,41 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
             return null;
         }
         action = newState.resolveAction(this, action, getThrottleForNewAction(newState, action));
-        if (ape.validateResolvedAction(action)) {
+        boolean valid = ape.validateResolvedAction(action);
+        if (valid) {
+            if (!action.isValid()) {
+                getGraph().invalidatePathCache(action);
+            }
             action.setValid(true);
-            return action;
+        } else {
+            Logger.wformat("Mark an action (%s) invalid", action);
+            if (action.isValid()) {
+                getGraph().invalidatePathCache(action);
+            }
+            action.setValid(false);
         }
-        Logger.wformat("Mark an action (%s) invalid", action);
-        action.setValid(false);
-        return null;
+        if (checkpoint && !validatingAllNewActions) {
+            // Actions validated on their own, e.g., at selection, are replayed after the step's GUI trees.
+            int index = newState.getActions().indexOf(action);
+            if (index >= 0) {
+                getCheckpoint().appendResolution(getTimestamp(), index, action);
+            }
+        }
+        return valid ? action : null;
     }
 
     protected void validateAllNewActions() {
         Utils.assertNotNull(newState);
-        for (ModelAction action : newState.getActions()) {
-            validateNewAction(action);
+        validatingAllNewActions = true;
+        try {
+            for (ModelAction action : newState.getActions()) {
+                validateNewAction(action);
+            }
+        } finally {
+            validatingAllNewActions = false;
+        }
+        if (checkpoint) {
+            getCheckpoint().appendResolutions(getTimestamp(), newState.getActions());
         }
     }
 
@@ -1076,6 +1220,9 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
                 continue;
             }
             GUITreeNode node = action.getResolvedNode();
+            if (action.isEnabled() != node.isEnabled()) {
+                getGraph().invalidatePathCache(action);
+            }
             action.setEnabled(node.isEnabled());
             Collection<StateTransition> edges = getGraph().getOutStateTransitions(action);
             int priority = action.getPriority();
@@ -1148,13 +1295,23 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
                 hasActivityTransition = true;
             }
         }
-        if (action.isUnvisited()) {
-            throttle += throttleForUnvisitedAction;
-            Logger.dformat("Add throttle for unvisited activity state transition: %d", throttle);
-        }
-        if (hasActivityTransition) {
-            throttle += throttleForActivityTransition;
-            Logger.dformat("Add throttle for weak activity state transition: %d", throttle);
+        int learned = getLearnedThrottle(state, action);
+        if (learned >= 0) {
+            // Activity launches may be slower than any latency observed so far.
+            if (hasActivityTransition) {
+                learned = Math.max(learned, throttleForActivityTransition);
+            }
+            throttle += learned;
+            Logger.dformat("Add learned throttle for state transition: %d", throttle);
+        } else {
+            if (action.isUnvisited()) {
+                throttle += throttleForUnvisitedAction;
+                Logger.dformat("Add throttle for unvisited activity state transition: %d", throttle);
+            }
+            if (hasActivityTransition) {
+                throttle += throttleForActivityTransition;
+                Logger.dformat("Add throttle for weak activity state transition: %d", throttle);
+            }
         }
         throttle = Math.min(throttle, maxThrottle);
 
@@ -1199,12 +1356,22 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
 
     public void tearDown() {
         super.tearDown();
+        if (stepFrame != null) {
+            stepFrame.release();
+            stepFrame = null;
+        }
         saveGraph();
         saveActionHistory();
         actionCounters.print();
         getGraph().printActivityNodes();
         model.getNamingManager().dump();
         model.printCounters();
+        XPathBuilder.printStatistics();
+        StepTimer.printStatistics();
+        NameManager.printStatistics();
+        NamingCache.printStatistics();
+        NamingFactory.printPredicateStatistics();
+        Logger.flush();
     }
 
     public List<ActionRecord> getActionHistory() {
@@ -1218,31 +1385,58 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
     public void appendToActionHistory(long clockTimestamp, Action action) {
         int agentTimestamp = getTimestamp();
         this.model.appendToActionHistory(clockTimestamp, action, agentTimestamp);
+        if (checkpoint) {
+            getCheckpoint().appendAction(clockTimestamp, agentTimestamp,
+                    ApeRRFormatter.recordAction(action, agentTimestamp));
+        }
         //actionCounters.logEvent(action.getType());
     }
 
+    private ModelCheckpoint getCheckpoint() {
+        if (modelCheckpoint == null) {
+            modelCheckpoint = new ModelCheckpoint(new File(checkOutputDir(), "sataModel.ckpt"));
+            modelCheckpoint.begin(model);
+        }
+        return modelCheckpoint;
+    }
+
     protected void saveActionHistory() {
         File actionHistoryFile = new File(checkOutputDir(), "action-history.log");
         Model.saveActionHistory(actionHistoryFile, getActionHistory());
     }
 
     protected void saveGraph() {
-        if (!(saveDotGraph || saveObjModel || saveVisGraph)) {
+        if (!(saveDotGraph || saveObjModel || saveVisGraph || saveModelIndex || learnedThrottle || modelCheckpoint != null)) {
             return;
         }
         Graph graph = getGraph();
         File graphOutputDir = checkOutputDir();
         Logger.println("Save graph data to " + graphOutputDir);
         File file = null;
+        if (modelCheckpoint != null) {
+            modelCheckpoint.close();
+            modelCheckpoint.printStatistics();
+        }
         if (saveObjModel) {
+            // A replayed checkpoint is not exact, e.g., latencies are not logged.
             file = new File(graphOutputDir, "sataModel.obj");
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
-                oos.writeObject(model);
+            try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                ModelSerialization.write(out, model);
             } catch (IOException e) {
                 e.printStackTrace();
                 Logger.println("Fail to write model into " + file);
             }
         }
+        if (saveModelIndex) {
+            file = new File(graphOutputDir, "sataModel.idx");
+            try {
+                ModelIndex.write(model, file);
+            } catch (Exception e) {
+                // The index is optional, do not lose the other outputs.
+                e.printStackTrace();
+                Logger.println("Fail to write model index into " + file);
+            }
+        }
         if (saveDotGraph) {
             file = new File(graphOutputDir, "sataGraph.dot");
             try (PrintWriter pw = new PrintWriter(new FileOutputStream(file))) {
@@ -1252,10 +1446,19 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
                 Logger.println("Fail to write dot graph into " + file);
             }
         }
+        if (learnedThrottle) {
+            file = new File(graphOutputDir, "sataLatency.txt");
+            try (PrintWriter pw = new PrintWriter(new FileOutputStream(file))) {
+                graph.printLatencies(pw);
+            } catch (IOException e) {
+                e.printStackTrace();
+                Logger.println("Fail to write latencies into " + file);
+            }
+        }
         if (saveVisGraph) {
             file = new File(graphOutputDir, "sataGraph.vis.js");
             try (PrintWriter pw = new PrintWriter(new FileOutputStream(file))) {
-                graph.printVis(pw);
+                graph.printVis(pw, ScreenshotProfile.loadReferences(graphOutputDir));
             } catch (IOException e) {
                 e.printStackTrace();
                 Logger.println("Fail to write vis graph into " + file);
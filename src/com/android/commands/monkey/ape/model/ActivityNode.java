@@ -33,6 +33,8 @@ public class ActivityNode extends GraphElement implements Comparable<ActivityNod
 
     private Set<State> states = new HashSet<>();
 
+    private LatencyEstimate latency;
+
     public ActivityNode(String activity) {
         this.activity = activity;
     }
@@ -68,6 +70,13 @@ public class ActivityNode extends GraphElement implements Comparable<ActivityNod
         return activity.compareTo(that.activity);
     }
 
+    public LatencyEstimate getLatency() {
+        if (latency == null) {
+            latency = new LatencyEstimate(true);
+        }
+        return latency;
+    }
+
     public Set<State> getStates() {
         return states;
     }
@@ -0,0 +1,593 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.model;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A store that assigns dense int ids to states, actions and transitions and
+ * keeps adjacency in int lists indexed by these ids, avoiding the per-edge
+ * hash map entries of {@link HashGraphStore}. Elements are tracked by
+ * identity. Equal but non-identical states and actions are resolved through
+ * the state key map of the graph.
+ * 
+ * @author txgu
+ *
+ */
+class CompactGraphStore extends GraphStore {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 1L;
+
+    static final class IntList implements Serializable {
+
+        /**
+         * 
+         */
+        private static final long serialVersionUID = 1L;
+
+        private int[] data;
+        private int size;
+
+        IntList() {
+            this(4);
+        }
+
+        IntList(int capacity) {
+            data = new int[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int i) {
+            return data[i];
+        }
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size << 1);
+            }
+            data[size++] = value;
+        }
+
+        int removeLast() {
+            return data[--size];
+        }
+
+        /**
+         * Remove the first occurrence and keep the order of the others.
+         */
+        boolean remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (data[i] == value) {
+                    System.arraycopy(data, i + 1, data, i, size - i - 1);
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    class TransitionSet extends AbstractSet<StateTransition> {
+
+        final IntList ids;
+
+        TransitionSet(IntList ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public Iterator<StateTransition> iterator() {
+            return new Iterator<StateTransition>() {
+                int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < ids.size();
+                }
+
+                @Override
+                public StateTransition next() {
+                    if (next >= ids.size()) {
+                        throw new NoSuchElementException();
+                    }
+                    return transitions[ids.get(next++)];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException("remove");
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return ids.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof StateTransition)) {
+                return false;
+            }
+            for (int i = 0; i < ids.size(); i++) {
+                if (transitions[ids.get(i)].equals(o)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Map<StateKey, State> keyToState;
+
+    private State[] states = new State[64];
+    private IntList[] outEdges = new IntList[64];
+    private IntList[] inEdges = new IntList[64];
+    private int stateSlots;
+    private IntList freeStates = new IntList();
+
+    private ModelAction[] actions = new ModelAction[256];
+    private IntList[] actionEdges = new IntList[256];
+    private int actionSlots;
+    private IntList freeActions = new IntList();
+    private BitSet unvisitedActions = new BitSet();
+    private BitSet visitedActions = new BitSet();
+    private int unvisitedCount;
+    private int visitedCount;
+
+    private StateTransition[] transitions = new StateTransition[256];
+    private int transitionSlots;
+    private int transitionCount;
+    private IntList freeTransitions = new IntList();
+
+    /**
+     * Slots are not serialized with the elements, they are restored from the
+     * arrays on first lookup after deserialization.
+     */
+    private transient boolean indexed = true;
+
+    CompactGraphStore(Map<StateKey, State> keyToState) {
+        this.keyToState = keyToState;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        indexed = false;
+    }
+
+    private void ensureIndexed() {
+        if (indexed) {
+            return;
+        }
+        indexed = true;
+        for (int i = 0; i < stateSlots; i++) {
+            if (states[i] != null) {
+                states[i].storeIndex = i;
+            }
+        }
+        for (int i = 0; i < actionSlots; i++) {
+            if (actions[i] != null) {
+                actions[i].storeIndex = i;
+            }
+        }
+        for (int i = 0; i < transitionSlots; i++) {
+            if (transitions[i] != null) {
+                transitions[i].storeIndex = i;
+            }
+        }
+    }
+
+    private int identityIndexOf(State state) {
+        ensureIndexed();
+        int i = state.storeIndex;
+        if (i >= 0 && i < stateSlots && states[i] == state) {
+            return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(State state) {
+        int i = identityIndexOf(state);
+        if (i != -1) {
+            return i;
+        }
+        State canonical = keyToState.get(state.getStateKey());
+        if (canonical == null || canonical == state) {
+            return -1;
+        }
+        return identityIndexOf(canonical);
+    }
+
+    private int identityIndexOf(ModelAction action) {
+        ensureIndexed();
+        int i = action.storeIndex;
+        if (i >= 0 && i < actionSlots && actions[i] == action) {
+            return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(ModelAction action) {
+        int i = identityIndexOf(action);
+        if (i != -1) {
+            return i;
+        }
+        int si = indexOf(action.getState());
+        if (si == -1) {
+            return -1;
+        }
+        for (ModelAction a : states[si].getActions()) {
+            if (a != action && a.equals(action)) {
+                return identityIndexOf(a);
+            }
+        }
+        return -1;
+    }
+
+    private int allocateState(State state) {
+        int i;
+        if (freeStates.isEmpty()) {
+            i = stateSlots++;
+            if (i == states.length) {
+                int length = i << 1;
+                states = Arrays.copyOf(states, length);
+                outEdges = Arrays.copyOf(outEdges, length);
+                inEdges = Arrays.copyOf(inEdges, length);
+            }
+        } else {
+            i = freeStates.removeLast();
+        }
+        states[i] = state;
+        state.storeIndex = i;
+        return i;
+    }
+
+    private int allocateAction(ModelAction action) {
+        int i;
+        if (freeActions.isEmpty()) {
+            i = actionSlots++;
+            if (i == actions.length) {
+                int length = i << 1;
+                actions = Arrays.copyOf(actions, length);
+                actionEdges = Arrays.copyOf(actionEdges, length);
+            }
+        } else {
+            i = freeActions.removeLast();
+        }
+        actions[i] = action;
+        action.storeIndex = i;
+        return i;
+    }
+
+    private int allocateTransition(StateTransition edge) {
+        int i;
+        if (freeTransitions.isEmpty()) {
+            i = transitionSlots++;
+            if (i == transitions.length) {
+                transitions = Arrays.copyOf(transitions, i << 1);
+            }
+        } else {
+            i = freeTransitions.removeLast();
+        }
+        transitions[i] = edge;
+        edge.storeIndex = i;
+        transitionCount++;
+        return i;
+    }
+
+    private void freeTransition(int i) {
+        transitions[i].storeIndex = -1;
+        transitions[i] = null;
+        transitionCount--;
+        freeTransitions.add(i);
+    }
+
+    private static IntList getOrCreate(IntList[] lists, int i) {
+        IntList list = lists[i];
+        if (list == null) {
+            list = new IntList();
+            lists[i] = list;
+        }
+        return list;
+    }
+
+    @Override
+    void addState(State state) {
+        if (identityIndexOf(state) == -1) {
+            allocateState(state);
+        }
+    }
+
+    @Override
+    void removeState(State state, Collection<StateTransition> removed) {
+        int si = identityIndexOf(state);
+        if (si == -1) {
+            return;
+        }
+        IntList in = inEdges[si];
+        if (in != null) {
+            for (int k = 0; k < in.size(); k++) {
+                int ei = in.get(k);
+                StateTransition edge = transitions[ei];
+                removed.add(edge);
+                outEdges[indexOf(edge.source)].remove(ei);
+                actionEdges[indexOf(edge.action)].remove(ei);
+                freeTransition(ei);
+            }
+        }
+        IntList out = outEdges[si];
+        if (out != null) {
+            // self loops have been removed with in edges
+            for (int k = 0; k < out.size(); k++) {
+                int ei = out.get(k);
+                StateTransition edge = transitions[ei];
+                removed.add(edge);
+                inEdges[indexOf(edge.target)].remove(ei);
+                actionEdges[indexOf(edge.action)].remove(ei);
+                freeTransition(ei);
+            }
+        }
+        states[si] = null;
+        inEdges[si] = null;
+        outEdges[si] = null;
+        state.storeIndex = -1;
+        freeStates.add(si);
+    }
+
+    @Override
+    StateTransition findStateTransition(State source, ModelAction action, State target) {
+        int ai = indexOf(action);
+        if (ai == -1 || actionEdges[ai] == null) {
+            return null;
+        }
+        IntList ids = actionEdges[ai];
+        for (int k = 0; k < ids.size(); k++) {
+            StateTransition edge = transitions[ids.get(k)];
+            if (edge.target.equals(target) && edge.source.equals(source)) {
+                return edge;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    boolean addStateTransition(StateTransition edge) {
+        if (findStateTransition(edge.source, edge.action, edge.target) != null) {
+            return false;
+        }
+        int si = indexOf(edge.source);
+        if (si == -1) {
+            si = allocateState(edge.source);
+        }
+        int ti = indexOf(edge.target);
+        if (ti == -1) {
+            ti = allocateState(edge.target);
+        }
+        int ai = indexOf(edge.action);
+        if (ai == -1) {
+            ai = allocateAction(edge.action);
+        }
+        int ei = allocateTransition(edge);
+        getOrCreate(outEdges, si).add(ei);
+        getOrCreate(inEdges, ti).add(ei);
+        getOrCreate(actionEdges, ai).add(ei);
+        return true;
+    }
+
+    @Override
+    boolean containsStateTransition(StateTransition edge) {
+        ensureIndexed();
+        int i = edge.storeIndex;
+        if (i >= 0 && i < transitionSlots && transitions[i] == edge) {
+            return true;
+        }
+        return findStateTransition(edge.source, edge.action, edge.target) != null;
+    }
+
+    @Override
+    Collection<StateTransition> getStateTransitions() {
+        return new AbstractCollection<StateTransition>() {
+
+            @Override
+            public Iterator<StateTransition> iterator() {
+                return new Iterator<StateTransition>() {
+                    int next = advance(0);
+
+                    int advance(int i) {
+                        while (i < transitionSlots && transitions[i] == null) {
+                            i++;
+                        }
+                        return i;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < transitionSlots;
+                    }
+
+                    @Override
+                    public StateTransition next() {
+                        if (next >= transitionSlots) {
+                            throw new NoSuchElementException();
+                        }
+                        StateTransition edge = transitions[next];
+                        next = advance(next + 1);
+                        return edge;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException("remove");
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return transitionCount;
+            }
+        };
+    }
+
+    @Override
+    int getCountOfStateTransitions() {
+        return transitionCount;
+    }
+
+    private Set<StateTransition> toSet(IntList ids) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptySet();
+        }
+        return new TransitionSet(ids);
+    }
+
+    @Override
+    Set<StateTransition> getOutStateTransitions(State state) {
+        int si = indexOf(state);
+        if (si == -1) {
+            return Collections.emptySet();
+        }
+        return toSet(outEdges[si]);
+    }
+
+    @Override
+    Set<StateTransition> getInStateTransitions(State state) {
+        int si = indexOf(state);
+        if (si == -1) {
+            return Collections.emptySet();
+        }
+        return toSet(inEdges[si]);
+    }
+
+    @Override
+    Collection<StateTransition> getOutStateTransitions(ModelAction action) {
+        int ai = indexOf(action);
+        if (ai == -1) {
+            return Collections.emptySet();
+        }
+        return toSet(actionEdges[ai]);
+    }
+
+    /**
+     * Keep the semantics of the hash store: an action that once had a
+     * transition is still considered as having out transitions.
+     */
+    @Override
+    boolean hasOutStateTransitions(ModelAction action) {
+        int ai = indexOf(action);
+        return ai != -1 && actionEdges[ai] != null;
+    }
+
+    @Override
+    void addUnvisitedAction(ModelAction action) {
+        int ai = identityIndexOf(action);
+        if (ai == -1) {
+            ai = allocateAction(action);
+        }
+        if (!unvisitedActions.get(ai)) {
+            unvisitedActions.set(ai);
+            unvisitedCount++;
+        }
+    }
+
+    @Override
+    boolean removeUnvisitedAction(ModelAction action) {
+        int ai = indexOf(action);
+        if (ai == -1 || !unvisitedActions.get(ai)) {
+            return false;
+        }
+        unvisitedActions.clear(ai);
+        unvisitedCount--;
+        return true;
+    }
+
+    @Override
+    boolean containsUnvisitedAction(ModelAction action) {
+        int ai = indexOf(action);
+        return ai != -1 && unvisitedActions.get(ai);
+    }
+
+    @Override
+    void addVisitedAction(ModelAction action) {
+        int ai = indexOf(action);
+        if (ai == -1) {
+            ai = allocateAction(action);
+        }
+        if (!visitedActions.get(ai)) {
+            visitedActions.set(ai);
+            visitedCount++;
+        }
+    }
+
+    @Override
+    boolean containsVisitedAction(ModelAction action) {
+        int ai = indexOf(action);
+        return ai != -1 && visitedActions.get(ai);
+    }
+
+    @Override
+    void removeAction(ModelAction action) {
+        int ai = identityIndexOf(action);
+        if (ai == -1) {
+            return;
+        }
+        if (unvisitedActions.get(ai)) {
+            unvisitedActions.clear(ai);
+            unvisitedCount--;
+        }
+        if (visitedActions.get(ai)) {
+            visitedActions.clear(ai);
+            visitedCount--;
+        }
+        actions[ai] = null;
+        actionEdges[ai] = null;
+        action.storeIndex = -1;
+        freeActions.add(ai);
+    }
+
+    @Override
+    int getCountOfUnvisitedActions() {
+        return unvisitedCount;
+    }
+
+    @Override
+    int getCountOfVisitedActions() {
+        return visitedCount;
+    }
+}
@@ -65,4 +65,9 @@ public class Crash implements Serializable {
         jAction.put("stackTrace", this.stackTrace);
         return jAction;
     }
+
+    public static Crash fromJSON(JSONObject jCrash) throws JSONException {
+        return new Crash(jCrash.getString("processName"), jCrash.getInt("pid"), jCrash.optString("shortMsg", null),
+                jCrash.optString("longMsg", null), jCrash.getLong("timeMillis"), jCrash.optString("stackTrace", ""));
+    }
 }
@@ -37,4 +37,10 @@ public class CrashAction extends Action {
         jAction.put("crash", this.crash.toJSONObject());
         return jAction;
     }
+
+    public static Action fromJSON(JSONObject jAction) throws JSONException {
+        Action action = new CrashAction(Crash.fromJSON(jAction.getJSONObject("crash")));
+        action.setThrottle(jAction.optInt("throttle", 0));
+        return action;
+    }
 }
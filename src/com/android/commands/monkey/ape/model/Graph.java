@@ -15,10 +15,16 @@
  */
 package com.android.commands.monkey.ape.model;
 
+import static com.android.commands.monkey.ape.utils.Config.compactGraphStore;
+
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -34,6 +40,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import com.android.commands.monkey.ape.ActionFilter;
+import com.android.commands.monkey.ape.ScreenshotProfile;
 import com.android.commands.monkey.ape.Subsequence;
 import com.android.commands.monkey.ape.SubsequenceFilter;
 import com.android.commands.monkey.ape.naming.Name;
@@ -42,6 +49,7 @@ import com.android.commands.monkey.ape.tree.GUITree;
 import com.android.commands.monkey.ape.tree.GUITreeAction;
 import com.android.commands.monkey.ape.tree.GUITreeTransition;
 import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.ModelSerialization;
 import com.android.commands.monkey.ape.utils.Utils;
 
 public class Graph implements Serializable {
@@ -81,6 +89,59 @@ public class Graph implements Serializable {
         };
     }
 
+    /**
+     * Key of a cached state-to-state path query.
+     */
+    static final class PathQuery {
+        final State from;
+        final State to;
+        final boolean includeBack;
+        final int pathLength;
+
+        PathQuery(State from, State to, boolean includeBack, int pathLength) {
+            this.from = from;
+            this.to = to;
+            this.includeBack = includeBack;
+            this.pathLength = pathLength;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + from.hashCode();
+            result = prime * result + to.hashCode();
+            result = prime * result + (includeBack ? 1231 : 1237);
+            result = prime * result + pathLength;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof PathQuery))
+                return false;
+            PathQuery other = (PathQuery) obj;
+            return includeBack == other.includeBack && pathLength == other.pathLength && from.equals(other.from)
+                    && to.equals(other.to);
+        }
+    }
+
+    /**
+     * Result of a path query with the states whose transitions have been
+     * expanded to answer it.
+     */
+    static final class CachedPath {
+        final Subsequence path;
+        final Set<State> explored;
+
+        CachedPath(Subsequence path, Set<State> explored) {
+            this.path = path;
+            this.explored = explored;
+        }
+    }
+
     public static Set<State> targetsSet(Collection<StateTransition> edges) {
         Set<State> states = new HashSet<>();
         Iterator<State> it = targets(edges);
@@ -99,10 +160,7 @@ public class Graph implements Serializable {
     protected Map<String, State> idToState = new HashMap<>();
 
     private Map<String, ActivityNode> activities = new HashMap<String, ActivityNode>();
-    private Map<StateTransition, StateTransition> edges = new HashMap<StateTransition, StateTransition>();
-    private Map<State, Map<StateTransition, StateTransition>> stateToOutStateTransitions = new HashMap<>();
-    private Map<State, Map<StateTransition, StateTransition>> stateToInStateTransitions = new HashMap<>();
-    private Map<ModelAction, Map<StateTransition, StateTransition>> actionToOutStateTransitions = new HashMap<>();
+    private GraphStore store = compactGraphStore ? new CompactGraphStore(keyToState) : new HashGraphStore();
 
     private Set<State> entryStates = new HashSet<State>();
     private Set<State> cleanEntryStates = new HashSet<State>();
@@ -111,9 +169,6 @@ public class Graph implements Serializable {
 
     private Map<Naming, Set<State>> namingToStates = new HashMap<>();
 
-    private /* transient */ Set<ModelAction> unvisitedActions = new HashSet<>();
-    private /* transient */ Set<ModelAction> visitedActions = new HashSet<>();
-
     private transient List<StateTransition> stateTransitionHistory = new ArrayList<>();
     private List<GUITreeTransition> treeTransitionHistory = new ArrayList<>(100);
 
@@ -130,6 +185,58 @@ public class Graph implements Serializable {
 
     private boolean verbose = true;
 
+    private transient Map<State, StateTransition[]> sortedOutStateTransitions;
+    private transient Map<PathQuery, CachedPath> pathCache;
+    /**
+     * Cached path queries by the states they have explored. A change of the
+     * transitions of a state drops only the queries that have expanded its
+     * source or its target.
+     */
+    private transient Map<State, Set<PathQuery>> exploredPathQueries;
+    private transient int pathCacheHits;
+    private transient int pathCacheMisses;
+    private transient int pathCacheInvalidations;
+
+    /**
+     * Graphs saved before graph stores were introduced keep transitions and
+     * visited actions in fields of the graph, which are moved into a
+     * HashGraphStore.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        keyToState = (Map<StateKey, State>) fields.get("keyToState", null);
+        idToState = (Map<String, State>) fields.get("idToState", null);
+        activities = (Map<String, ActivityNode>) fields.get("activities", null);
+        store = (GraphStore) fields.get("store", null);
+        entryStates = (Set<State>) fields.get("entryStates", null);
+        cleanEntryStates = (Set<State>) fields.get("cleanEntryStates", null);
+        entryGUITrees = (Set<GUITree>) fields.get("entryGUITrees", null);
+        cleanEntryGUITrees = (Set<GUITree>) fields.get("cleanEntryGUITrees", null);
+        namingToStates = (Map<Naming, Set<State>>) fields.get("namingToStates", null);
+        treeTransitionHistory = (List<GUITreeTransition>) fields.get("treeTransitionHistory", null);
+        fireEvents = fields.get("fireEvents", false);
+        timestamp = fields.get("timestamp", 0);
+        stateCounter = fields.get("stateCounter", 0);
+        actionCounters = (ActionCounters) fields.get("actionCounters", null);
+        graphId = (String) fields.get("graphId", "g0");
+        nameToActions = (Map<String, Map<Name, Set<ModelAction>>>) fields.get("nameToActions", null);
+        verbose = fields.get("verbose", true);
+        if (store == null) {
+            if (fields.getObjectStreamClass().getField("edges") == null) {
+                throw new InvalidObjectException("Graph has neither a store nor transitions.");
+            }
+            store = new HashGraphStore((Map<StateTransition, StateTransition>) fields.get("edges", null),
+                    (Map<State, Map<StateTransition, StateTransition>>) fields.get("stateToOutStateTransitions", null),
+                    (Map<State, Map<StateTransition, StateTransition>>) fields.get("stateToInStateTransitions", null),
+                    (Map<ModelAction, Map<StateTransition, StateTransition>>) fields.get("actionToOutStateTransitions",
+                            null),
+                    (Set<ModelAction>) fields.get("unvisitedActions", null),
+                    (Set<ModelAction>) fields.get("visitedActions", null));
+        }
+        stateTransitionHistory = new ArrayList<>();
+    }
+
     public int size() {
         return keyToState.size();
     }
@@ -229,10 +336,15 @@ public class Graph implements Serializable {
     public void printStatistics() {
         Logger.format(
                 "GSTG(%s): activities (%d), states (%d), edges (%d), unvisited actions (%d), visited actions (%d)",
-                graphId, activities.size(), size(), edges.size(), unvisitedActions.size(), visitedActions.size());
+                graphId, activities.size(), size(), store.getCountOfStateTransitions(),
+                store.getCountOfUnvisitedActions(), store.getCountOfVisitedActions());
         for (ActivityNode an : this.activities.values()) {
             Logger.iformat("- %5.2f %3d %s", an.getVisitedRate(), an.getStates().size(), an);
         }
+        int queries = pathCacheHits + pathCacheMisses;
+        Logger.format("GSTG(%s): path cache hits (%d), misses (%d), hit rate (%.2f), invalidated (%d)", graphId,
+                pathCacheHits, pathCacheMisses, queries == 0 ? 0.0 : (double) pathCacheHits / queries,
+                pathCacheInvalidations);
     }
 
 
@@ -264,6 +376,7 @@ public class Graph implements Serializable {
                 check.dumpState();
                 throw new IllegalStateException("Impossible: two state has the same id: " + state.getGraphId());
             }
+            store.addState(state);
             addActivity(state);
             addActions(state);
             Utils.addToMapSet(namingToStates, state.getCurrentNaming(), state);
@@ -276,7 +389,7 @@ public class Graph implements Serializable {
         for (ModelAction action : state.getActions()) {
             action.setGraphId(graphId + "a" + actionCounters.getTotal());
             actionCounters.logEvent(action.getType());
-            unvisitedActions.add(action);
+            store.addUnvisitedAction(action);
             if (action.requireTarget()) {
                 Utils.addToMapSet(actions, action.getTarget(), action);
             }
@@ -311,7 +424,7 @@ public class Graph implements Serializable {
         if (fireEvents == false) {
             return;
         }
-        for (GraphListener l : listeners) {
+        for (GraphListener l : getListeners()) {
             l.onAddNode(node);
         }
     }
@@ -320,7 +433,7 @@ public class Graph implements Serializable {
         if (fireEvents == false) {
             return;
         }
-        for (GraphListener l : listeners) {
+        for (GraphListener l : getListeners()) {
             l.onVisitStateTransition(edge);
         }
     }
@@ -438,7 +551,8 @@ public class Graph implements Serializable {
         StateTransition edge = null;
         if (source != null) {
             edge = new StateTransition(source, action, target);
-            added = Utils.addToMapMapIfAbsent(actionToOutStateTransitions, action, edge, edge);
+            int count = store.getCountOfStateTransitions();
+            added = store.addStateTransition(edge);
             if (verbose) {
                 Logger.println("=== Adding edge...");
                 Logger.println("    Source: " + source);
@@ -446,22 +560,15 @@ public class Graph implements Serializable {
                 Logger.println("    Target: " + target);
                 Logger.println("    Add target result: " + added);
             }
-            if (added != Utils.addToMapMapIfAbsent(stateToOutStateTransitions, source, edge, edge)) {
-                throw new IllegalStateException("Sanity check failed");
-            }
-            if (added != Utils.addToMapMapIfAbsent(stateToInStateTransitions, target, edge, edge)) {
-                throw new IllegalStateException("Sanity check failed");
-            }
             if (added) {
-                edge.setGraphId(graphId + "e" + edges.size());
-                Utils.putIfAbsent(edges, edge, edge);
-                if (actionToOutStateTransitions.get(action).size() == 1) {
+                edge.setGraphId(graphId + "e" + count);
+                if (store.getOutStateTransitions(action).size() == 1) {
                     edge.setType(StateTransitionVisitType.NEW_ACTION);
                 } else {
                     edge.setType(StateTransitionVisitType.NEW_ACTION_TARGET);
                 }
             } else {
-                StateTransition existing = edges.get(edge);
+                StateTransition existing = store.findStateTransition(source, action, target);
                 if (existing == null || existing == edge) {
                     throw new IllegalStateException();
                 }
@@ -470,6 +577,8 @@ public class Graph implements Serializable {
             }
         }
         timestamp++;
+        invalidatePaths(source);
+        invalidatePaths(target);
         if (verbose) {
             printStatistics();
             Logger.format("GSTG is %supdated.", (added ? "" : "NOT "));
@@ -479,35 +588,25 @@ public class Graph implements Serializable {
     }
 
     public void weakenStateTransition(State source, ModelAction action, State target) {
-        StateTransition edge = this.edges.get(new StateTransition(source, action, target));
+        StateTransition edge = store.findStateTransition(source, action, target);
         if (edge == null) {
             throw new IllegalArgumentException("Cannot update a non-existing edge");
         }
         edge.weaken();
+        invalidatePaths(source);
+        invalidatePaths(target);
     }
 
     public Set<StateTransition> getOutStateTransitions(State state) {
-        Map<StateTransition, StateTransition> ret = stateToOutStateTransitions.get(state);
-        if (ret == null) {
-            return Collections.emptySet();
-        }
-        return ret.keySet();
+        return store.getOutStateTransitions(state);
     }
 
     public Collection<StateTransition> getOutStateTransitions(ModelAction action) {
-        Map<StateTransition, StateTransition> ret = actionToOutStateTransitions.get(action);
-        if (ret == null) {
-            return Collections.emptySet();
-        }
-        return ret.keySet();
+        return store.getOutStateTransitions(action);
     }
 
     public Set<StateTransition> getInStateTransitions(State state) {
-        Map<StateTransition, StateTransition> ret = stateToInStateTransitions.get(state);
-        if (ret == null) {
-            return Collections.emptySet();
-        }
-        return ret.keySet();
+        return store.getInStateTransitions(state);
     }
 
     public Subsequence findShortestPath(SubsequenceFilter filter, State current) {
@@ -566,17 +665,17 @@ public class Graph implements Serializable {
             return;
         }
         if (action.isUnvisited()) {
-            if (!this.unvisitedActions.remove(action)) {
+            if (!store.removeUnvisitedAction(action)) {
                 throw new RuntimeException("sanity check failed, action should be added " + action);
             }
             action.visitedAt(timestamp);
-            this.visitedActions.add(action);
-        } else if (visitedActions.contains(action)) {
+            store.addVisitedAction(action);
+        } else if (store.containsVisitedAction(action)) {
             action.visitedAt(timestamp);
         } else {
             Logger.println("Untracked action: " + action);
             Logger.println("State is " + action.getState());
-            if (this.unvisitedActions.contains(action)) {
+            if (store.containsUnvisitedAction(action)) {
                 throw new RuntimeException("Unvisited actions should not be marked visited.");
             }
             throw new RuntimeException("sanity check failed");
@@ -589,7 +688,7 @@ public class Graph implements Serializable {
     }
 
     private void markVisited(StateTransition edge, int timestamp) {
-        if (!edges.containsKey(edge)) {
+        if (!store.containsStateTransition(edge)) {
             throw new RuntimeException("Sanity check failed!");
         }
         edge.visitedAt(timestamp);
@@ -606,7 +705,7 @@ public class Graph implements Serializable {
             String stateID = sd.getGraphId();
             pw.format("\t%s [label=\"%s\"];\n", stateID, stateID);
         }
-        for (StateTransition edge : edges.keySet()) {
+        for (StateTransition edge : store.getStateTransitions()) {
             String sourceID = edge.source.getGraphId();
             String targetID = edge.target.getGraphId();
             ModelAction action = edge.action;
@@ -646,7 +745,39 @@ public class Graph implements Serializable {
         return String.format("#%02X%02X%02X", r, g, b);
     }
 
-    public void printVis(PrintWriter pw) {
+    /**
+     * Print settle latencies observed per activity and per action.
+     */
+    public void printLatencies(PrintWriter pw) {
+        pw.println("# activity count timeouts mean p50 p90 p99 max");
+        for (ActivityNode node : activities.values()) {
+            LatencyEstimate latency = node.getLatency();
+            if (latency.getCount() == 0) {
+                continue;
+            }
+            pw.format("%s %d %d %.1f %d %d %d %d\n", node.activity, latency.getCount(), latency.getTimeouts(),
+                    latency.getMean(), latency.getValueAtPercentile(50), latency.getValueAtPercentile(90),
+                    latency.getValueAtPercentile(99), latency.getMax());
+        }
+        pw.println("# action count timeouts mean stddev upper max");
+        for (State state : getStates()) {
+            for (ModelAction action : state.getActions()) {
+                if (!action.hasLatency()) {
+                    continue;
+                }
+                LatencyEstimate latency = action.getLatency();
+                pw.format("%s@%s %d %d %.1f %.1f %d %d\n", action.getGraphId(), action.getType(),
+                        latency.getCount(), latency.getTimeouts(), latency.getMean(),
+                        latency.getStandardDeviation(), latency.getUpperBound(), latency.getMax());
+            }
+        }
+    }
+
+    /**
+     * @param screenshots
+     *            skipped screenshot files mapped to the written ones
+     */
+    public void printVis(PrintWriter pw, Map<String, String> screenshots) {
         int maxVisited = Integer.MIN_VALUE;
         for (State state : keyToState.values()) {
             if (state.getVisitedCount() > maxVisited) {
@@ -660,7 +791,7 @@ public class Graph implements Serializable {
             String stateID = sd.getGraphId();
             pw.format(
                     "\t{ id: \"%s\", label: \"%s\", title: \"%s\", screenURL: \"%s\", color: {background: \"%s\", border: \"#000000\"}},\n",
-                    stateID, stateID, getNodeTitle(sd), String.format("step-%d.png", sd.getFirstVisitedTimestamp()),
+                    stateID, stateID, getNodeTitle(sd), ScreenshotProfile.resolve(screenshots, ScreenshotProfile.getStepScreenshotName(sd.getFirstVisitedTimestamp())),
                     getColor(sd.getVisitedCount(), 0, maxVisited));
         }
         pw.println("]);");
@@ -668,7 +799,7 @@ public class Graph implements Serializable {
         int minStrength = Integer.MAX_VALUE;
         int maxStrength = Integer.MIN_VALUE;
         maxVisited = Integer.MIN_VALUE;
-        for (StateTransition e : edges.keySet()) {
+        for (StateTransition e : store.getStateTransitions()) {
             if (e.getStrength() > maxStrength) {
                 maxStrength = e.getStrength();
             }
@@ -681,7 +812,7 @@ public class Graph implements Serializable {
         }
 
         pw.println("var edges = new vis.DataSet([");
-        for (StateTransition edge : edges.keySet()) {
+        for (StateTransition edge : store.getStateTransitions()) {
             String sourceID = edge.source.getGraphId();
             String targetID = edge.target.getGraphId();
             ModelAction action = edge.action;
@@ -762,12 +893,8 @@ public class Graph implements Serializable {
     }
 
     public int getWeakOutStateTransitions(State state, int threshold) {
-        Map<StateTransition, StateTransition> ret = stateToOutStateTransitions.get(state);
-        if (ret == null) {
-            return 0;
-        }
         int count = 0;
-        for (StateTransition edge : ret.keySet()) {
+        for (StateTransition edge : store.getOutStateTransitions(state)) {
             if (edge.getStrength() < threshold) {
                 count++;
             }
@@ -776,12 +903,8 @@ public class Graph implements Serializable {
     }
 
     public int getWeakOutStateTransitions(State state) {
-        Map<StateTransition, StateTransition> ret = stateToOutStateTransitions.get(state);
-        if (ret == null) {
-            return 0;
-        }
         int count = 0;
-        for (StateTransition edge : ret.keySet()) {
+        for (StateTransition edge : store.getOutStateTransitions(state)) {
             if (!edge.isStrong()) {
                 count++;
             }
@@ -809,20 +932,25 @@ public class Graph implements Serializable {
 
     public void findShortestPaths(List<Subsequence> selectedPaths, State current, SubsequenceFilter filter,
             int pathLength) {
-        Set<StateTransition> edges = getOutStateTransitions(current);
-        if (edges.isEmpty()) {
+        StateTransition[] edges = getSortedOutStateTransitions(current);
+        if (edges.length == 0) {
             return;
         }
 
         Set<State> visited = new HashSet<State>();
         visited.add(current);
-        LinkedList<Subsequence> pathQueue = new LinkedList<>();
+        ArrayDeque<Subsequence> pathQueue = new ArrayDeque<>();
+        pathQueue.addLast(new Subsequence(current));
         // n-step search
         // Do a BFS to find the shortest path
-        // avoid unnecessary leading recursion
-        {
-            Subsequence path = new Subsequence(current);
-            for (StateTransition edge : sortStateTransitionsByLastVisitedCount(edges)) {
+        while (!pathQueue.isEmpty()) {
+            Subsequence path = pathQueue.removeFirst();
+            if (!path.isEmpty() && path.size() == pathLength) {
+                path.close();
+                continue;
+            }
+            State last = path.isEmpty() ? current : path.getLastState();
+            for (StateTransition edge : getSortedOutStateTransitions(last)) {
                 if (visited.contains(edge.target)) {
                     continue;
                 }
@@ -838,88 +966,223 @@ public class Graph implements Serializable {
                 }
             }
         }
-        while (!pathQueue.isEmpty()) {
-            Subsequence path = pathQueue.removeFirst();
-            if (path.size() == pathLength) {
-                path.close();
-                continue;
-            }
-            Set<StateTransition> outStateTransitions = getOutStateTransitions(path.getLastState());
-            if (outStateTransitions.isEmpty()) {
+    }
+
+    /**
+     * Out transitions sorted by the last visited timestamp, cached until the
+     * transitions of the state are updated.
+     */
+    private StateTransition[] getSortedOutStateTransitions(State state) {
+        checkPathCache();
+        StateTransition[] results = sortedOutStateTransitions.get(state);
+        if (results == null) {
+            Set<StateTransition> edges = getOutStateTransitions(state);
+            results = edges.toArray(new StateTransition[edges.size()]);
+            Arrays.sort(results, LAST_VISIT_COUNT_COMPARATOR);
+            sortedOutStateTransitions.put(state, results);
+        }
+        return results;
+    }
+
+    private void checkPathCache() {
+        if (pathCache == null) {
+            pathCache = new HashMap<>();
+            sortedOutStateTransitions = new HashMap<>();
+            exploredPathQueries = new HashMap<>();
+        }
+    }
+
+    /**
+     * Drop the cached queries that have expanded the state and its sorted out
+     * transitions.
+     */
+    private void invalidatePaths(State state) {
+        if (pathCache == null) {
+            return;
+        }
+        sortedOutStateTransitions.remove(state);
+        Set<PathQuery> queries = exploredPathQueries.remove(state);
+        if (queries == null) {
+            return;
+        }
+        for (PathQuery query : queries) {
+            CachedPath cached = pathCache.remove(query);
+            if (cached == null) {
                 continue;
             }
-            for (StateTransition edge : sortStateTransitionsByLastVisitedCount(outStateTransitions)) {
-                if (visited.contains(edge.target)) {
-                    continue;
-                }
-                if (filter.extend(path, edge)) {
-                    Subsequence newPath = new Subsequence(path, edge);
-                    visited.add(edge.target);
-                    if (filter.include(newPath)) {
-                        selectedPaths.add(newPath);
-                        newPath.close();
-                        continue;
+            pathCacheInvalidations++;
+            for (State explored : cached.explored) {
+                Set<PathQuery> others = exploredPathQueries.get(explored);
+                if (others != null) {
+                    others.remove(query);
+                    if (others.isEmpty()) {
+                        exploredPathQueries.remove(explored);
                     }
-                    pathQueue.addLast(newPath);
                 }
             }
         }
     }
 
+    /**
+     * Drop cached path queries through the transitions of the action, e.g.,
+     * after the action has been enabled or disabled.
+     */
+    public void invalidatePathCache(ModelAction action) {
+        invalidatePaths(action.getState());
+        for (StateTransition edge : store.getOutStateTransitions(action)) {
+            invalidatePaths(edge.target);
+        }
+    }
+
+    /**
+     * Drop all cached path queries.
+     */
+    public void invalidatePathCache() {
+        if (pathCache == null) {
+            return;
+        }
+        pathCacheInvalidations += pathCache.size();
+        pathCache.clear();
+        sortedOutStateTransitions.clear();
+        exploredPathQueries.clear();
+    }
 
-    public boolean isReachable(Collection<State> from, State to) {
+    private static boolean isTraversable(StateTransition edge, boolean validOnly, boolean includeBack) {
+        if (!edge.isStrong()) {
+            return false;
+        }
+        if (!validOnly) {
+            return true;
+        }
+        if (!ActionFilter.ENABLED_VALID.include(edge.action)) {
+            return false;
+        }
+        return includeBack || !edge.action.isBack();
+    }
+
+    /**
+     * Bidirectional BFS over strong transitions, always expanding the smaller
+     * frontier.
+     */
+    private boolean isReachable(Collection<State> from, State to, boolean validOnly, boolean includeBack,
+            int maxLength, Set<State> explored) {
         if (from.contains(to)) {
             return true;
         }
-        Set<State> visited = new HashSet<State>();
-        visited.addAll(from);
-        LinkedList<State> queue = new LinkedList<>();
-        queue.addAll(from);
-        while (!queue.isEmpty()) {
-            State current = queue.removeFirst();
-            Set<StateTransition> outStateTransitions = getOutStateTransitions(current);
-            if (outStateTransitions.isEmpty()) {
-                continue;
-            }
-            for (StateTransition edge : outStateTransitions) {
-                if (visited.contains(edge.target)) {
-                    continue;
+        Set<State> forward = new HashSet<State>(from);
+        Set<State> backward = new HashSet<State>();
+        backward.add(to);
+        List<State> forwardFrontier = new ArrayList<State>(from);
+        List<State> backwardFrontier = new ArrayList<State>();
+        backwardFrontier.add(to);
+        int length = 0;
+        while (!forwardFrontier.isEmpty() && !backwardFrontier.isEmpty() && length < maxLength) {
+            length++;
+            List<State> next = new ArrayList<State>();
+            if (forwardFrontier.size() <= backwardFrontier.size()) {
+                for (State state : forwardFrontier) {
+                    explored.add(state);
+                    for (StateTransition edge : getOutStateTransitions(state)) {
+                        if (!isTraversable(edge, validOnly, includeBack)) {
+                            continue;
+                        }
+                        if (backward.contains(edge.target)) {
+                            return true;
+                        }
+                        if (forward.add(edge.target)) {
+                            next.add(edge.target);
+                        }
+                    }
                 }
-                if (edge.isStrong()) {
-                    if (edge.target == to) {
-                        return true;
+                forwardFrontier = next;
+            } else {
+                for (State state : backwardFrontier) {
+                    explored.add(state);
+                    for (StateTransition edge : getInStateTransitions(state)) {
+                        if (!isTraversable(edge, validOnly, includeBack)) {
+                            continue;
+                        }
+                        if (forward.contains(edge.source)) {
+                            return true;
+                        }
+                        if (backward.add(edge.source)) {
+                            next.add(edge.source);
+                        }
                     }
-                    queue.add(edge.target);
-                    visited.add(edge.target);
                 }
+                backwardFrontier = next;
             }
         }
         return false;
     }
 
-    public void moveToState(List<Subsequence> selectedPaths, State current, final State end, final boolean includeBack, int pathLength) {
-        SubsequenceFilter strongFilter = new SubsequenceFilter() {
-            @Override
-            public boolean include(Subsequence path) {
-                if (path.isEmpty()) {
-                    return false;
-                }
-                return end.equals(path.getLastState());
+    public boolean isReachable(State from, State to) {
+        return isReachable(Collections.singleton(from), to);
+    }
+
+    public boolean isReachable(Collection<State> from, State to) {
+        return isReachable(from, to, false, true, Integer.MAX_VALUE, new HashSet<State>());
+    }
+
+    public void moveToState(List<Subsequence> selectedPaths, State current, State end, boolean includeBack, int pathLength) {
+        checkPathCache();
+        PathQuery query = new PathQuery(current, end, includeBack, pathLength);
+        CachedPath cached = pathCache.get(query);
+        if (cached == null) {
+            pathCacheMisses++;
+            Set<State> explored = new HashSet<State>();
+            cached = new CachedPath(findPath(current, end, includeBack, pathLength, explored), explored);
+            pathCache.put(query, cached);
+            for (State state : explored) {
+                Utils.addToMapSet(exploredPathQueries, state, query);
             }
+        } else {
+            pathCacheHits++;
+        }
+        if (cached.path != null) {
+            selectedPaths.add(cached.path);
+        }
+    }
 
-            @Override
-            public boolean extend(Subsequence path, StateTransition edge) {
-                if (!ActionFilter.ENABLED_VALID.include(edge.action)) {
-                    return false;
+    /**
+     * The forward BFS of {@link #findShortestPaths} restricted to strong
+     * transitions, stopping at the first path to the end state, which is the
+     * only one the BFS can find. Unreachable states are rejected by a cheaper
+     * bidirectional search first.
+     */
+    private Subsequence findPath(State current, State end, boolean includeBack, int pathLength,
+            Set<State> explored) {
+        if (current.equals(end)) {
+            return null;
+        }
+        if (!isReachable(Collections.singleton(current), end, true, includeBack, Math.max(1, pathLength), explored)) {
+            return null;
+        }
+        Set<State> visited = new HashSet<State>();
+        visited.add(current);
+        ArrayDeque<Subsequence> pathQueue = new ArrayDeque<>();
+        pathQueue.addLast(new Subsequence(current));
+        while (!pathQueue.isEmpty()) {
+            Subsequence path = pathQueue.removeFirst();
+            if (!path.isEmpty() && path.size() == pathLength) {
+                continue;
+            }
+            State last = path.isEmpty() ? current : path.getLastState();
+            explored.add(last);
+            for (StateTransition edge : getSortedOutStateTransitions(last)) {
+                if (visited.contains(edge.target) || !isTraversable(edge, true, includeBack)) {
+                    continue;
                 }
-                if (!includeBack && edge.action.isBack()) {
-                    return false;
+                Subsequence newPath = new Subsequence(path, edge);
+                if (end.equals(edge.target)) {
+                    newPath.close();
+                    return newPath;
                 }
-                return edge.isStrong();
+                visited.add(edge.target);
+                pathQueue.addLast(newPath);
             }
-        };
-
-        findShortestPaths(selectedPaths, current, strongFilter, pathLength);
+        }
+        return null;
     }
 
     /**
@@ -1095,11 +1358,7 @@ public class Graph implements Serializable {
      * @return
      */
     public int getCountOfOutStateTransitions(State state) {
-        Map<StateTransition, StateTransition> edges = this.stateToOutStateTransitions.get(state);
-        if (edges == null) {
-            return 0;
-        }
-        return edges.size();
+        return store.getOutStateTransitions(state).size();
     }
 
     /**
@@ -1111,7 +1370,7 @@ public class Graph implements Serializable {
     public int getCountOfOutActions(State state) {
         int count = 0;
         for (ModelAction action : state.getActions()) {
-            if (this.actionToOutStateTransitions.containsKey(action)) {
+            if (store.hasOutStateTransitions(action)) {
                 count++;
             }
         }
@@ -1119,7 +1378,7 @@ public class Graph implements Serializable {
     }
 
     public StateTransition findStateTransition(State source, ModelAction action, State target) {
-        return this.edges.get(new StateTransition(source, action, target));
+        return store.findStateTransition(source, action, target);
     }
 
     public StateTransition getStateTransition(State source, ModelAction action, State target) {
@@ -1131,8 +1390,20 @@ public class Graph implements Serializable {
     }
 
     public static Graph readGraph(String modelFile) {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(modelFile))) {
-            return (Graph) ois.readObject();
+        if (modelFile.endsWith(".ckpt")) {
+            Model model = ModelCheckpoint.load(new File(modelFile));
+            if (model != null) {
+                return model.getGraph();
+            }
+            Logger.println("Fail to load graph from " + modelFile);
+            return new Graph();
+        }
+        try (FileInputStream in = new FileInputStream(modelFile)) {
+            Object object = ModelSerialization.read(in);
+            if (object instanceof Model) {
+                return ((Model) object).getGraph();
+            }
+            return (Graph) object;
         } catch (Exception e) {
             e.printStackTrace();
             Logger.println("Fail to load graph from " + modelFile);
@@ -1141,12 +1412,12 @@ public class Graph implements Serializable {
     }
 
     public int getCountOfUnvisitedActions() {
-        return this.unvisitedActions.size();
+        return store.getCountOfUnvisitedActions();
     }
 
     public void printStateTransitions() {
-        StateTransition[] edges = new StateTransition[this.edges.size()];
-        edges = this.edges.keySet().toArray(edges);
+        StateTransition[] edges = new StateTransition[store.getCountOfStateTransitions()];
+        edges = store.getStateTransitions().toArray(edges);
         Arrays.sort(edges, VISIT_COUNT_COMPARATOR);
         for (int i = edges.length - 1, ii = 1; i >= 0; i--, ii++) {
             StateTransition edge = edges[i];
@@ -1172,7 +1443,7 @@ public class Graph implements Serializable {
         if (st == null) {
             throw new IllegalStateException("Invalid tree transition");
         }
-        if (!edges.containsKey(st)) {
+        if (!store.containsStateTransition(st)) {
             throw new IllegalStateException("Dangling tree transition");
         }
         return st;
@@ -1195,35 +1466,11 @@ public class Graph implements Serializable {
 
     void remove(State state, Collection<StateTransition> removed) {
         Logger.dformat("> Removing state %s", state);
-        {
-            Map<StateTransition, StateTransition> inStateTransitions = this.stateToInStateTransitions.remove(state);
-            if (inStateTransitions != null && inStateTransitions.size() > 0) {
-                Collection<StateTransition> temp = inStateTransitions.values();
-                removed.addAll(temp);
-                for (StateTransition edge : temp) {
-                    this.edges.remove(edge);
-                    State source = edge.getSource();
-                    ModelAction action = edge.getAction();
-                    Utils.removeFromMapMap(this.actionToOutStateTransitions, action, edge);
-                    Utils.removeFromMapMap(this.stateToOutStateTransitions, source, edge);
-                    Utils.removeFromMapMap(this.stateToInStateTransitions, edge.getTarget(), edge);
-                }
-            }
-        }
-        {
-            Map<StateTransition, StateTransition> outStateTransitions = this.stateToOutStateTransitions.remove(state);
-            if (outStateTransitions != null && outStateTransitions.size() > 0) {
-                Collection<StateTransition> temp = outStateTransitions.values();
-                removed.addAll(temp);
-                for (StateTransition edge : temp) {
-                    this.edges.remove(edge);
-                    State target = edge.getTarget();
-                    ModelAction action = edge.getAction();
-                    Utils.removeFromMapMap(this.actionToOutStateTransitions, action, edge);
-                    Utils.removeFromMapMap(this.stateToInStateTransitions, target, edge);
-                    Utils.removeFromMapMap(this.stateToOutStateTransitions, edge.getSource(), edge);
-                }
-            }
+        store.removeState(state, removed);
+        invalidatePaths(state);
+        for (StateTransition edge : removed) {
+            invalidatePaths(edge.source);
+            invalidatePaths(edge.target);
         }
         {
             ActivityNode an = this.getActivityNode(state.getActivity());
@@ -1232,8 +1479,7 @@ public class Graph implements Serializable {
         {
             Map<Name, Set<ModelAction>> actions = Utils.getMapFromMap(nameToActions, state.getActivity());
             for (ModelAction action : state.getActions()) {
-                this.unvisitedActions.remove(action);
-                this.visitedActions.remove(action);
+                store.removeAction(action);
                 if (action.requireTarget()) {
                     Utils.removeFromMapSet(actions, action.getTarget(), action);
                     if (actions.get(action.getTarget()).isEmpty()) {
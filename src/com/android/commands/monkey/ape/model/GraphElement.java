@@ -15,6 +15,8 @@
  */
 package com.android.commands.monkey.ape.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 public class GraphElement implements Serializable {
@@ -29,6 +31,12 @@ public class GraphElement implements Serializable {
 
     protected String id = null;
 
+    /**
+     * Slot of this element in a {@link CompactGraphStore}, -1 if untracked.
+     * Restored by the store after deserialization.
+     */
+    transient int storeIndex = -1;
+
     public String getGraphId() {
         if (id == null) {
             return "";
@@ -44,6 +52,11 @@ public class GraphElement implements Serializable {
         this.id = id;
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        storeIndex = -1;
+    }
+
     public boolean isUnvisited() {
         return firstVisitTimestamp == -1;
     }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.model;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Adjacency and action bookkeeping of a {@link Graph}.
+ * 
+ * @author txgu
+ *
+ */
+abstract class GraphStore implements Serializable {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 1L;
+
+    abstract void addState(State state);
+
+    /**
+     * Remove the state and all its in and out transitions.
+     * @param state
+     * @param removed collect removed transitions
+     */
+    abstract void removeState(State state, Collection<StateTransition> removed);
+
+    abstract StateTransition findStateTransition(State source, ModelAction action, State target);
+
+    /**
+     * @param edge
+     * @return false if an equivalent transition exists
+     */
+    abstract boolean addStateTransition(StateTransition edge);
+
+    abstract boolean containsStateTransition(StateTransition edge);
+
+    abstract Collection<StateTransition> getStateTransitions();
+
+    abstract int getCountOfStateTransitions();
+
+    abstract Set<StateTransition> getOutStateTransitions(State state);
+
+    abstract Set<StateTransition> getInStateTransitions(State state);
+
+    abstract Collection<StateTransition> getOutStateTransitions(ModelAction action);
+
+    abstract boolean hasOutStateTransitions(ModelAction action);
+
+    abstract void addUnvisitedAction(ModelAction action);
+
+    abstract boolean removeUnvisitedAction(ModelAction action);
+
+    abstract boolean containsUnvisitedAction(ModelAction action);
+
+    abstract void addVisitedAction(ModelAction action);
+
+    abstract boolean containsVisitedAction(ModelAction action);
+
+    abstract void removeAction(ModelAction action);
+
+    abstract int getCountOfUnvisitedActions();
+
+    abstract int getCountOfVisitedActions();
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.model;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.android.commands.monkey.ape.utils.Utils;
+
+/**
+ * The default store backed by hash maps.
+ * 
+ * @author txgu
+ *
+ */
+class HashGraphStore extends GraphStore {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 1L;
+
+    private Map<StateTransition, StateTransition> edges = new HashMap<StateTransition, StateTransition>();
+    private Map<State, Map<StateTransition, StateTransition>> stateToOutStateTransitions = new HashMap<>();
+    private Map<State, Map<StateTransition, StateTransition>> stateToInStateTransitions = new HashMap<>();
+    private Map<ModelAction, Map<StateTransition, StateTransition>> actionToOutStateTransitions = new HashMap<>();
+
+    private Set<ModelAction> unvisitedActions = new HashSet<>();
+    private Set<ModelAction> visitedActions = new HashSet<>();
+
+    HashGraphStore() {
+    }
+
+    /**
+     * Adopt the maps of a graph saved before graph stores were introduced.
+     * Missing maps are left empty.
+     */
+    HashGraphStore(Map<StateTransition, StateTransition> edges,
+            Map<State, Map<StateTransition, StateTransition>> stateToOutStateTransitions,
+            Map<State, Map<StateTransition, StateTransition>> stateToInStateTransitions,
+            Map<ModelAction, Map<StateTransition, StateTransition>> actionToOutStateTransitions,
+            Set<ModelAction> unvisitedActions, Set<ModelAction> visitedActions) {
+        if (edges != null) {
+            this.edges = edges;
+        }
+        if (stateToOutStateTransitions != null) {
+            this.stateToOutStateTransitions = stateToOutStateTransitions;
+        }
+        if (stateToInStateTransitions != null) {
+            this.stateToInStateTransitions = stateToInStateTransitions;
+        }
+        if (actionToOutStateTransitions != null) {
+            this.actionToOutStateTransitions = actionToOutStateTransitions;
+        }
+        if (unvisitedActions != null) {
+            this.unvisitedActions = unvisitedActions;
+        }
+        if (visitedActions != null) {
+            this.visitedActions = visitedActions;
+        }
+    }
+
+    @Override
+    void addState(State state) {
+    }
+
+    @Override
+    void removeState(State state, Collection<StateTransition> removed) {
+        {
+            Map<StateTransition, StateTransition> inStateTransitions = this.stateToInStateTransitions.remove(state);
+            if (inStateTransitions != null && inStateTransitions.size() > 0) {
+                Collection<StateTransition> temp = inStateTransitions.values();
+                removed.addAll(temp);
+                for (StateTransition edge : temp) {
+                    this.edges.remove(edge);
+                    State source = edge.getSource();
+                    ModelAction action = edge.getAction();
+                    Utils.removeFromMapMap(this.actionToOutStateTransitions, action, edge);
+                    Utils.removeFromMapMap(this.stateToOutStateTransitions, source, edge);
+                    Utils.removeFromMapMap(this.stateToInStateTransitions, edge.getTarget(), edge);
+                }
+            }
+        }
+        {
+            Map<StateTransition, StateTransition> outStateTransitions = this.stateToOutStateTransitions.remove(state);
+            if (outStateTransitions != null && outStateTransitions.size() > 0) {
+                Collection<StateTransition> temp = outStateTransitions.values();
+                removed.addAll(temp);
+                for (StateTransition edge : temp) {
+                    this.edges.remove(edge);
+                    State target = edge.getTarget();
+                    ModelAction action = edge.getAction();
+                    Utils.removeFromMapMap(this.actionToOutStateTransitions, action, edge);
+                    Utils.removeFromMapMap(this.stateToInStateTransitions, target, edge);
+                    Utils.removeFromMapMap(this.stateToOutStateTransitions, edge.getSource(), edge);
+                }
+            }
+        }
+    }
+
+    @Override
+    StateTransition findStateTransition(State source, ModelAction action, State target) {
+        return this.edges.get(new StateTransition(source, action, target));
+    }
+
+    @Override
+    boolean addStateTransition(StateTransition edge) {
+        boolean added = Utils.addToMapMapIfAbsent(actionToOutStateTransitions, edge.action, edge, edge);
+        if (added != Utils.addToMapMapIfAbsent(stateToOutStateTransitions, edge.source, edge, edge)) {
+            throw new IllegalStateException("Sanity check failed");
+        }
+        if (added != Utils.addToMapMapIfAbsent(stateToInStateTransitions, edge.target, edge, edge)) {
+            throw new IllegalStateException("Sanity check failed");
+        }
+        if (added) {
+            Utils.putIfAbsent(edges, edge, edge);
+        }
+        return added;
+    }
+
+    @Override
+    boolean containsStateTransition(StateTransition edge) {
+        return edges.containsKey(edge);
+    }
+
+    @Override
+    Collection<StateTransition> getStateTransitions() {
+        return edges.keySet();
+    }
+
+    @Override
+    int getCountOfStateTransitions() {
+        return edges.size();
+    }
+
+    @Override
+    Set<StateTransition> getOutStateTransitions(State state) {
+        Map<StateTransition, StateTransition> ret = stateToOutStateTransitions.get(state);
+        if (ret == null) {
+            return Collections.emptySet();
+        }
+        return ret.keySet();
+    }
+
+    @Override
+    Set<StateTransition> getInStateTransitions(State state) {
+        Map<StateTransition, StateTransition> ret = stateToInStateTransitions.get(state);
+        if (ret == null) {
+            return Collections.emptySet();
+        }
+        return ret.keySet();
+    }
+
+    @Override
+    Collection<StateTransition> getOutStateTransitions(ModelAction action) {
+        Map<StateTransition, StateTransition> ret = actionToOutStateTransitions.get(action);
+        if (ret == null) {
+            return Collections.emptySet();
+        }
+        return ret.keySet();
+    }
+
+    @Override
+    boolean hasOutStateTransitions(ModelAction action) {
+        return actionToOutStateTransitions.containsKey(action);
+    }
+
+    @Override
+    void addUnvisitedAction(ModelAction action) {
+        unvisitedActions.add(action);
+    }
+
+    @Override
+    boolean removeUnvisitedAction(ModelAction action) {
+        return unvisitedActions.remove(action);
+    }
+
+    @Override
+    boolean containsUnvisitedAction(ModelAction action) {
+        return unvisitedActions.contains(action);
+    }
+
+    @Override
+    void addVisitedAction(ModelAction action) {
+        visitedActions.add(action);
+    }
+
+    @Override
+    boolean containsVisitedAction(ModelAction action) {
+        return visitedActions.contains(action);
+    }
+
+    @Override
+    void removeAction(ModelAction action) {
+        unvisitedActions.remove(action);
+        visitedActions.remove(action);
+    }
+
+    @Override
+    int getCountOfUnvisitedActions() {
+        return unvisitedActions.size();
+    }
+
+    @Override
+    int getCountOfVisitedActions() {
+        return visitedActions.size();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.model;
+
+import static com.android.commands.monkey.ape.utils.Config.latencyAlpha;
+
+import java.io.Serializable;
+
+import com.android.commands.monkey.ape.utils.Histogram;
+
+/**
+ * Observed latencies for the UI to settle after an action, summarized by an
+ * exponentially weighted mean and variance. A histogram can be kept for
+ * exact percentiles where the number of estimates is small, e.g., per
+ * activity.
+ * 
+ * @author txgu
+ *
+ */
+public class LatencyEstimate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int count;
+    private int timeouts;
+    private double mean;
+    private double variance;
+    private long max;
+    private final Histogram histogram;
+
+    public LatencyEstimate(boolean withHistogram) {
+        this.histogram = withHistogram ? new Histogram() : null;
+    }
+
+    public void record(long latencyMillis, boolean settled) {
+        count++;
+        if (!settled) {
+            timeouts++;
+        }
+        if (count == 1) {
+            mean = latencyMillis;
+            variance = 0;
+        } else {
+            double diff = latencyMillis - mean;
+            double increment = latencyAlpha * diff;
+            mean += increment;
+            variance = (1 - latencyAlpha) * (variance + diff * increment);
+        }
+        if (latencyMillis > max) {
+            max = latencyMillis;
+        }
+        if (histogram != null) {
+            histogram.record(latencyMillis);
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getTimeouts() {
+        return timeouts;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(variance);
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the 90th percentile if a histogram is kept, otherwise mean plus
+     *         two standard deviations
+     */
+    public long getUpperBound() {
+        if (histogram != null) {
+            return histogram.getValueAtPercentile(90);
+        }
+        return (long) Math.ceil(mean + 2 * getStandardDeviation());
+    }
+
+    public long getValueAtPercentile(double percentile) {
+        if (histogram == null) {
+            throw new IllegalStateException("No histogram is kept.");
+        }
+        return histogram.getValueAtPercentile(percentile);
+    }
+
+    public String toString() {
+        return String.format("N=%d,T=%d,M=%.1f,SD=%.1f,U=%d,MAX=%d", count, timeouts, mean, getStandardDeviation(),
+                getUpperBound(), max);
+    }
+}
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -44,6 +45,8 @@ import com.android.commands.monkey.ape.tree.GUITreeBuilder;
 import com.android.commands.monkey.ape.tree.GUITreeNode;
 import com.android.commands.monkey.ape.tree.GUITreeTransition;
 import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.StepTimer;
+import com.android.commands.monkey.ape.utils.StepTimer.Phase;
 
 import android.content.ComponentName;
 import android.graphics.Bitmap;
@@ -126,6 +129,9 @@ public class Model implements Serializable {
 
     protected int version;
 
+    protected int rebuildCount;
+    protected long rebuildTime;
+
     protected EnumCounters<ModelEvent> eventCounters = new EnumCounters<ModelEvent>() {
 
         /**
@@ -186,10 +192,22 @@ public class Model implements Serializable {
         List<GUITreeTransition> treeTransitions = new ArrayList<>();
         Set<StateTransition> stateTransitions = new HashSet<>();
         List<GUITree> affectedTrees = new ArrayList<>();
+        int checkedStates;
         {
             // Remove model
-            // long b = SystemClock.elapsedRealtimeNanos();
-            for (State state : graph.getStates()) {
+            // Only states named under updated namings can contain trees with a new naming.
+            Collection<State> candidates;
+            Set<Naming> updatedNamings = namingManager.pollUpdatedNamings();
+            if (updatedNamings == null) {
+                candidates = graph.getStates();
+            } else {
+                candidates = new HashSet<>();
+                for (Naming naming : updatedNamings) {
+                    candidates.addAll(graph.getAllStates(naming));
+                }
+            }
+            checkedStates = candidates.size();
+            for (State state : candidates) {
                 for (GUITree tree : state.getGUITrees()) {
                     Naming naming = tree.getCurrentNaming();
                     {
@@ -199,15 +217,12 @@ public class Model implements Serializable {
                             break;
                         }
                     }
-/*                    {
-                        Naming check = namingManager.getNaming(tree, tree.getActivityName(), tree.getDocument());
-                        if (naming != check) {
-                            statesToRemove.add(state);
-                            break;
-                        }
-                    }*/
                 }
             }
+            long checked = SystemClock.elapsedRealtimeNanos();
+            Logger.iformat("> Checking (%d/%d) states under (%s) updated namings finished in %d ms.", checkedStates,
+                    graph.size(), updatedNamings == null ? "all" : String.valueOf(updatedNamings.size()),
+                    TimeUnit.NANOSECONDS.toMillis(checked - begin));
             for (State state : statesToRemove) {
                 Logger.iformat("> Removing state %s", state);
                 affectedTrees.addAll(state.getGUITrees());
@@ -278,9 +293,11 @@ public class Model implements Serializable {
             Logger.iformat("> Readding transitions finished in %d ms.", TimeUnit.NANOSECONDS.toMillis(e - b));
         }
         long end = SystemClock.elapsedRealtimeNanos();
+        rebuildCount++;
+        rebuildTime += end - begin;
         Logger.iformat(
-                "Rebuilding model finished in %d ms, removed %d states and %d state transitions, and rebuild %d tree transitions.",
-                TimeUnit.NANOSECONDS.toMillis(end - begin), statesToRemove.size(), stateTransitions.size(),
+                "Rebuilding model finished in %d ms, checked %d states, removed %d states and %d state transitions, and rebuild %d tree transitions.",
+                TimeUnit.NANOSECONDS.toMillis(end - begin), checkedStates, statesToRemove.size(), stateTransitions.size(),
                 treeTransitions.size());
         return this;
     }
@@ -446,9 +463,13 @@ public class Model implements Serializable {
     }
 
     public GUITree buildGUITree(ComponentName activity, AccessibilityNodeInfo rootInfo, Bitmap bitmap) {
-        GUITreeBuilder treeBuilder = new GUITreeBuilder(namingManager, activity, rootInfo, bitmap);
-        GUITree guiTree = treeBuilder.getGUITree();
-        return guiTree;
+        StepTimer.begin(Phase.BUILD);
+        try {
+            GUITreeBuilder treeBuilder = new GUITreeBuilder(namingManager, activity, rootInfo, bitmap);
+            return treeBuilder.getGUITree();
+        } finally {
+            StepTimer.end(Phase.BUILD);
+        }
     }
 
     public State getState(ComponentName activity, AccessibilityNodeInfo rootInfo, Bitmap bitmap) {
@@ -508,6 +529,7 @@ public class Model implements Serializable {
 
     public void printCounters() {
         this.eventCounters.print();
+        Logger.format("Rebuilt model %d times in %d ms.", rebuildCount, TimeUnit.NANOSECONDS.toMillis(rebuildTime));
     }
 
     public void release(GUITree removed) {
@@ -43,6 +43,8 @@ public class ModelAction extends Action {
     private float resolvedSaturation;
     private GUITree resolvedTree;
 
+    private LatencyEstimate latency;
+
     public ModelAction(State state, ActionType type) {
         this(state, null, type);
     }
@@ -138,6 +140,17 @@ public class ModelAction extends Action {
         return this.resolvedNode != null;
     }
 
+    public LatencyEstimate getLatency() {
+        if (latency == null) {
+            latency = new LatencyEstimate(false);
+        }
+        return latency;
+    }
+
+    public boolean hasLatency() {
+        return latency != null;
+    }
+
     public GUITreeAction getResolvedGUITreeAction() {
         return this.resolvedGUITreeAction;
     }
@@ -189,12 +202,20 @@ public class ModelAction extends Action {
     }
 
     public JSONObject toJSONObject() throws JSONException {
+        return toJSONObject(getResolvedNode(), getThrottle());
+    }
+
+    /**
+     * The JSON of this action as it was resolved to the given node with the
+     * given throttle, without resolving the action again.
+     */
+    public JSONObject toJSONObject(GUITreeNode node, int throttle) throws JSONException {
         JSONObject jAction = super.toJSONObject();
+        jAction.put("throttle", throttle);
         if (requireTarget()) {
             String xpath = getTarget().toXPath();
             jAction.put("target", xpath);
         }
-        GUITreeNode node = getResolvedNode();
         if (node != null) {
             Name full = NamerFactory.fullNamer().naming(node);
             jAction.put("full", full.toXPath());
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.model;
+
+import static com.android.commands.monkey.ape.utils.Config.checkpointBatch;
+import static com.android.commands.monkey.ape.utils.Config.checkpointSnapshotInterval;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONObject;
+import org.w3c.dom.Document;
+
+import com.android.commands.monkey.ApeRRFormatter;
+import com.android.commands.monkey.ape.model.ModelReplay.Resolution;
+import com.android.commands.monkey.ape.tree.GUITree;
+import com.android.commands.monkey.ape.tree.GUITreeBuilder;
+import com.android.commands.monkey.ape.tree.GUITreeNode;
+import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.ModelSerialization;
+import com.android.commands.monkey.ape.utils.Utils;
+
+import android.content.ComponentName;
+import android.os.SystemClock;
+
+/**
+ * An append-only checkpoint log of a model. The log is a sequence of
+ * framed segments (type, length, payload, crc32):
+ * <ul>
+ * <li>a snapshot segment holds the serialized model the run started
+ * with, e.g., a model loaded to resume a campaign,</li>
+ * <li>a compacted snapshot segment holds the model between two steps, it
+ * replaces the log every ape.checkpointSnapshotInterval steps,</li>
+ * <li>a delta segment holds the records of a few steps, deflated: the GUI
+ * trees the agent built, how it resolved the actions of the new state and
+ * the executed actions.</li>
+ * </ul>
+ * The loader restores the snapshot and replays the deltas with
+ * {@link ModelReplay}. A torn segment at the end of the log, e.g., after
+ * the process is killed, is ignored by the loader.
+ * 
+ * @author txgu
+ *
+ */
+public class ModelCheckpoint {
+
+    private static final int MAGIC = 0x41504543; // APEC
+    private static final byte SNAPSHOT = 1;
+    private static final byte COMPACTED_SNAPSHOT = 2;
+    private static final byte DELTA = 3;
+
+    private static final byte GUI_TREE = 1; // XML, no longer written
+    private static final byte ACTION = 2;
+    private static final byte GUI_TREE_NODES = 3;
+    private static final byte ALL_RESOLUTIONS = 4;
+    private static final byte RESOLUTION = 5;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private DataOutputStream out;
+    private final ByteArrayOutputStream batchBytes = new ByteArrayOutputStream();
+    private final DataOutputStream batch = new DataOutputStream(batchBytes);
+    private int batchSteps;
+    private int snapshotSteps;
+
+    private long appendTime;
+    private long appendedSegments;
+    private long appendedBytes;
+    private long snapshotTime;
+    private long snapshots;
+
+    public ModelCheckpoint(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Start a new log. A model that already has states, e.g., one loaded to
+     * resume a campaign, is written as the snapshot the deltas apply to.
+     */
+    public void begin(Model model) {
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            if (model.getGraph().size() > 0) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ModelSerialization.write(bytes, model);
+                writeSegment(out, SNAPSHOT, bytes.toByteArray());
+            }
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logger.wformat("Fail to start model checkpoint %s.", file);
+            closeOutput();
+        }
+    }
+
+    /**
+     * Start recording a step. The buffered steps are appended every
+     * ape.checkpointBatch steps, and the log is replaced by a snapshot of the
+     * given model every ape.checkpointSnapshotInterval steps.
+     */
+    public void beginStep(Model model) {
+        if (checkpointSnapshotInterval > 0 && snapshotSteps >= checkpointSnapshotInterval) {
+            compact(model);
+        }
+        if (batchSteps >= checkpointBatch) {
+            flush();
+        }
+        batchSteps++;
+        snapshotSteps++;
+    }
+
+    /**
+     * Record a GUI tree the agent built at the given step, including the
+     * ones it refreshed the new state with.
+     */
+    public void appendGUITree(int step, GUITree tree) {
+        long begin = SystemClock.elapsedRealtimeNanos();
+        try {
+            batch.writeByte(GUI_TREE_NODES);
+            batch.writeInt(step);
+            writeString(batch, tree.getActivityName().flattenToString());
+            tree.getRootNode().writeSubtree(batch);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logger.wformat("Fail to record GUI tree at step %d in checkpoint %s.", step, file);
+        }
+        appendTime += SystemClock.elapsedRealtimeNanos() - begin;
+    }
+
+    /**
+     * Record how all actions of the new state have been resolved.
+     */
+    public void appendResolutions(int step, List<ModelAction> actions) {
+        long begin = SystemClock.elapsedRealtimeNanos();
+        try {
+            batch.writeByte(ALL_RESOLUTIONS);
+            batch.writeInt(step);
+            ModelSerialization.writeVarInt(batch, actions.size());
+            for (ModelAction action : actions) {
+                writeResolution(batch, action);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        appendTime += SystemClock.elapsedRealtimeNanos() - begin;
+    }
+
+    /**
+     * Record how an action of the new state has been resolved on its own.
+     * @param index the index of the action in the new state
+     */
+    public void appendResolution(int step, int index, ModelAction action) {
+        try {
+            batch.writeByte(RESOLUTION);
+            batch.writeInt(step);
+            ModelSerialization.writeVarInt(batch, index);
+            writeResolution(batch, action);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void writeResolution(DataOutputStream out, ModelAction action) throws IOException {
+        int node = -1;
+        GUITreeNode[] nodes = action.getResolvedNodes();
+        if (nodes != null) {
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i] == action.getResolvedNode()) {
+                    node = i;
+                    break;
+                }
+            }
+        }
+        ModelSerialization.writeVarInt(out, node + 1);
+        ModelSerialization.writeVarInt(out, action.getThrottle());
+        out.writeBoolean(action.isValid());
+    }
+
+    private static Resolution readResolution(DataInputStream in, int index) throws IOException {
+        int node = ModelSerialization.readVarInt(in) - 1;
+        int throttle = ModelSerialization.readVarInt(in);
+        return new Resolution(index, node, throttle, in.readBoolean());
+    }
+
+    /**
+     * Record an executed action in the format of the action log.
+     */
+    public void appendAction(long clockTimestamp, int step, JSONObject action) {
+        if (action == null) {
+            return;
+        }
+        try {
+            batch.writeByte(ACTION);
+            batch.writeLong(clockTimestamp);
+            batch.writeInt(step);
+            writeString(batch, action.toString());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void flush() {
+        if (batchBytes.size() == 0) {
+            return;
+        }
+        long begin = SystemClock.elapsedRealtimeNanos();
+        try {
+            if (out == null) {
+                throw new IOException("Checkpoint is not started");
+            }
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(batchBytes.size() >> 2);
+            try (DeflaterOutputStream dos = new DeflaterOutputStream(deflated)) {
+                batchBytes.writeTo(dos);
+            }
+            writeSegment(out, DELTA, deflated.toByteArray());
+            out.flush();
+            appendedSegments++;
+            appendedBytes += deflated.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logger.wformat("Fail to append steps to checkpoint %s.", file);
+        }
+        batchBytes.reset();
+        batchSteps = 0;
+        appendTime += SystemClock.elapsedRealtimeNanos() - begin;
+    }
+
+    /**
+     * Replace the log by a new one starting with a snapshot of the model.
+     * The buffered steps are part of the snapshot.
+     */
+    private void compact(Model model) {
+        long begin = SystemClock.elapsedRealtimeNanos();
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream compacted = null;
+        try {
+            compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            compacted.writeInt(MAGIC);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ModelSerialization.write(bytes, model);
+            writeSegment(compacted, COMPACTED_SNAPSHOT, bytes.toByteArray());
+            compacted.flush();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logger.wformat("Fail to compact checkpoint %s.", file);
+            if (compacted != null) {
+                try {
+                    compacted.close();
+                } catch (IOException ignored) {
+                }
+            }
+            temp.delete();
+            return;
+        }
+        closeOutput();
+        out = compacted;
+        batchBytes.reset();
+        batchSteps = 0;
+        snapshotSteps = 0;
+        snapshots++;
+        snapshotTime += SystemClock.elapsedRealtimeNanos() - begin;
+    }
+
+    public void close() {
+        flush();
+        closeOutput();
+    }
+
+    public void printStatistics() {
+        Logger.format("Model checkpoint %s: delta segments (%d), bytes (%d), append time (%d ms), "
+                + "compacted snapshots (%d), snapshot time (%d ms)", file, appendedSegments, appendedBytes,
+                TimeUnit.NANOSECONDS.toMillis(appendTime), snapshots, TimeUnit.NANOSECONDS.toMillis(snapshotTime));
+    }
+
+    private void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            out = null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void writeSegment(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeLong(crc.getValue());
+    }
+
+    /**
+     * Restore the snapshot of the log and replay the recorded steps. Steps
+     * after a corrupted segment are dropped.
+     * @return null if the file is not a checkpoint
+     */
+    public static Model load(File file) {
+        Loader loader = new Loader();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                Logger.wformat("Not a model checkpoint: %s", file);
+                return null;
+            }
+            while (true) {
+                byte type;
+                byte[] payload;
+                try {
+                    type = in.readByte();
+                    int length = in.readInt();
+                    if (length < 0) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(type);
+                    crc.update(payload);
+                    if (crc.getValue() != in.readLong()) {
+                        Logger.wformat("Corrupted segment in checkpoint %s", file);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break; // torn or no more segments
+                }
+                if (type == SNAPSHOT || type == COMPACTED_SNAPSHOT) {
+                    Model model = (Model) ModelSerialization.read(new ByteArrayInputStream(payload));
+                    loader.restore(model, type == SNAPSHOT);
+                } else if (type == DELTA) {
+                    loader.replayDelta(payload);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            Logger.wformat("Fail to load model checkpoint %s.", file);
+        }
+        try {
+            loader.replayStep();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Logger.wformat("Fail to replay the last step of checkpoint %s.", file);
+        }
+        ModelReplay replay = loader.replay;
+        if (replay != null) {
+            Logger.iformat("Restored model from %s, replayed %d GUI trees and %d actions (%d unresolved).", file,
+                    replay.getReplayedGUITrees(), replay.getReplayedActions(), replay.getUnresolvedActions());
+        }
+        return loader.model == null ? new Model(new Graph()) : loader.model;
+    }
+
+    /**
+     * Replays the records of a log. The GUI trees of a step are held until
+     * the step is over since all but the last one are refreshed.
+     */
+    private static class Loader {
+
+        private Model model;
+        private ModelReplay replay;
+        private int step = -1;
+        private final List<GUITree> trees = new ArrayList<>();
+
+        void restore(Model model, boolean resumed) {
+            trees.clear();
+            step = -1;
+            this.model = model;
+            this.replay = new ModelReplay(model, resumed);
+        }
+
+        void replayDelta(byte[] payload) throws Exception {
+            if (replay == null) {
+                restore(new Model(new Graph()), true);
+            }
+            try (DataInputStream in = new DataInputStream(
+                    new InflaterInputStream(new ByteArrayInputStream(payload)))) {
+                while (true) {
+                    byte type;
+                    try {
+                        type = in.readByte();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    replayRecord(type, in);
+                }
+            }
+        }
+
+        private void replayRecord(byte type, DataInputStream in) throws Exception {
+            if (type == GUI_TREE_NODES || type == GUI_TREE) {
+                int step = in.readInt();
+                ComponentName activity = ComponentName.unflattenFromString(readString(in));
+                GUITree tree;
+                if (type == GUI_TREE_NODES) {
+                    GUITreeNode root = GUITreeNode.readSubtree(in);
+                    tree = new GUITreeBuilder(model.getNamingManager(), activity, root).getGUITree();
+                } else {
+                    byte[] xml = new byte[in.readInt()];
+                    in.readFully(xml);
+                    Document document = Utils.readXml(new ByteArrayInputStream(xml));
+                    tree = new GUITreeBuilder(model.getNamingManager(), activity, document).getGUITree();
+                }
+                if (step != this.step) {
+                    replayStep();
+                    this.step = step;
+                }
+                trees.add(tree);
+            } else if (type == ALL_RESOLUTIONS) {
+                int step = in.readInt();
+                Resolution[] all = new Resolution[ModelSerialization.readVarInt(in)];
+                for (int i = 0; i < all.length; i++) {
+                    all[i] = readResolution(in, i);
+                }
+                replay.addResolutions(step, all);
+            } else if (type == RESOLUTION) {
+                int step = in.readInt();
+                int index = ModelSerialization.readVarInt(in);
+                replay.addResolution(step, readResolution(in, index));
+            } else if (type == ACTION) {
+                long clockTimestamp = in.readLong();
+                int step = in.readInt();
+                JSONObject action = ApeRRFormatter.readAction(readString(in));
+                replayStep();
+                if (action != null) {
+                    replay.replayAction(clockTimestamp, step, action);
+                }
+            } else {
+                throw new IOException("Unknown checkpoint record " + type);
+            }
+        }
+
+        /**
+         * Replay the GUI trees of the current step.
+         */
+        void replayStep() {
+            int last = trees.size() - 1;
+            for (int i = 0; i < last; i++) {
+                replay.replayObservedGUITree(trees.get(i), step);
+            }
+            if (last >= 0) {
+                replay.replayGUITree(trees.get(last), step);
+            }
+            trees.clear();
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.model;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.android.commands.monkey.ApeRRFormatter;
+import com.android.commands.monkey.ape.model.Model.ActionRecord;
+
+/**
+ * A flat, read-only index of a model for offline analysis. The index is
+ * written next to the serialized model and is read through a memory-mapped
+ * buffer, so states, transitions and action records are decoded on demand
+ * instead of deserializing the whole model.
+ * <p>
+ * Layout: a header, a string table, states sorted by graph id with their
+ * outgoing transitions in a contiguous range, transitions sorted by source,
+ * and action records sorted by step.
+ * 
+ * @author txgu
+ *
+ */
+public class ModelIndex {
+
+    private static final int MAGIC = 0x41504549; // APEI
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 * 10;
+    private static final int STATE_SIZE = 4 * 5; // id, activity, visited count, first out, end out
+    private static final int TRANSITION_SIZE = 4 * 5; // source, target, action, action json, hitting count
+    private static final int RECORD_SIZE = 4 * 5 + 8; // step, clock, state, type, action, action json
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Comparator<State> GRAPH_ID_COMPARATOR = new Comparator<State>() {
+        @Override
+        public int compare(State o1, State o2) {
+            return o1.getGraphId().compareTo(o2.getGraphId());
+        }
+    };
+
+    private final ByteBuffer buffer;
+    private final int stringCount;
+    private final int stateCount;
+    private final int transitionCount;
+    private final int recordCount;
+    private final int stringOffsets;
+    private final int stringData;
+    private final int states;
+    private final int transitions;
+    private final int records;
+
+    private ModelIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a model index.");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported model index version " + buffer.getInt(4));
+        }
+        stringCount = buffer.getInt(8);
+        stateCount = buffer.getInt(12);
+        transitionCount = buffer.getInt(16);
+        recordCount = buffer.getInt(20);
+        stringOffsets = buffer.getInt(24);
+        stringData = buffer.getInt(28);
+        states = buffer.getInt(32);
+        transitions = buffer.getInt(36);
+        records = stringData + buffer.getInt(stringOffsets + 4 * stringCount);
+    }
+
+    /**
+     * Map an index file. The returned view is immutable and may be shared
+     * across threads.
+     */
+    public static ModelIndex open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ModelIndex(buffer);
+        }
+    }
+
+    public int getStringCount() {
+        return stringCount;
+    }
+
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    public int getTransitionCount() {
+        return transitionCount;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    private String string(int index) {
+        if (index < 0) {
+            return null;
+        }
+        int begin = buffer.getInt(stringOffsets + 4 * index);
+        int end = buffer.getInt(stringOffsets + 4 * (index + 1));
+        byte[] bytes = new byte[end - begin];
+        ByteBuffer view = buffer.duplicate();
+        view.position(stringData + begin);
+        view.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private int stateField(int state, int field) {
+        return buffer.getInt(states + state * STATE_SIZE + 4 * field);
+    }
+
+    private int transitionField(int transition, int field) {
+        return buffer.getInt(transitions + transition * TRANSITION_SIZE + 4 * field);
+    }
+
+    private int recordBase(int record) {
+        return records + record * RECORD_SIZE;
+    }
+
+    public String getStateGraphId(int state) {
+        return string(stateField(state, 0));
+    }
+
+    public String getStateActivity(int state) {
+        return string(stateField(state, 1));
+    }
+
+    public int getStateVisitedCount(int state) {
+        return stateField(state, 2);
+    }
+
+    /**
+     * @return the state with the given graph id or -1
+     */
+    public int findState(String graphId) {
+        int low = 0;
+        int high = stateCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = getStateGraphId(mid).compareTo(graphId);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public int getFirstOutTransition(int state) {
+        return stateField(state, 3);
+    }
+
+    public int getEndOutTransition(int state) {
+        return stateField(state, 4);
+    }
+
+    public int getTransitionSource(int transition) {
+        return transitionField(transition, 0);
+    }
+
+    public int getTransitionTarget(int transition) {
+        return transitionField(transition, 1);
+    }
+
+    public String getTransitionAction(int transition) {
+        return string(transitionField(transition, 2));
+    }
+
+    /**
+     * @return the action in the format of the action log
+     */
+    public String getTransitionActionJson(int transition) {
+        return string(transitionField(transition, 3));
+    }
+
+    public int getTransitionHittingCount(int transition) {
+        return transitionField(transition, 4);
+    }
+
+    public int getRecordStep(int record) {
+        return buffer.getInt(recordBase(record));
+    }
+
+    public long getRecordClock(int record) {
+        return buffer.getLong(recordBase(record) + 4);
+    }
+
+    /**
+     * @return the state of the recorded model action or -1
+     */
+    public int getRecordState(int record) {
+        return buffer.getInt(recordBase(record) + 12);
+    }
+
+    public ActionType getRecordType(int record) {
+        return ActionType.values()[buffer.getInt(recordBase(record) + 16)];
+    }
+
+    public String getRecordAction(int record) {
+        return string(buffer.getInt(recordBase(record) + 20));
+    }
+
+    /**
+     * @return the resolved action in the format of the action log
+     */
+    public String getRecordActionJson(int record) {
+        return string(buffer.getInt(recordBase(record) + 24));
+    }
+
+    /**
+     * @return the record of the given agent step or -1
+     */
+    public int findRecord(int step) {
+        int low = 0;
+        int high = recordCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midStep = getRecordStep(mid);
+            if (midStep < step) {
+                low = mid + 1;
+            } else if (midStep > step) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Breadth-first search for a shortest path.
+     * @return transitions from source to target, an empty array if source is
+     * target, or null if target is unreachable
+     */
+    public int[] findPath(int source, int target) {
+        if (source == target) {
+            return new int[0];
+        }
+        int[] via = new int[stateCount];
+        Arrays.fill(via, -1);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(source);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int t = getFirstOutTransition(state), end = getEndOutTransition(state); t < end; t++) {
+                int next = getTransitionTarget(t);
+                if (next == source || via[next] != -1) {
+                    continue;
+                }
+                via[next] = t;
+                if (next == target) {
+                    int length = 0;
+                    for (int s = target; s != source; s = getTransitionSource(via[s])) {
+                        length++;
+                    }
+                    int[] path = new int[length];
+                    for (int s = target; s != source; s = getTransitionSource(via[s])) {
+                        path[--length] = via[s];
+                    }
+                    return path;
+                }
+                queue.add(next);
+            }
+        }
+        return null;
+    }
+
+    private static class StringTable {
+        final Map<String, Integer> indices = new HashMap<>();
+        final List<String> strings = new ArrayList<>();
+
+        int indexOf(String string) {
+            if (string == null) {
+                return -1;
+            }
+            Integer index = indices.get(string);
+            if (index == null) {
+                index = strings.size();
+                indices.put(string, index);
+                strings.add(string);
+            }
+            return index;
+        }
+    }
+
+    private static String actionLabel(Action action) {
+        if (action.isModelAction()) {
+            return action.getGraphId() + '@' + action.getType();
+        }
+        return action.getType().toString();
+    }
+
+    private static String actionJson(Action action) {
+        JSONObject json = ApeRRFormatter.recordAction(action, 0);
+        return json == null ? null : json.toString();
+    }
+
+    /**
+     * The JSON of a recorded model action from the GUI action of the record,
+     * so that the shared model action is not resolved again.
+     */
+    private static String actionJson(ActionRecord record) {
+        Action action = record.modelAction;
+        if (!action.isModelAction() || record.guiAction == null) {
+            return actionJson(action);
+        }
+        try {
+            JSONObject json = ((ModelAction) action).toJSONObject(record.guiAction.getGUITreeNode(),
+                    record.guiAction.getThrotlle());
+            json.put("timestamp", 0);
+            return json.toString();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public static void write(Model model, File file) throws IOException {
+        Graph graph = model.getGraph();
+        List<State> stateList = new ArrayList<>(graph.getStates());
+        Collections.sort(stateList, GRAPH_ID_COMPARATOR);
+        Map<State, Integer> stateIndices = new HashMap<>();
+        for (State state : stateList) {
+            stateIndices.put(state, stateIndices.size());
+        }
+        StringTable table = new StringTable();
+
+        ByteArrayOutputStream stateBytes = new ByteArrayOutputStream(stateList.size() * STATE_SIZE);
+        ByteArrayOutputStream transitionBytes = new ByteArrayOutputStream();
+        DataOutputStream stateOut = new DataOutputStream(stateBytes);
+        DataOutputStream transitionOut = new DataOutputStream(transitionBytes);
+        int transitionCount = 0;
+        for (State state : stateList) {
+            int first = transitionCount;
+            for (StateTransition edge : graph.getOutStateTransitions(state)) {
+                Integer target = stateIndices.get(edge.getTarget());
+                if (target == null) {
+                    continue;
+                }
+                transitionOut.writeInt(stateIndices.get(state));
+                transitionOut.writeInt(target);
+                transitionOut.writeInt(table.indexOf(actionLabel(edge.getAction())));
+                transitionOut.writeInt(table.indexOf(actionJson(edge.getAction())));
+                transitionOut.writeInt(edge.getHittingCount());
+                transitionCount++;
+            }
+            stateOut.writeInt(table.indexOf(state.getGraphId()));
+            stateOut.writeInt(table.indexOf(state.getActivity()));
+            stateOut.writeInt(state.getVisitedCount());
+            stateOut.writeInt(first);
+            stateOut.writeInt(transitionCount);
+        }
+
+        List<ActionRecord> history = model.getActionHistory();
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(history.size() * RECORD_SIZE);
+        DataOutputStream recordOut = new DataOutputStream(recordBytes);
+        for (ActionRecord record : history) {
+            Action action = record.modelAction;
+            Integer state = null;
+            if (action.isModelAction()) {
+                state = stateIndices.get(((ModelAction) action).getState());
+            }
+            recordOut.writeInt(record.agentTimestamp);
+            recordOut.writeLong(record.clockTimestamp);
+            recordOut.writeInt(state == null ? -1 : state);
+            recordOut.writeInt(action.getType().ordinal());
+            recordOut.writeInt(table.indexOf(actionLabel(action)));
+            recordOut.writeInt(table.indexOf(actionJson(record)));
+        }
+
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        int[] offsets = new int[table.strings.size() + 1];
+        for (int i = 0; i < table.strings.size(); i++) {
+            stringBytes.write(table.strings.get(i).getBytes(UTF8));
+            offsets[i + 1] = stringBytes.size();
+        }
+
+        int stringOffsets = HEADER_SIZE;
+        int states = stringOffsets + 4 * offsets.length;
+        int transitions = states + stateBytes.size();
+        int stringData = transitions + transitionBytes.size();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(table.strings.size());
+            out.writeInt(stateList.size());
+            out.writeInt(transitionCount);
+            out.writeInt(history.size());
+            out.writeInt(stringOffsets);
+            out.writeInt(stringData);
+            out.writeInt(states);
+            out.writeInt(transitions);
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            stateBytes.writeTo(out);
+            transitionBytes.writeTo(out);
+            stringBytes.writeTo(out);
+            recordBytes.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.model;
+
+import static com.android.commands.monkey.ape.utils.Config.evolveModel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.android.commands.monkey.ape.model.Model.ActionRecord;
+import com.android.commands.monkey.ape.naming.Name;
+import com.android.commands.monkey.ape.naming.Naming;
+import com.android.commands.monkey.ape.tree.GUITree;
+import com.android.commands.monkey.ape.tree.GUITreeAction;
+import com.android.commands.monkey.ape.tree.GUITreeBuilder;
+import com.android.commands.monkey.ape.tree.GUITreeNode;
+import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.XPathBuilder;
+
+/**
+ * Feed recorded GUI trees and actions to a model step by step, the same way
+ * StatefulAgent does on the device: states are built from the trees, the
+ * model is evolved by state abstraction and action refinement, transitions
+ * are added and non-deterministic transitions are resolved. Actions are
+ * given in the JSON format of the action log and resolved against the
+ * latest GUI tree.
+ * <p>
+ * The agent may refresh trivial states with extra GUI trees, which are
+ * replayed by {@link #replayObservedGUITree(GUITree, int)}, and picks target
+ * nodes randomly. Resolutions recorded by {@link ModelCheckpoint} give the
+ * picked nodes, throttles and validity of the new actions; without them the
+ * first matching node is used.
+ * 
+ * @author txgu
+ *
+ */
+public class ModelReplay {
+
+    private static final Comparator<ModelAction> TARGETED_ACTION_COMPARATOR = new Comparator<ModelAction>() {
+
+        @Override
+        public int compare(ModelAction o1, ModelAction o2) {
+            if (o1.requireTarget() && o2.requireTarget()) {
+                return compareArrays(o1.getResolvedNodes(), o2.getResolvedNodes());
+            }
+            if (!o1.requireTarget() && !o2.requireTarget()) {
+                return o1.getType().compareTo(o2.getType());
+            }
+            return o1.requireTarget() ? 1 : -1;
+        }
+
+    };
+
+    /**
+     * How the agent resolved an action of the new state.
+     */
+    static class Resolution {
+
+        final int action; // the index of the action in the new state
+        final int node; // the index of the picked node in the matching nodes, or -1
+        final int throttle;
+        final boolean valid;
+
+        Resolution(int action, int node, int throttle, boolean valid) {
+            this.action = action;
+            this.node = node;
+            this.throttle = throttle;
+            this.valid = valid;
+        }
+    }
+
+    private final Model model;
+
+    private State currentState;
+    private GUITree currentGUITree;
+    private ModelAction currentAction;
+    private GUITreeAction currentGUITreeAction;
+    private boolean currentStateRecovered;
+
+    private State newState;
+    private GUITree newGUITree;
+    private State observedState;
+
+    private int resolutionStep = -1;
+    private final ArrayDeque<Resolution[]> allResolutions = new ArrayDeque<>();
+    private final List<Resolution> resolutions = new ArrayList<>();
+
+    private Action lastNonModelAction;
+
+    private int replayedGUITrees;
+    private int replayedActions;
+    private int unresolvedActions;
+
+    /**
+     * Continue the given model, e.g., one restored from a snapshot. The
+     * current state and action are recovered from the action history.
+     */
+    public ModelReplay(Model model) {
+        this(model, true);
+    }
+
+    /**
+     * @param resumed whether the model is resumed as StatefulAgent does with
+     *        a loaded model, whose current state is recovered from the
+     *        start of the app or the last model action. Otherwise the model
+     *        is continued as the agent had it between two steps.
+     */
+    public ModelReplay(Model model, boolean resumed) {
+        this.model = model;
+        recoverCurrentState(resumed);
+    }
+
+    public Model getModel() {
+        return model;
+    }
+
+    public int getReplayedGUITrees() {
+        return replayedGUITrees;
+    }
+
+    public int getReplayedActions() {
+        return replayedActions;
+    }
+
+    public int getUnresolvedActions() {
+        return unresolvedActions;
+    }
+
+    private void recoverCurrentState(boolean resumed) {
+        List<ActionRecord> history = model.getActionHistory();
+        for (int index = history.size() - 1; index >= 0; index--) {
+            ActionRecord record = history.get(index);
+            Action action = record.modelAction;
+            if (resumed ? action.canStartApp() : !action.isModelAction() && !action.isCrash()) {
+                lastNonModelAction = action;
+                return;
+            }
+            if (action.isModelAction()) {
+                currentAction = (ModelAction) action;
+                currentGUITreeAction = record.guiAction;
+                currentGUITree = currentGUITreeAction.getGUITree();
+                currentState = model.update(currentGUITree);
+                currentAction = model.update(currentAction, currentGUITreeAction);
+                currentStateRecovered = resumed;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replay a GUI tree observed at the given step before the last one. The
+     * agent builds a state from each tree and refreshes the state of the
+     * previous tree with it. The last tree of the step is replayed by
+     * {@link #replayGUITree(GUITree, int)}.
+     */
+    public void replayObservedGUITree(GUITree tree, int step) {
+        observedState = refresh(model.getState(tree));
+        replayedGUITrees++;
+    }
+
+    /**
+     * Refresh the observed state with a new state as
+     * StatefulAgent.checkAndRefreshNewState does.
+     */
+    private State refresh(State state) {
+        State previous = observedState;
+        observedState = null;
+        if (previous == null) {
+            return state;
+        }
+        if (!state.equals(previous)) {
+            if (previous.isUnvisited()) {
+                model.getGraph().remove(previous);
+            }
+            return state;
+        }
+        GUITree removed = previous.removeLastLastGUITree();
+        if (removed != null) {
+            GUITreeBuilder.release(removed);
+            model.release(removed);
+        }
+        return previous;
+    }
+
+    /**
+     * Queue the resolutions of all actions of the new state the agent made
+     * at the given step, one array for each time it validated all of them.
+     */
+    void addResolutions(int step, Resolution[] all) {
+        checkResolutionStep(step);
+        allResolutions.add(all);
+    }
+
+    /**
+     * Queue the resolution of an action the agent validated on its own at
+     * the given step, e.g., when it selected the action.
+     */
+    void addResolution(int step, Resolution resolution) {
+        checkResolutionStep(step);
+        resolutions.add(resolution);
+    }
+
+    private void checkResolutionStep(int step) {
+        if (resolutionStep != step) {
+            allResolutions.clear();
+            resolutions.clear();
+            resolutionStep = step;
+        }
+    }
+
+    /**
+     * Replay the GUI tree observed at the given step.
+     * @return the state of the tree
+     */
+    public State replayGUITree(GUITree tree, int step) {
+        tree.setTimestamp(step);
+        newGUITree = tree;
+        newState = refresh(model.getState(tree));
+        resolveAllNewActions(step);
+        if (evolveModel) {
+            checkUnderAbstractedState();
+            checkOverAbstractedState();
+            checkUnderAbstractedState();
+        }
+        Graph graph = model.getGraph();
+        graph.markVisited(newState, step);
+        if (currentState == null && lastNonModelAction != null && lastNonModelAction.canStartApp()) {
+            graph.addEntryGUITree(newGUITree);
+            if (lastNonModelAction.getType() == ActionType.EVENT_CLEAN_RESTART) {
+                graph.addCleanEntryGUITree(newGUITree);
+            }
+        }
+        lastNonModelAction = null;
+        StateTransition edge = model.addTransition(currentState, currentAction, newState, currentGUITree,
+                currentGUITreeAction, newGUITree);
+        if (evolveModel && edge != null && !currentStateRecovered) {
+            if (model.resolveNonDeterministicTransitions(edge) != null) {
+                updateReferences();
+            }
+        }
+        currentStateRecovered = false;
+        if (newState.isUnvisited()) {
+            graph.markVisited(newState, step);
+        }
+        adjustActionsByGUITree(step);
+        if (resolutionStep == step) {
+            for (Resolution resolution : resolutions) {
+                resolveNewAction(step, resolution);
+            }
+        }
+        checkResolutionStep(-1);
+        replayedGUITrees++;
+        return newState;
+    }
+
+    /**
+     * Replay an action executed at the given step.
+     * @return the resolved action, or null if it cannot be resolved against
+     *         the latest GUI tree
+     */
+    public Action replayAction(long clockTimestamp, int step, JSONObject jAction) {
+        Action action;
+        try {
+            action = resolveAction(step, jAction);
+        } catch (JSONException | XPathExpressionException | IllegalStateException e) {
+            Logger.wformat("Cannot resolve action at step %d: %s (%s)", step, jAction, e.getMessage());
+            action = null;
+        }
+        if (action == null) {
+            unresolvedActions++;
+            return null;
+        }
+        replayedActions++;
+        if (action.isModelAction()) {
+            ModelAction modelAction = (ModelAction) action;
+            model.getGraph().markVisited(modelAction, step);
+            currentState = newState;
+            currentGUITree = newGUITree;
+            currentAction = modelAction;
+            currentGUITreeAction = modelAction.getResolvedGUITreeAction();
+        } else if (!action.isCrash()) {
+            currentState = null;
+            currentGUITree = null;
+            currentAction = null;
+            currentGUITreeAction = null;
+            lastNonModelAction = action;
+        }
+        newState = null;
+        newGUITree = null;
+        model.appendToActionHistory(clockTimestamp, action, step);
+        return action;
+    }
+
+    private Action resolveAction(int step, JSONObject jAction) throws JSONException, XPathExpressionException {
+        ActionType actionType = ActionType.valueOf(jAction.getString("actionType"));
+        int throttle = jAction.optInt("throttle", 0);
+        if (!actionType.isModelAction()) {
+            switch (actionType) {
+            case PHANTOM_CRASH:
+                return CrashAction.fromJSON(jAction);
+            case FUZZ:
+                return FuzzAction.fromJSON(jAction);
+            case EVENT_START:
+            case EVENT_RESTART:
+            case EVENT_CLEAN_RESTART:
+                return StartAction.fromJSON(jAction);
+            case EVENT_NOP:
+                return Action.NOP;
+            case EVENT_ACTIVATE:
+                return Action.ACTIVATE;
+            default:
+                return null;
+            }
+        }
+        if (newState == null) {
+            throw new IllegalStateException("No GUI tree for a model action");
+        }
+        return resolveModelAction(newState, newGUITree, step, jAction);
+    }
+
+    /**
+     * Resolve a model action of the action log in a state at the given GUI
+     * tree. The target node is looked up by the full xpath of the record
+     * first and then by the name of the target.
+     * @return the resolved action, or null if no node matches
+     */
+    public static ModelAction resolveModelAction(State state, GUITree tree, int step, JSONObject jAction)
+            throws JSONException, XPathExpressionException {
+        ActionType actionType = ActionType.valueOf(jAction.getString("actionType"));
+        int throttle = jAction.optInt("throttle", 0);
+        if (!actionType.requireTarget()) {
+            ModelAction action = state.getAction(actionType);
+            action.resolveAt(step, throttle, tree, null, null);
+            return action;
+        }
+        GUITreeNode node = null;
+        try {
+            node = resolveNode(tree, jAction.optString("full", null));
+        } catch (XPathExpressionException e) {
+            // A J2SE VM limits the number of operators of an xpath, the full xpath of a deep node may exceed it.
+            Logger.wformat("Cannot compile the full xpath of an action at step %d, use its target.", step);
+        }
+        if (node == null) {
+            node = resolveNode(tree, jAction.getString("target"));
+        }
+        if (node == null) {
+            return null;
+        }
+        Name name = node.getXPathName();
+        ModelAction action = state.getAction(name, actionType);
+        GUITreeNode[] nodes = tree.pickNodes(action);
+        action.resolveAt(step, throttle, tree, node, nodes);
+        return action;
+    }
+
+    /**
+     * @return the first node of the tree matching the xpath, or null
+     */
+    public static GUITreeNode resolveNode(GUITree tree, String xpath) throws XPathExpressionException {
+        if (xpath == null) {
+            return null;
+        }
+        NodeList nodes = (NodeList) XPathBuilder.compile(xpath).evaluate(tree.getDocument(),
+                XPathConstants.NODESET);
+        for (int i = 0; i < nodes.getLength(); i++) {
+            GUITreeNode node = GUITreeBuilder.getGUITreeNode((Element) nodes.item(i));
+            if (node != null) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private void resolveAllNewActions(int step) {
+        List<ModelAction> actions = newState.getActions();
+        Resolution[] all = resolutionStep == step ? allResolutions.poll() : null;
+        if (all != null && all.length != actions.size()) {
+            Logger.wformat("Recorded %d resolutions for %d actions of %s at step %d, use the first nodes.",
+                    all.length, actions.size(), newState, step);
+            all = null;
+        }
+        for (int i = 0; i < actions.size(); i++) {
+            resolveNewAction(step, actions.get(i), all == null ? null : all[i]);
+        }
+    }
+
+    private void resolveNewAction(int step, Resolution resolution) {
+        List<ModelAction> actions = newState.getActions();
+        if (resolution.action < 0 || resolution.action >= actions.size()) {
+            Logger.wformat("No action #%d of %s at step %d", resolution.action, newState, step);
+            return;
+        }
+        resolveNewAction(step, actions.get(resolution.action), resolution);
+    }
+
+    private void resolveNewAction(int step, ModelAction action, Resolution resolution) {
+        int throttle = resolution == null ? 0 : resolution.throttle;
+        if (!action.requireTarget()) {
+            action.resolveAt(step, throttle, newGUITree, null, null);
+        } else {
+            GUITreeNode[] nodes = newGUITree.pickNodes(action);
+            int index = resolution == null || resolution.node >= nodes.length ? 0 : resolution.node;
+            action.resolveAt(step, throttle, newGUITree, index < 0 || nodes.length == 0 ? null : nodes[index], nodes);
+        }
+        if (resolution != null && action.isValid() != resolution.valid) {
+            model.getGraph().invalidatePathCache(action);
+            action.setValid(resolution.valid);
+        }
+    }
+
+    /**
+     * Enable actions by their resolved nodes as
+     * StatefulAgent.adjustActionsByGUITree does.
+     */
+    private void adjustActionsByGUITree(int step) {
+        for (ModelAction action : newState.getActions()) {
+            if (!action.requireTarget() || !action.isValid() || !action.isResolvedAt(step)) {
+                continue;
+            }
+            boolean enabled = action.getResolvedNode().isEnabled();
+            if (action.isEnabled() != enabled) {
+                model.getGraph().invalidatePathCache(action);
+            }
+            action.setEnabled(enabled);
+        }
+    }
+
+    private void checkUnderAbstractedState() {
+        if (newState.getCurrentNaming().getParent() == null) {
+            return;
+        }
+        while (true) {
+            State state = newState;
+            checkAndAbstractUnderAbstractedState();
+            if (state == newState) {
+                break;
+            }
+        }
+    }
+
+    private void checkAndAbstractUnderAbstractedState() {
+        Naming naming = newState.getCurrentNaming();
+        Naming parentNaming = naming;
+        while (parentNaming.getParent() != null) {
+            Set<State> states = model.getGraph().getAllStates(parentNaming);
+            if (model.stateAbstraction(naming, newState, parentNaming, states) != null) {
+                updateReferences();
+                return;
+            }
+            parentNaming = parentNaming.getParent();
+        }
+    }
+
+    private void checkOverAbstractedState() {
+        while (true) {
+            State state = newState;
+            checkAndRefineOverAbstractedState();
+            if (state == newState) {
+                break;
+            }
+        }
+    }
+
+    private void checkAndRefineOverAbstractedState() {
+        List<ModelAction> actions = newState.targetedActions();
+        Collections.sort(actions, TARGETED_ACTION_COMPARATOR);
+        Set<Name> names = new HashSet<>();
+        for (ModelAction action : actions) {
+            if (!action.requireTarget()) {
+                continue;
+            }
+            if (!names.add(action.getTarget())) {
+                continue;
+            }
+            if (model.actionRefinement(action) != null) {
+                updateReferences();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Re-resolve states and actions after the model has been rebuilt, as
+     * StatefulAgent.updateModel does.
+     */
+    private void updateReferences() {
+        if (currentState != null) {
+            currentState = model.update(currentGUITree);
+        }
+        if (currentAction != null) {
+            currentAction = model.update(currentAction, currentGUITreeAction);
+        }
+        if (newState != null) {
+            newState = model.update(newGUITree);
+            resolveAllNewActions(newGUITree.getTimestamp());
+        }
+        List<ActionRecord> history = model.getActionHistory();
+        for (int i = 0; i < history.size(); i++) {
+            ActionRecord record = history.get(i);
+            Action action = record.modelAction;
+            if (action.isModelAction() && action.requireTarget() && record.guiAction != null) {
+                action = model.update((ModelAction) action, record.guiAction);
+                model.updateActionHistory(i, new ActionRecord(record.clockTimestamp, record.agentTimestamp, action,
+                        record.guiAction));
+            }
+        }
+    }
+
+    static int compareArrays(Object[] a1, Object[] a2) {
+        if (a1 == null) {
+            return a2 == null ? 0 : 1;
+        }
+        if (a2 == null) {
+            return -1;
+        }
+        return a1.length - a2.length;
+    }
+}
@@ -21,7 +21,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import com.android.commands.monkey.ape.ActionFilter;
@@ -52,6 +54,7 @@ public class State extends GraphElement {
     private ModelAction backAction;
 
     private List<GUITree> treeHistory;
+    private transient Map<Long, GUITree> fingerprintToTree; // latest tree of each fingerprint
 
     public State(StateKey stateKey) {
         this.stateKey = stateKey;
@@ -327,6 +330,25 @@ public class State extends GraphElement {
             treeHistory = new ArrayList<GUITree>();
         }
         treeHistory.add(tree);
+        dedupGUITree(tree);
+    }
+
+    /**
+     * An older tree isomorphic to the new one only serves as history, so
+     * release its document and node infos. They can be recreated on demand.
+     * Trees are looked up by fingerprint and confirmed structurally.
+     * @param tree
+     */
+    private void dedupGUITree(GUITree tree) {
+        long fingerprint = tree.getFingerprint();
+        if (fingerprintToTree == null) {
+            fingerprintToTree = new HashMap<Long, GUITree>();
+        }
+        GUITree previous = fingerprintToTree.put(fingerprint, tree);
+        if (previous != null && previous != tree && previous.isIsomorphicTo(tree)) {
+            Logger.dformat("Tree %s is identical to %s, release its data.", previous, tree);
+            previous.releaseData();
+        }
     }
 
     public List<GUITree> getGUITrees() {
@@ -478,7 +500,11 @@ public class State extends GraphElement {
         if (treeHistory == null || treeHistory.size() <=1) {
             return null;
         }
-        return treeHistory.remove(treeHistory.size() - 2);
+        GUITree removed = treeHistory.remove(treeHistory.size() - 2);
+        if (fingerprintToTree != null && fingerprintToTree.get(removed.getFingerprint()) == removed) {
+            fingerprintToTree.remove(removed.getFingerprint());
+        }
+        return removed;
     }
 
     public void dumpActions() {
@@ -40,7 +40,7 @@ public class StateKey implements Serializable {
     private String activity;
     private Naming naming;
     private Name[] widgets;
-    private int hashCode;
+    private transient int hashCode; // depends on the identity of naming
 
     public StateKey(ComponentName activity, Naming naming, Name[] widgets) {
         this.activity = activity.getClassName();
@@ -18,6 +18,7 @@ package com.android.commands.monkey.ape.model.xpathaction;
 import javax.xml.xpath.XPathExpression;
 
 import com.android.commands.monkey.ape.model.ActionType;
+import com.android.commands.monkey.ape.naming.NameletMatcher;
 
 /**
  * An experimental feature.
@@ -30,6 +31,8 @@ public class XPathAction {
 
     private final XPathExpression expr;
 
+    private final NameletMatcher matcher;
+
     private ActionType action;
 
     private String text;
@@ -38,6 +41,7 @@ public class XPathAction {
     public XPathAction(String exprStr, XPathExpression expr) {
         this.exprStr = exprStr;
         this.expr = expr;
+        this.matcher = NameletMatcher.compile(exprStr);
     }
 
     public void setAction(ActionType action) {
@@ -52,6 +56,13 @@ public class XPathAction {
         return expr;
     }
 
+    /**
+     * @return null if the expression can only be evaluated by XPath.
+     */
+    public NameletMatcher getMatcher() {
+        return matcher;
+    }
+
     public ActionType getAction() {
         return action;
     }
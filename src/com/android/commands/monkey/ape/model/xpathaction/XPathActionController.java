@@ -15,6 +15,8 @@
  */
 package com.android.commands.monkey.ape.model.xpathaction;
 
+import static com.android.commands.monkey.ape.utils.Config.domFreeTrees;
+
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -36,6 +38,7 @@ import com.android.commands.monkey.ape.tree.GUITree;
 import com.android.commands.monkey.ape.tree.GUITreeBuilder;
 import com.android.commands.monkey.ape.tree.GUITreeNode;
 import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.XPathBuilder;
 
 /**
  * This is an experimental feature.
@@ -83,6 +86,27 @@ public class XPathActionController {
     }
 
     private ModelAction resolveAction(State state, GUITree tree, XPathAction current) {
+        GUITreeNode treeNode;
+        if (domFreeTrees && current.getMatcher() != null) {
+            Logger.wprintln(current.getExprStr());
+            treeNode = current.getMatcher().selectFirst(tree.getRootNode());
+            if (treeNode == null) {
+                Logger.println("No matching nodes");
+                return null;
+            }
+        } else {
+            treeNode = resolveNodeByXPath(tree, current);
+            if (treeNode == null) {
+                return null;
+            }
+        }
+        Name xpathName = treeNode.getXPathName();
+        treeNode.setInputText(current.getText());
+        treeNode.setExtraThrottle(current.getThrottle());
+        return state.getAction(xpathName, current.getAction());
+    }
+
+    private GUITreeNode resolveNodeByXPath(GUITree tree, XPathAction current) {
         Document document = tree.getDocument();
         if (document == null) {
             Logger.println("Document is null");
@@ -90,29 +114,23 @@ public class XPathActionController {
         }
         try {
             Logger.wprintln(current.getExprStr());
-            NodeList nodes = (NodeList) current.getExpr().evaluate(document, XPathConstants.NODESET);
+            NodeList nodes = (NodeList) XPathBuilder.compile(current.getExprStr()).evaluate(document, XPathConstants.NODESET);
             if (nodes.getLength() == 0) {
                 Logger.println("No matching nodes");
                 return null;
             }
             Element n0 = (Element) nodes.item(0);
-            {
-                GUITreeNode treeNode = GUITreeBuilder.getGUITreeNode(n0);
-                if (treeNode == null) {
-                    Logger.wprintln("Node should not be null!");
-                    return null;
-                }
-                Name xpathName = treeNode.getXPathName();
-                treeNode.setInputText(current.getText());
-                treeNode.setExtraThrottle(current.getThrottle());
-                return state.getAction(xpathName, current.getAction());
+            GUITreeNode treeNode = GUITreeBuilder.getGUITreeNode(n0);
+            if (treeNode == null) {
+                Logger.wprintln("Node should not be null!");
+                return null;
             }
+            return treeNode;
         } catch (XPathExpressionException e) {
             e.printStackTrace();
             Logger.println("Fail to evaluate expr" + current.getExprStr());
         }
         return null;
-
     }
 
     private ModelAction fillActionBuffer(State state, GUITree tree) {
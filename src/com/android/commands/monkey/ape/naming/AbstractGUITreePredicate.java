@@ -15,8 +15,12 @@
  */
 package com.android.commands.monkey.ape.naming;
 
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
+import com.android.commands.monkey.ape.tree.GUITree;
 import com.android.commands.monkey.ape.tree.GUITreeTransition;
 
 public abstract class AbstractGUITreePredicate extends AbstractPredicate {
@@ -32,4 +36,16 @@ public abstract class AbstractGUITreePredicate extends AbstractPredicate {
         this.transitions = transitions;
     }
 
+    @Override
+    public Collection<GUITree> getGUITrees() {
+        Set<GUITree> trees = new HashSet<>();
+        for (List<GUITreeTransition> tts : transitions) {
+            for (GUITreeTransition tt : tts) {
+                trees.add(tt.getSource());
+                trees.add(tt.getTarget());
+            }
+        }
+        return trees;
+    }
+
 }
@@ -42,6 +42,8 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
     protected final NamingFactory namingFactory;
     protected Map<GUITree, Naming> treeToNaming = new HashMap<>();
     protected int version;
+    // null means that any tree may have been updated
+    private transient Set<Naming> updatedNamings = new HashSet<>();
     
     private static boolean debug = true;
 
@@ -101,6 +103,7 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
         try {
             AbstractNamingManager that = (AbstractNamingManager) super.clone();
             that.treeToNaming = new HashMap<>(this.treeToNaming);
+            that.updatedNamings = null;
             return that;
         } catch (CloneNotSupportedException e) {
             e.printStackTrace();
@@ -114,10 +117,10 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
     }
 
     @Override
-    public final Naming getNaming(GUITree tree) {
+    public final synchronized Naming getNaming(GUITree tree) {
         Naming naming = treeToNaming.get(tree);
         if (naming == null) {
-            naming = this.getNaming(tree, tree.getActivityName(), tree.getDocument());
+            naming = this.getNaming(tree, tree.getActivityName(), tree.getLoadedDocument());
             if (naming == null) {
                 throw new NullPointerException("Cannot get naming for raw GUI tree.");
             }
@@ -129,8 +132,9 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
     @Override
     public final void updateNaming(GUITree tree, Naming newOne) {
         this.version++;
+        markUpdated(tree.getCurrentNaming(), newOne);
         Naming existing = this.treeToNaming.put(tree, newOne);
-        Naming check = this.getNaming(tree, tree.getActivityName(), tree.getDocument());
+        Naming check = this.getNaming(tree, tree.getActivityName(), tree.getLoadedDocument());
         Logger.iformat("Update naming for %s: existing in dict: %s, current in tree: %s, check in graph: %s, new: %s",
                 tree, existing, tree.getCurrentNaming(), check, newOne);
         if (debug) {
@@ -147,14 +151,48 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
                 }
             }
         }
-        updateNaming(tree, tree.getActivityName(), tree.getDocument(), tree.getCurrentNaming(), newOne);
+        updateNaming(tree, tree.getActivityName(), tree.getLoadedDocument(), tree.getCurrentNaming(), newOne);
         if (debug) {
-            if (newOne != this.getNaming(tree, tree.getActivityName(), tree.getDocument())) {
+            if (newOne != this.getNaming(tree, tree.getActivityName(), tree.getLoadedDocument())) {
                 throw new IllegalStateException("Inconsistent naming update.");
             }
         }
     }
 
+    /**
+     * Trees whose naming may change are named by a descendant of the lowest
+     * common ancestor of the old and new naming in the naming lattice.
+     * @param oldOne
+     * @param newOne
+     */
+    private void markUpdated(Naming oldOne, Naming newOne) {
+        if (updatedNamings == null) {
+            return;
+        }
+        if (oldOne == null || newOne == null) {
+            updatedNamings = null;
+            return;
+        }
+        Set<Naming> ancestors = new HashSet<>();
+        for (Naming n = oldOne; n != null; n = n.getParent()) {
+            ancestors.add(n);
+        }
+        for (Naming n = newOne; n != null; n = n.getParent()) {
+            if (ancestors.contains(n)) {
+                updatedNamings.add(n);
+                return;
+            }
+        }
+        updatedNamings = null;
+    }
+
+    @Override
+    public Set<Naming> pollUpdatedNamings() {
+        Set<Naming> updated = updatedNamings;
+        updatedNamings = new HashSet<>();
+        return updated;
+    }
+
     @Override
     public int getVersion() {
         return version;
@@ -175,7 +213,7 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
             count++;
             Naming cached = this.treeToNaming.get(tree);
             Naming current = tree.getCurrentNaming();
-            Naming check = getNaming(tree, tree.getActivityName(), tree.getDocument());
+            Naming check = getNaming(tree, tree.getActivityName(), tree.getLoadedDocument());
             if (cached == null) {
                 this.treeToNaming.put(tree, check);
             } else if (cached != check) {
@@ -188,6 +226,9 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
                 updated.put(tree, check);
             }
         }
+        if (!updated.isEmpty()) {
+            updatedNamings = null;
+        }
         long end = SystemClock.elapsedRealtimeNanos();
         Logger.format("Sync naming functions: checked %d trees in %d ms, %d updated.", count,
                 TimeUnit.NANOSECONDS.toMillis(end - begin), updated.size());
@@ -201,12 +242,15 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
         Map<GUITree, Naming> updated = new HashMap<>();
         for (Map.Entry<GUITree, Naming> entry : this.treeToNaming.entrySet()) {
             GUITree tree = entry.getKey();
-            Naming check = getNaming(tree, tree.getActivityName(), tree.getDocument());
+            Naming check = getNaming(tree, tree.getActivityName(), tree.getLoadedDocument());
             if (entry.getValue() != check) {
                 updated.put(tree, check);
             }
         }
         treeToNaming.putAll(updated);
+        if (!updated.isEmpty()) {
+            updatedNamings = null;
+        }
         long end = SystemClock.elapsedRealtimeNanos();
         Logger.format("Sync naming functions: checked %d trees in %d ms, %d updated.", treeToNaming.size(),
                 TimeUnit.NANOSECONDS.toMillis(end - begin), updated.size());
@@ -29,7 +29,7 @@ public class AncestorNamer extends AbstractNamer {
          * 
          */
         private static final long serialVersionUID = 1L;
-        int hashCode;
+        transient int hashCode;
         private Name[] names;
 
         public AncestorName (Name... names) {
@@ -15,6 +15,8 @@
  */
 package com.android.commands.monkey.ape.naming;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -56,6 +58,11 @@ public class AssertActionDivergent2 extends AbstractPredicate {
         return true;
     }
 
+    @Override
+    public Collection<GUITree> getGUITrees() {
+        return Collections.singletonList(tree);
+    }
+
     @Override
     public Type getType() {
         return Predicate.Type.ACTION_REFINEMENT;
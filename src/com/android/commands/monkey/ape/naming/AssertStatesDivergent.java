@@ -15,6 +15,7 @@
  */
 package com.android.commands.monkey.ape.naming;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -48,6 +49,11 @@ public class AssertStatesDivergent extends AbstractPredicate {
         return true;
     }
 
+    @Override
+    public Collection<GUITree> getGUITrees() {
+        return trees;
+    }
+
     @Override
     public Type getType() {
         return Predicate.Type.STATE_REFINEMENT;
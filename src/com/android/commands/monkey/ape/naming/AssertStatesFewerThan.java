@@ -15,6 +15,7 @@
  */
 package com.android.commands.monkey.ape.naming;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -54,6 +55,11 @@ public class AssertStatesFewerThan extends AbstractPredicate {
         return true;
     }
 
+    @Override
+    public Collection<GUITree> getGUITrees() {
+        return trees;
+    }
+
     @Override
     public Type getType() {
         return Predicate.Type.STATE_ABSTRACTION;
@@ -27,7 +27,7 @@ public class CompoundNamer extends AbstractNamer {
          * 
          */
         private static final long serialVersionUID = 1L;
-        int hashCode = 0;
+        transient int hashCode = 0;
         Name[] names;
 
         public CompoundName(Name... names) {
@@ -56,12 +56,24 @@ public class EmptyNamer extends AbstractNamer {
         @Override
         public void appendXPathLocalProperties(StringBuilder sb) { }
 
+        /**
+         * Names are compared by identity, so a deserialized empty name must
+         * be the shared one.
+         */
+        private Object readResolve() {
+            return emptyName;
+        }
+
     });
 
     private EmptyNamer() {
         super(NamerType.noneOf());
     }
 
+    private Object readResolve() {
+        return emptyNamer;
+    }
+
     public String toString() {
         return "EmptyNamer";
     }
@@ -33,6 +33,23 @@ public class IndexNamer extends AbstractNamer implements SingletonNamer {
             this.index = index;
         }
 
+        @Override
+        public int hashCode() {
+            return 31 + index;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            IndexName other = (IndexName) obj;
+            return index == other.index;
+        }
+
         @Override
         public Namer getNamer() {
             return IndexNamer.this;
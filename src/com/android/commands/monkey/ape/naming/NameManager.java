@@ -15,27 +15,94 @@
  */
 package com.android.commands.monkey.ape.naming;
 
-import java.util.ArrayList;
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 
-import com.android.commands.monkey.ape.utils.Utils;
+import com.android.commands.monkey.ape.utils.Logger;
 
+/**
+ * Hash-consing of names. Names are interned per namer by their structural
+ * equals/hashCode. The table holds names weakly, so a name is released once no
+ * state, tree or naming refers to it any more.
+ * 
+ * @author txgu
+ *
+ */
 public class NameManager {
 
-    private static Map<Namer, Map<String, Name>> names = new HashMap<>();
-    private static List<Name> nameList = new ArrayList<>(10000); // let gc happy?
-    public static Name getCachedName(Name name) {
+    private static Map<Namer, Map<Name, WeakReference<Name>>> names = new HashMap<>();
+    private static int nextOrder;
+    private static long hits;
+    private static long misses;
+
+    public static synchronized Name getCachedName(Name name) {
         Namer namer = name.getNamer();
-        String key = name.toString();
-        Name existing = Utils.getFromMapMap(names, namer, key);
-        if (existing != null) {
-            return existing;
+        Map<Name, WeakReference<Name>> table = names.get(namer);
+        if (table == null) {
+            table = new WeakHashMap<>();
+            names.put(namer, table);
+        } else {
+            WeakReference<Name> ref = table.get(name);
+            Name existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                hits++;
+                return existing;
+            }
         }
-        Utils.addToMapMap(names, namer, key, name);
-        ((AbstractName)name).setOrder(nameList.size());
-        nameList.add(name);
+        misses++;
+        ((AbstractName) name).setOrder(nextOrder++);
+        table.put(name, new WeakReference<Name>(name));
         return name;
     }
+
+    /**
+     * Intern a name of a loaded model. Its order is shifted by base, the next
+     * order when loading began, so that arrays of names sorted by order stay
+     * sorted and names created later are ordered after it.
+     */
+    public static synchronized Name getLoadedName(Name name, int base) {
+        AbstractName loaded = (AbstractName) name;
+        if (loaded.getOrder() < 0) {
+            return name;
+        }
+        Namer namer = name.getNamer();
+        Map<Name, WeakReference<Name>> table = names.get(namer);
+        if (table == null) {
+            table = new WeakHashMap<>();
+            names.put(namer, table);
+        } else {
+            WeakReference<Name> ref = table.get(name);
+            Name existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                return existing;
+            }
+        }
+        loaded.setOrder(base + loaded.getOrder());
+        if (nextOrder <= loaded.getOrder()) {
+            nextOrder = loaded.getOrder() + 1;
+        }
+        table.put(name, new WeakReference<Name>(name));
+        return name;
+    }
+
+    public static synchronized int getNextOrder() {
+        return nextOrder;
+    }
+
+    /**
+     * The number of live interned names. Expunges released names.
+     */
+    public static synchronized int size() {
+        int size = 0;
+        for (Map<Name, WeakReference<Name>> table : names.values()) {
+            size += table.size();
+        }
+        return size;
+    }
+
+    public static void printStatistics() {
+        Logger.iformat("NameManager: live names (%d), hits (%d), misses (%d)", size(), hits, misses);
+    }
 }
@@ -15,6 +15,8 @@
  */
 package com.android.commands.monkey.ape.naming;
 
+import static com.android.commands.monkey.ape.utils.Config.useNameletMatcher;
+
 import java.io.Serializable;
 import java.util.Comparator;
 import java.util.EnumSet;
@@ -48,6 +50,9 @@ public class Namelet implements Serializable, Comparable<Namelet> {
     private Namelet parent;
     private Map<Namelet, Naming> children;
 
+    private transient NameletMatcher matcher;
+    private transient volatile boolean matcherCompiled;
+
     public Namelet(Type type, String exprStr, Namer namer) {
         this.type = type;
         this.exprStr = exprStr;
@@ -153,9 +158,24 @@ public class Namelet implements Serializable, Comparable<Namelet> {
         return XPathBuilder.compileAbortOnError(exprStr);
     }
 
+    /**
+     * @return null if the expression can only be evaluated by XPath.
+     */
+    public NameletMatcher getMatcher() {
+        if (!matcherCompiled) {
+            matcher = useNameletMatcher ? NameletMatcher.compile(exprStr) : null;
+            matcherCompiled = true;
+        }
+        return matcher;
+    }
+
     public NodeList filter(Object tree) {
         try {
-            return (NodeList) getExpression().evaluate(tree, XPathConstants.NODESET);
+            XPathExpression expression = getExpression();
+            // Compiled expressions are shared and not thread-safe.
+            synchronized (expression) {
+                return (NodeList) expression.evaluate(tree, XPathConstants.NODESET);
+            }
         } catch (XPathExpressionException e) {
         }
         return null;
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.naming;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.android.commands.monkey.ape.tree.GUITreeNode;
+
+/**
+ * Evaluates the restricted XPath shapes generated by namers directly on
+ * GUITreeNodes, i.e., <code>//*[..]..(/*[..]..)*</code> where each predicate
+ * is a conjunction or disjunction of <code>@attr=literal</code> or
+ * <code>@attr!=literal</code>. Expressions in any other shape cannot be
+ * compiled and must be evaluated by XPath.
+ * 
+ * @author txgu
+ *
+ */
+public class NameletMatcher {
+
+    enum Attribute {
+        INDEX("index") {
+            String getValue(GUITreeNode node) {
+                return String.valueOf(node.getIndex());
+            }
+        },
+        TEXT("text") {
+            String getValue(GUITreeNode node) {
+                return node.getText();
+            }
+        },
+        RESOURCE_ID("resource-id") {
+            String getValue(GUITreeNode node) {
+                return node.getResourceID();
+            }
+        },
+        CLASS("class") {
+            String getValue(GUITreeNode node) {
+                return node.getClassName();
+            }
+        },
+        CONTENT_DESC("content-desc") {
+            String getValue(GUITreeNode node) {
+                return node.getContentDesc();
+            }
+        },
+        PACKAGE("package") {
+            String getValue(GUITreeNode node) {
+                return node.getPackageName();
+            }
+        },
+        CHECKABLE("checkable") {
+            String getValue(GUITreeNode node) {
+                return Boolean.toString(node.isCheckable());
+            }
+        },
+        CHECKED("checked") {
+            String getValue(GUITreeNode node) {
+                return Boolean.toString(node.isChecked());
+            }
+        },
+        CLICKABLE("clickable") {
+            String getValue(GUITreeNode node) {
+                return Boolean.toString(node.isClickable());
+            }
+        },
+        ENABLED("enabled") {
+            String getValue(GUITreeNode node) {
+                return Boolean.toString(node.isEnabled());
+            }
+        },
+        FOCUSABLE("focusable") {
+            String getValue(GUITreeNode node) {
+                return Boolean.toString(node.isFocusable());
+            }
+        },
+        FOCUSED("focused") {
+            String getValue(GUITreeNode node) {
+                return Boolean.toString(node.isFocused());
+            }
+        },
+        SCROLLABLE("scrollable") {
+            String getValue(GUITreeNode node) {
+                return Boolean.toString(node.isScrollable());
+            }
+        },
+        LONG_CLICKABLE("long-clickable") {
+            String getValue(GUITreeNode node) {
+                return Boolean.toString(node.isLongClickable());
+            }
+        },
+        PASSWORD("password") {
+            String getValue(GUITreeNode node) {
+                return Boolean.toString(node.isPassword());
+            }
+        },
+        SCROLL_TYPE("scroll-type") {
+            String getValue(GUITreeNode node) {
+                return node.getScrollType();
+            }
+        };
+
+        final String xmlName;
+
+        Attribute(String xmlName) {
+            this.xmlName = xmlName;
+        }
+
+        abstract String getValue(GUITreeNode node);
+
+        static Attribute fromXmlName(String name) {
+            for (Attribute attr : values()) {
+                if (attr.xmlName.equals(name)) {
+                    return attr;
+                }
+            }
+            return null;
+        }
+    }
+
+    static class Comparison {
+        final Attribute attribute;
+        final String value;
+        final boolean negated;
+
+        Comparison(Attribute attribute, String value, boolean negated) {
+            this.attribute = attribute;
+            this.value = value;
+            this.negated = negated;
+        }
+
+        boolean eval(GUITreeNode node) {
+            String actual = attribute.getValue(node);
+            if (actual == null) { // a missing attribute never compares
+                return false;
+            }
+            return actual.equals(value) != negated;
+        }
+    }
+
+    static class Predicate {
+        final Comparison[] comparisons;
+        final boolean disjunctive;
+
+        Predicate(Comparison[] comparisons, boolean disjunctive) {
+            this.comparisons = comparisons;
+            this.disjunctive = disjunctive;
+        }
+
+        boolean eval(GUITreeNode node) {
+            for (Comparison c : comparisons) {
+                if (c.eval(node) == disjunctive) {
+                    return disjunctive;
+                }
+            }
+            return !disjunctive;
+        }
+    }
+
+    static final Predicate[] EMPTY_PREDICATES = new Predicate[0];
+
+    /**
+     * steps[0] is the outermost <code>//*</code> step and the last one is
+     * the step that selects the node.
+     */
+    private final Predicate[][] steps;
+
+    private NameletMatcher(Predicate[][] steps) {
+        this.steps = steps;
+    }
+
+    public boolean matches(GUITreeNode node) {
+        for (int i = steps.length - 1; i >= 0; i--) {
+            if (node == null) {
+                return false;
+            }
+            for (Predicate p : steps[i]) {
+                if (!p.eval(node)) {
+                    return false;
+                }
+            }
+            node = node.getParent();
+        }
+        return true;
+    }
+
+    /**
+     * Collect matched nodes under the root in document order.
+     * @param root
+     * @param results
+     */
+    public void select(GUITreeNode root, List<GUITreeNode> results) {
+        if (matches(root)) {
+            results.add(root);
+        }
+        Iterator<GUITreeNode> it = root.getChildren();
+        while (it.hasNext()) {
+            select(it.next(), results);
+        }
+    }
+
+    /**
+     * @param root
+     * @return the first matched node in document order, or null.
+     */
+    public GUITreeNode selectFirst(GUITreeNode root) {
+        if (matches(root)) {
+            return root;
+        }
+        Iterator<GUITreeNode> it = root.getChildren();
+        while (it.hasNext()) {
+            GUITreeNode found = selectFirst(it.next());
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param exprStr
+     * @return null if the expression is not in a supported shape.
+     */
+    public static NameletMatcher compile(String exprStr) {
+        return new Parser(exprStr).parse();
+    }
+
+    static class Parser {
+        final String s;
+        int pos;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        NameletMatcher parse() {
+            if (!s.startsWith("//*")) {
+                return null;
+            }
+            pos = 3;
+            List<Predicate[]> steps = new ArrayList<Predicate[]>();
+            while (true) {
+                Predicate[] step = parseStep();
+                if (step == null) {
+                    return null;
+                }
+                steps.add(step);
+                skipSpaces();
+                if (pos == s.length()) {
+                    break;
+                }
+                if (!s.startsWith("/*", pos)) {
+                    return null;
+                }
+                pos += 2;
+            }
+            return new NameletMatcher(steps.toArray(new Predicate[steps.size()][]));
+        }
+
+        Predicate[] parseStep() {
+            List<Predicate> predicates = new ArrayList<Predicate>();
+            while (true) {
+                skipSpaces();
+                if (pos == s.length() || s.charAt(pos) != '[') {
+                    break;
+                }
+                pos++;
+                Predicate p = parsePredicate();
+                if (p == null) {
+                    return null;
+                }
+                predicates.add(p);
+            }
+            if (predicates.isEmpty()) {
+                return EMPTY_PREDICATES;
+            }
+            return predicates.toArray(new Predicate[predicates.size()]);
+        }
+
+        Predicate parsePredicate() {
+            List<Comparison> comparisons = new ArrayList<Comparison>();
+            Boolean disjunctive = null;
+            while (true) {
+                Comparison c = parseComparison();
+                if (c == null) {
+                    return null;
+                }
+                comparisons.add(c);
+                skipSpaces();
+                if (pos == s.length()) {
+                    return null;
+                }
+                if (s.charAt(pos) == ']') {
+                    pos++;
+                    break;
+                }
+                boolean or;
+                if (s.startsWith("or ", pos)) {
+                    or = true;
+                    pos += 3;
+                } else if (s.startsWith("and ", pos)) {
+                    or = false;
+                    pos += 4;
+                } else {
+                    return null;
+                }
+                if (disjunctive == null) {
+                    disjunctive = or;
+                } else if (disjunctive.booleanValue() != or) {
+                    return null; // mixed without parenthesis
+                }
+            }
+            return new Predicate(comparisons.toArray(new Comparison[comparisons.size()]),
+                    disjunctive != null && disjunctive.booleanValue());
+        }
+
+        Comparison parseComparison() {
+            skipSpaces();
+            if (pos == s.length() || s.charAt(pos) != '@') {
+                return null;
+            }
+            pos++;
+            int begin = pos;
+            while (pos < s.length() && isNameChar(s.charAt(pos))) {
+                pos++;
+            }
+            Attribute attribute = Attribute.fromXmlName(s.substring(begin, pos));
+            if (attribute == null) {
+                return null;
+            }
+            skipSpaces();
+            boolean negated = false;
+            if (s.startsWith("!=", pos)) {
+                negated = true;
+                pos += 2;
+            } else if (s.startsWith("=", pos)) {
+                pos += 1;
+            } else {
+                return null;
+            }
+            skipSpaces();
+            if (pos == s.length()) {
+                return null;
+            }
+            char quote = s.charAt(pos);
+            String value;
+            if (quote == '"' || quote == '\'') {
+                int end = s.indexOf(quote, pos + 1);
+                if (end == -1) {
+                    return null;
+                }
+                value = s.substring(pos + 1, end);
+                pos = end + 1;
+            } else {
+                // Numbers are compared numerically, only support integer indices.
+                if (attribute != Attribute.INDEX) {
+                    return null;
+                }
+                begin = pos;
+                while (pos < s.length() && Character.isDigit(s.charAt(pos))) {
+                    pos++;
+                }
+                if (begin == pos) {
+                    return null;
+                }
+                try {
+                    value = String.valueOf(Integer.parseInt(s.substring(begin, pos)));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            return new Comparison(attribute, value, negated);
+        }
+
+        boolean isNameChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '-' || c == '_';
+        }
+
+        void skipSpaces() {
+            while (pos < s.length() && s.charAt(pos) == ' ') {
+                pos++;
+            }
+        }
+    }
+}
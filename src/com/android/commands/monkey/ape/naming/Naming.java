@@ -19,6 +19,7 @@ import static com.android.commands.monkey.ape.utils.Config.ignoreEmpty;
 import static com.android.commands.monkey.ape.utils.Config.ignoreOutOfBounds;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -37,7 +38,6 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import com.android.commands.monkey.ape.tree.GUITree;
@@ -299,7 +299,7 @@ public class Naming implements Serializable {
      * @param namelet
      * @return
      */
-    public Naming extend(Namelet parent, Namelet namelet) {
+    public synchronized Naming extend(Namelet parent, Namelet namelet) {
         ensureContain(parent);
         ensureRefine(parent, namelet);
         Naming child = getChild(parent, namelet);
@@ -372,20 +372,6 @@ public class Naming implements Serializable {
         return new Naming(this, newNamelets);
     }
 
-    private void clearNames(Document xmlTree) {
-        LinkedList<GUITreeNode> queue = new LinkedList<>();
-        GUITreeNode root = GUITreeBuilder.getGUITreeNode(xmlTree.getDocumentElement());
-        queue.add(root);
-        while (!queue.isEmpty()) {
-            GUITreeNode current = queue.removeFirst();
-            current.setTempXPathName(null);
-            Iterator<GUITreeNode> children = current.getChildren();
-            while (children.hasNext()) {
-                queue.addLast(children.next());
-            }
-        }
-    }
-
     protected void saveXmlOnError(Document tree) {
         Logger.wprintln("Saving xml to /sdcard/badtree.xml");
         try {
@@ -396,16 +382,15 @@ public class Naming implements Serializable {
         }
     }
 
-    protected void saveXmlOnError(Document tree, Element element) {
+    protected void saveXmlOnError(GUITree guiTree, GUITreeNode guiNode) {
+        Document tree = guiTree.getDocument();
         saveXmlOnError(tree);
-        Utils.dumpElement(element);
+        Utils.dumpElement(guiNode.getDomNode());
         Logger.wprintln("----------------------------------------");
         Utils.dumpTree(tree);
         Logger.wprintln("----------------------------------------");
-        GUITree guiTree = GUITreeBuilder.getGUITree(tree);
-        GUITreeNode guiNode = GUITreeBuilder.getGUITreeNode(element);
         Logger.iprintln("Checking GUI tree #" + guiTree);
-        if (guiTree != null && !guiTree.containsHeavy(guiNode)) {
+        if (!guiTree.containsHeavy(guiNode)) {
             Logger.iprintln("GUITreeNode does not belong to the tree.");
         }
     }
@@ -450,25 +435,64 @@ public class Naming implements Serializable {
         return null;
     }
 
-    public Map<Element, List<Namelet>> select(Document tree) {
-        Map<Element, List<Namelet>> elementToNamelets = new HashMap<>();
+    /**
+     * Evaluate namelets that cannot be compiled into a {@link NameletMatcher}
+     * by XPath.
+     * @param tree
+     * @return null if all namelets have been compiled
+     */
+    private Map<GUITreeNode, List<Namelet>> selectByXPath(GUITree tree) {
+        Map<GUITreeNode, List<Namelet>> nodeToNamelets = null;
+        Document document = null;
+        for (Namelet namelet : namelets) {
+            if (namelet.getMatcher() != null) {
+                continue;
+            }
+            if (nodeToNamelets == null) {
+                nodeToNamelets = new HashMap<>();
+            }
+            // DOM documents are not safe for concurrent readers.
+            synchronized (tree) {
+                if (document == null) {
+                    document = tree.getDocument();
+                }
+                NodeList nodes = namelet.filter(document);
+                int length = nodes.getLength();
+                for (int i = 0; i < length; i++) {
+                    Element item = (Element) nodes.item(i);
+                    Utils.addToMapList(nodeToNamelets, GUITreeBuilder.getGUITreeNode(item), namelet);
+                }
+            }
+        }
+        return nodeToNamelets;
+    }
+
+    private List<Namelet> select(GUITreeNode node, Map<GUITreeNode, List<Namelet>> nodeToNamelets) {
+        List<Namelet> selected = null;
+        if (nodeToNamelets != null) {
+            selected = nodeToNamelets.get(node);
+            if (selected != null) {
+                selected = new ArrayList<>(selected);
+            }
+        }
         for (Namelet namelet : namelets) {
-            NodeList nodes = namelet.filter(tree);
-            int length = nodes.getLength();
-            for (int i = 0; i < length; i++) {
-                Element item = (Element) nodes.item(i);
-                Utils.addToMapList(elementToNamelets, item, namelet);
+            NameletMatcher matcher = namelet.getMatcher();
+            if (matcher != null && matcher.matches(node)) {
+                if (selected == null) {
+                    selected = new ArrayList<>(2);
+                }
+                selected.add(namelet);
             }
         }
-        return elementToNamelets;
+        return selected;
     }
 
-    private transient Map<GUITree, NamingResult> treeToNamingResult = new HashMap<>();
+    private static final NamingCache<GUITree, NamingResult> treeToNamingResult = new NamingCache<>("naming results");
 
     public NamingResult naming(GUITree tree, boolean updateNodeName) {
         NamingResult results;
 
-        results = treeToNamingResult.get(tree);
+        results = treeToNamingResult.get(this, tree);
         if (results != null) {
             if (updateNodeName) {
                 results.updateNames();
@@ -477,9 +501,8 @@ public class Naming implements Serializable {
         }
         long begin = SystemClock.elapsedRealtimeNanos();
         try {
-            Document document = tree.getDocument();
-            results = namingInternal(document, updateNodeName);
-            treeToNamingResult.put(tree, results);
+            results = namingInternal(tree, updateNodeName);
+            treeToNamingResult.put(this, tree, results);
             return results;
         } catch (RuntimeException e) {
             e.printStackTrace();
@@ -491,51 +514,46 @@ public class Naming implements Serializable {
         }
     }
 
-    protected NamingResult namingInternal(Document tree, boolean updateNodeName) {
+    protected NamingResult namingInternal(GUITree tree, boolean updateNodeName) {
         Map<Name, Map<GUITreeNode, Namelet>> nameToNodes = new HashMap<>();
-        Map<Element, List<Namelet>> elementToNamelets = select(tree);
-        LinkedList<Element> queue = new LinkedList<>();
-        Element root = tree.getDocumentElement();
+        Map<GUITreeNode, List<Namelet>> nodeToNamelets = selectByXPath(tree);
+        LinkedList<GUITreeNode> queue = new LinkedList<>();
+        GUITreeNode root = tree.getRootNode();
         queue.add(root);
-        while (!queue.isEmpty()) {
-            Element current = queue.removeFirst();
-            List<Namelet> namelets = elementToNamelets.get(current);
-            if (namelets == null || namelets.isEmpty()) {
-                saveXmlOnError(tree, current);
-                throw new IllegalStateException("A node has no namelets.");
-            }
-            Namelet namelet = select(namelets);
-            if (namelet == null) {
-                saveXmlOnError(tree, current);
-                throw new IllegalStateException("A node has no namelet.");
-            }
-            Namer namer = namelet.getNamer();
-            if (namer == null) {
-                throw new IllegalStateException("A node has no namer.");
-            }
-            GUITreeNode treeNode = GUITreeBuilder.getGUITreeNode(current);
-            if (treeNode == null) {
-                throw new IllegalStateException("GUITree is not bound.");
-            }
-            Name name = namer.naming(treeNode);
-            {
-                Utils.addToMapMap(nameToNodes, name, treeNode, namelet);
-                treeNode.setTempXPathName(name);
-                if (updateNodeName) {
-                    treeNode.setXPathName(name);
-                    treeNode.setCurrentNamelet(namelet);
+        try {
+            while (!queue.isEmpty()) {
+                GUITreeNode treeNode = queue.removeFirst();
+                List<Namelet> namelets = select(treeNode, nodeToNamelets);
+                if (namelets == null || namelets.isEmpty()) {
+                    saveXmlOnError(tree, treeNode);
+                    throw new IllegalStateException("A node has no namelets.");
                 }
-            }
-            NodeList children = current.getChildNodes();
-            int length = children.getLength();
-            for (int i = 0; i < length; i++) {
-                Node n = children.item(i);
-                if (n instanceof Element) {
-                    queue.addLast((Element) n);
+                Namelet namelet = select(namelets);
+                if (namelet == null) {
+                    saveXmlOnError(tree, treeNode);
+                    throw new IllegalStateException("A node has no namelet.");
+                }
+                Namer namer = namelet.getNamer();
+                if (namer == null) {
+                    throw new IllegalStateException("A node has no namer.");
+                }
+                Name name = namer.naming(treeNode);
+                {
+                    Utils.addToMapMap(nameToNodes, name, treeNode, namelet);
+                    treeNode.setTempXPathName(name);
+                    if (updateNodeName) {
+                        treeNode.setXPathName(name);
+                        treeNode.setCurrentNamelet(namelet);
+                    }
+                }
+                Iterator<GUITreeNode> children = treeNode.getChildren();
+                while (children.hasNext()) {
+                    queue.addLast(children.next());
                 }
             }
+        } finally {
+            GUITreeNode.clearTempXPathNames();
         }
-        clearNames((Document) tree);
         return new NamingResult(nameToNodes);
     }
 
@@ -574,7 +592,14 @@ public class Naming implements Serializable {
     }
 
     public void release(GUITree removed) {
-        this.treeToNamingResult.remove(removed);
+        treeToNamingResult.remove(this, removed);
+    }
+
+    /**
+     * Release the naming results of the tree under all namings.
+     */
+    public static void releaseAll(GUITree removed) {
+        treeToNamingResult.removeAll(removed);
     }
 
 }
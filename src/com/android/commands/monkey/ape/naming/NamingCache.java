@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.naming;
+
+import static com.android.commands.monkey.ape.utils.Config.namingCacheSize;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.android.commands.monkey.ape.utils.Logger;
+
+/**
+ * A bounded LRU cache of naming results keyed by a naming and a tree or a
+ * tree node. Trees and nodes are held weakly, so entries of trees dropped
+ * from the state history are expunged without an explicit release. Values
+ * that refer back to their key are only released by the LRU bound.
+ * 
+ * @author txgu
+ *
+ * @param <K>
+ *            a GUI tree or a GUI tree node
+ * @param <V>
+ *            the cached result
+ */
+public class NamingCache<K, V> {
+
+    private static final List<NamingCache<?, ?>> caches = new ArrayList<>();
+
+    static class CacheKey extends WeakReference<Object> {
+
+        final Naming naming;
+        final int hash;
+        /**
+         * Only set for lookup keys, which are never stored.
+         */
+        final Object strong;
+
+        CacheKey(Naming naming, Object key, ReferenceQueue<Object> queue) {
+            super(key, queue);
+            this.naming = naming;
+            this.hash = hash(naming, key);
+            this.strong = null;
+        }
+
+        CacheKey(Naming naming, Object key) {
+            super(null);
+            this.naming = naming;
+            this.hash = hash(naming, key);
+            this.strong = key;
+        }
+
+        static int hash(Naming naming, Object key) {
+            return 31 * System.identityHashCode(naming) + System.identityHashCode(key);
+        }
+
+        Object key() {
+            return strong != null ? strong : get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            if (naming != other.naming || hash != other.hash) {
+                return false;
+            }
+            Object key = key();
+            return key != null && key == other.key();
+        }
+    }
+
+    private final String name;
+    private final int capacity;
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    private final LinkedHashMap<CacheKey, V> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long collected;
+
+    public NamingCache(String name) {
+        this(name, namingCacheSize);
+    }
+
+    public NamingCache(String name, int capacity) {
+        this.name = name;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<CacheKey, V>(64, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, V> eldest) {
+                if (size() > NamingCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        synchronized (caches) {
+            caches.add(this);
+        }
+    }
+
+    private void expunge() {
+        Reference<?> ref;
+        while ((ref = queue.poll()) != null) {
+            if (entries.remove(ref) != null) {
+                collected++;
+            }
+        }
+    }
+
+    public synchronized V get(Naming naming, K key) {
+        expunge();
+        V value = entries.get(new CacheKey(naming, key));
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    public synchronized void put(Naming naming, K key, V value) {
+        expunge();
+        entries.put(new CacheKey(naming, key, queue), value);
+    }
+
+    public synchronized V remove(Naming naming, K key) {
+        expunge();
+        return entries.remove(new CacheKey(naming, key));
+    }
+
+    /**
+     * Remove the entries of the key under all namings.
+     */
+    public synchronized void removeAll(K key) {
+        expunge();
+        Iterator<CacheKey> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().get() == key) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        expunge();
+        return entries.size();
+    }
+
+    public synchronized void printCacheStatistics() {
+        expunge();
+        Logger.format("Naming cache %s: size (%d/%d), hits (%d), misses (%d), evictions (%d), collected (%d)", name,
+                entries.size(), capacity, hits, misses, evictions, collected);
+    }
+
+    public static void printStatistics() {
+        synchronized (caches) {
+            for (NamingCache<?, ?> cache : caches) {
+                cache.printCacheStatistics();
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ import static com.android.commands.monkey.ape.utils.Config.actionRefinmentThresh
 import static com.android.commands.monkey.ape.utils.Config.maxGUITreesPerState;
 import static com.android.commands.monkey.ape.utils.Config.maxInitialNamesPerStateThreshold;
 import static com.android.commands.monkey.ape.utils.Config.maxStatesPerActivity;
+import static com.android.commands.monkey.ape.utils.Config.refinementThreads;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -36,6 +37,10 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import com.android.commands.monkey.ape.model.ActivityNode;
@@ -69,6 +74,7 @@ public class NamingFactory implements Serializable {
     private static final boolean debug = false;
 
     private PriorityQueue<Predicate> predicates = new PriorityQueue<Predicate>();
+    private transient PredicateCache predicateCache;
 
     // Avoid repeatedly refinement/abstraction
     private Set<ModelAction> actionRefinementBlacklist = new HashSet<>();
@@ -253,7 +259,7 @@ public class NamingFactory implements Serializable {
             for (GUITree tree : affectedGUITrees) {
                 Naming current = tree.getCurrentNaming();
                 Naming dict = nm.getNaming(tree);
-                Naming graph = nm.getNaming(tree, tree.getActivityName(), tree.getDocument());
+                Naming graph = nm.getNaming(tree, tree.getActivityName(), tree.getLoadedDocument());
                 if (current != dict || current != graph) {
                     nm.dump();
                     throw new IllegalStateException();
@@ -298,8 +304,8 @@ public class NamingFactory implements Serializable {
         return results;
     }
 
-    private void stateRefinement(List<RefinementResult> results, NamingManager nm, Set<GUITree> affected, Naming currentNaming, StateTransition st1,
-            StateTransition st2, List<GUITreeTransition> tts1, List<GUITreeTransition> tts2) {
+    private void stateRefinement(List<RefinementResult> results, final NamingManager nm, final Set<GUITree> affected, final Naming currentNaming,
+            final StateTransition st1, final StateTransition st2, final List<GUITreeTransition> tts1, final List<GUITreeTransition> tts2) {
         GUITreeTransition tt1 = tts1.get(tts1.size() - 1);
         GUITreeTransition tt2 = tts2.get(tts2.size() - 1);
         if (isTopNamingEquivalent(tt1.getSource(), tt2.getSource())) {
@@ -358,39 +364,91 @@ public class NamingFactory implements Serializable {
                 }
             }
         }
-        for (Name name : candidates) {
-            String xpathStr = NamerFactory.nameToXPathString(name);
-            Namelet currentNamelet = checkNamelet(currentNaming, name, tts1, tts2);
-            if (currentNamelet == null) {
-                continue;
+        List<RefinementResult> refined = new ArrayList<>();
+        if (refinementThreads > 1 && candidates.size() > 1) {
+            List<Callable<RefinementResult>> tasks = new ArrayList<>(candidates.size());
+            for (final Name name : candidates) {
+                tasks.add(new Callable<RefinementResult>() {
+
+                    @Override
+                    public RefinementResult call() {
+                        return stateRefinement(name, nm, affected, currentNaming, st1, st2, tts1, tts2);
+                    }
+                });
             }
-            Namer currentNamer = name.getNamer();
-            List<Namer> refinedNamers = NamerFactory.getSortedAbove(currentNamer);
-            List<Namer> upperBounds = new ArrayList<>();
-            Set<Namer> visited = new HashSet<Namer>();
-            visited.add(currentNamer);
-            LinkedList<Namer> queue = new LinkedList<Namer>();
-            collectSortedAbove(currentNamer, queue, visited);
-            outer: for (Namer refined : refinedNamers) {
-                if (!upperBounds.isEmpty()) {
-                    for (Namer upper : upperBounds) {
-                        if (refined.refinesTo(upper)) {
-                            continue outer; // no retry 
-                        }
+            try {
+                for (Future<RefinementResult> future : getRefinementPool().invokeAll(tasks)) {
+                    RefinementResult rr = future.get();
+                    if (rr != null) {
+                        refined.add(rr);
                     }
                 }
-                Namelet newNamelet = new Namelet(xpathStr, refined);
-                Naming newNaming = currentNaming.extend(currentNamelet, newNamelet);
-                if (!checkStateRefinement(newNaming, refined, tts1, tts2, upperBounds)) {
-                    continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted during state refinement.", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
                 }
-                if (!checkPredicate(nm, affected, newNaming)) {
-                    continue;
+                throw new RuntimeException(cause);
+            }
+        } else {
+            for (Name name : candidates) {
+                RefinementResult rr = stateRefinement(name, nm, affected, currentNaming, st1, st2, tts1, tts2);
+                if (rr != null) {
+                    refined.add(rr);
                 }
-                results.add(new RefinementResult(false, currentNaming, newNaming, currentNamelet, newNamelet, st1, st2, tts1, tts2));
-                break;
             }
         }
+        // Candidates come from a hash set, keep the results independent of the completion order.
+        Collections.sort(refined, comparator);
+        results.addAll(refined);
+    }
+
+    /**
+     * Try the namers above the namer of the given candidate in order and
+     * return the first refinement that passes all checks. May be called from
+     * refinement worker threads.
+     */
+    private RefinementResult stateRefinement(Name name, NamingManager nm, Set<GUITree> affected, Naming currentNaming,
+            StateTransition st1, StateTransition st2, List<GUITreeTransition> tts1, List<GUITreeTransition> tts2) {
+        String xpathStr = NamerFactory.nameToXPathString(name);
+        Namelet currentNamelet = checkNamelet(currentNaming, name, tts1, tts2);
+        if (currentNamelet == null) {
+            return null;
+        }
+        Namer currentNamer = name.getNamer();
+        List<Namer> refinedNamers = NamerFactory.getSortedAbove(currentNamer);
+        List<Namer> upperBounds = new ArrayList<>();
+        outer: for (Namer refined : refinedNamers) {
+            if (!upperBounds.isEmpty()) {
+                for (Namer upper : upperBounds) {
+                    if (refined.refinesTo(upper)) {
+                        continue outer; // no retry 
+                    }
+                }
+            }
+            Namelet newNamelet = new Namelet(xpathStr, refined);
+            Naming newNaming = currentNaming.extend(currentNamelet, newNamelet);
+            if (!checkStateRefinement(newNaming, refined, tts1, tts2, upperBounds)) {
+                continue;
+            }
+            if (!checkPredicate(nm, affected, newNaming)) {
+                continue;
+            }
+            return new RefinementResult(false, currentNaming, newNaming, currentNamelet, newNamelet, st1, st2, tts1, tts2);
+        }
+        return null;
+    }
+
+    private static ForkJoinPool refinementPool;
+
+    private static synchronized ForkJoinPool getRefinementPool() {
+        if (refinementPool == null) {
+            refinementPool = new ForkJoinPool(refinementThreads);
+        }
+        return refinementPool;
     }
 
     /**
@@ -428,6 +486,22 @@ public class NamingFactory implements Serializable {
         }
     };
 
+    private synchronized PredicateCache getPredicateCache() {
+        if (predicateCache == null) {
+            predicateCache = new PredicateCache(predicates);
+        }
+        return predicateCache;
+    }
+
+    private void addPredicate(Predicate p) {
+        predicates.add(p);
+        getPredicateCache().add(p);
+    }
+
+    public static void printPredicateStatistics() {
+        PredicateCache.printStatistics();
+    }
+
     private boolean checkPredicate(NamingManager nm, Set<GUITree> affected, Naming naming) {
         for (GUITree tree : affected) {
             if (Utils.containsMapSet(guiTreeNamingBlaclist, tree, naming)) {
@@ -435,8 +509,9 @@ public class NamingFactory implements Serializable {
                 return false;
             }
         }
+        PredicateCache cache = getPredicateCache();
         for (Predicate p : predicates) {
-            boolean ret = p.eval(nm, affected, naming);
+            boolean ret = cache.eval(p, nm, affected, naming);
             if (ret == false) {
                 Logger.iformat("Naming %s violates constraints %s. ", naming, p);
                 return false;
@@ -455,6 +530,7 @@ public class NamingFactory implements Serializable {
         }
         if (!toBeRemoved.isEmpty()) {
             predicates.removeAll(toBeRemoved);
+            getPredicateCache().removeAll(toBeRemoved);
         }
     }
 
@@ -474,7 +550,7 @@ public class NamingFactory implements Serializable {
         } else {
             p = new AssertSourceDivergent(rr.updatedNaming, ts);
         }
-        predicates.add(p);
+        addPredicate(p);
     }
 
     private void sortRefinementResults(List<RefinementResult> candidates) {
@@ -514,7 +590,7 @@ public class NamingFactory implements Serializable {
             for (GUITree tree : affectedGUITrees) {
                 Naming current = tree.getCurrentNaming();
                 Naming dict = nm.getNaming(tree);
-                Naming graph = nm.getNaming(tree, tree.getActivityName(), tree.getDocument());
+                Naming graph = nm.getNaming(tree, tree.getActivityName(), tree.getLoadedDocument());
                 if (current != dict || current != graph) {
                     nm.dump();
                     throw new IllegalStateException();
@@ -793,11 +869,21 @@ public class NamingFactory implements Serializable {
         return isStateEquivalent(getBaseNaming(), t1, t2);
     }
 
-    static boolean isIsomorphic(GUITree t1, GUITree t2) {
+    public static boolean isIsomorphic(GUITree t1, GUITree t2) {
         return isIsomorphic(t1.getRootNode(), t2.getRootNode());
     }
 
+    /**
+     * Fingerprints only rule out subtrees that differ. Equal fingerprints may
+     * collide, so matching subtrees are still compared attribute by attribute.
+     */
     static boolean isIsomorphic(GUITreeNode t1, GUITreeNode t2) {
+        if (t1 == t2) {
+            return true;
+        }
+        if (t1.getFingerprint() != t2.getFingerprint()) {
+            return false;
+        }
         // Index
         if (t1.getIndex() != t2.getIndex()) {
             return false;
@@ -1042,7 +1128,7 @@ public class NamingFactory implements Serializable {
         blacklistRefinement(affectedGUITrees, targetParentNaming, targetNaming);
         model = rebuild(model, affectedGUITrees, targetParentNaming);
         removeConflictPredicates(nm, affectedGUITrees, targetParentNaming);
-        this.predicates.add(p);
+        addPredicate(p);
         return model;
     }
 
@@ -1150,7 +1236,7 @@ public class NamingFactory implements Serializable {
         // stop searching finer namers;
         upperBounds.add(newNamer);
         Predicate p = createAssertActionDivergent(newNaming, model, partitions, tree, trees, threshold);
-        this.predicates.add(p);
+        addPredicate(p);
         // Finally: rebuild the model
         return rebuild(model, trees, newNaming);
     }
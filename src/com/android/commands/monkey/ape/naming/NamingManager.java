@@ -75,6 +75,13 @@ public interface NamingManager extends Serializable {
 
     void updateNaming(GUITree tree, Naming newOne);
 
+    /**
+     * Namings whose sub-lattice may contain GUI trees with an updated naming
+     * since the last call. The set is reset after each call.
+     * @return null if any GUI tree may have been updated
+     */
+    Set<Naming> pollUpdatedNamings();
+
     /**
      * Used for sanity check only
      * @param trees
@@ -26,6 +26,7 @@ public class ParentNamer extends AbstractNamer {
         private static final long serialVersionUID = 1L;
         Name parentName;
         Name localName;
+        transient int hashCode;
 
         public ParentName(Name parentName, Name localName) {
             this.parentName = parentName;
@@ -34,11 +35,14 @@ public class ParentNamer extends AbstractNamer {
 
         @Override
         public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((localName == null) ? 0 : localName.hashCode());
-            result = prime * result + ((parentName == null) ? 0 : parentName.hashCode());
-            return result;
+            if (hashCode == 0) {
+                final int prime = 31;
+                int result = 1;
+                result = prime * result + ((localName == null) ? 0 : localName.hashCode());
+                result = prime * result + ((parentName == null) ? 0 : parentName.hashCode());
+                hashCode = result;
+            }
+            return hashCode;
         }
 
         @Override
@@ -15,6 +15,7 @@
  */
 package com.android.commands.monkey.ape.naming;
 
+import java.util.Collection;
 import java.util.Set;
 
 import com.android.commands.monkey.ape.tree.GUITree;
@@ -26,4 +27,9 @@ public interface Predicate extends Comparable<Predicate> {
     boolean eval(NamingManager nm, Set<GUITree> affected, Naming naming);
     Naming getUpdatedNaming();
     Type getType();
+
+    /**
+     * GUI trees whose names or states the verdict depends on.
+     */
+    Collection<GUITree> getGUITrees();
 }
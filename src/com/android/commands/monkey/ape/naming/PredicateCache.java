@@ -0,0 +1,228 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.naming;
+
+import static com.android.commands.monkey.ape.utils.Config.namingCacheSize;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.android.commands.monkey.ape.tree.GUITree;
+import com.android.commands.monkey.ape.utils.Logger;
+
+/**
+ * Memoized verdicts of refinement predicates. A verdict depends on the
+ * candidate naming only for the GUI trees of the predicate that are in the
+ * affected set, so predicates are indexed by their GUI trees. A predicate
+ * sharing no tree with the affected set is evaluated once per version of
+ * the naming manager. All verdicts are dropped when the naming manager
+ * changes.
+ * 
+ * @author txgu
+ *
+ */
+class PredicateCache {
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong independent = new AtomicLong();
+
+    static class AffectedKey {
+
+        final Set<GUITree> trees;
+        final int hash;
+
+        AffectedKey(Set<GUITree> affected) {
+            this.trees = new HashSet<>(affected);
+            this.hash = trees.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof AffectedKey)) {
+                return false;
+            }
+            AffectedKey other = (AffectedKey) obj;
+            return hash == other.hash && trees.equals(other.trees);
+        }
+    }
+
+    static class VerdictKey {
+
+        final Predicate predicate;
+        final Naming naming;
+        final AffectedKey affected;
+        final int hash;
+
+        VerdictKey(Predicate predicate, Naming naming, AffectedKey affected) {
+            this.predicate = predicate;
+            this.naming = naming;
+            this.affected = affected;
+            int h = System.identityHashCode(predicate);
+            h = 31 * h + System.identityHashCode(naming);
+            h = 31 * h + (affected == null ? 0 : affected.hash);
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof VerdictKey)) {
+                return false;
+            }
+            VerdictKey other = (VerdictKey) obj;
+            if (predicate != other.predicate || naming != other.naming || hash != other.hash) {
+                return false;
+            }
+            if (affected == null) {
+                return other.affected == null;
+            }
+            return affected.equals(other.affected);
+        }
+    }
+
+    private final Map<GUITree, List<Predicate>> treeToPredicates = new HashMap<>();
+    private final LinkedHashMap<VerdictKey, Boolean> verdicts = new LinkedHashMap<VerdictKey, Boolean>(64, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<VerdictKey, Boolean> eldest) {
+            return size() > namingCacheSize;
+        }
+    };
+
+    private NamingManager namingManager;
+    private int version;
+
+    private Set<GUITree> lastAffected;
+    private AffectedKey lastAffectedKey;
+    private Set<Predicate> lastOverlapping;
+
+    PredicateCache(Collection<Predicate> predicates) {
+        for (Predicate p : predicates) {
+            add(p);
+        }
+    }
+
+    synchronized void add(Predicate p) {
+        for (GUITree tree : p.getGUITrees()) {
+            List<Predicate> list = treeToPredicates.get(tree);
+            if (list == null) {
+                list = new ArrayList<>(2);
+                treeToPredicates.put(tree, list);
+            }
+            list.add(p);
+        }
+        lastAffected = null;
+    }
+
+    synchronized void removeAll(Collection<Predicate> removed) {
+        for (Predicate p : removed) {
+            for (GUITree tree : p.getGUITrees()) {
+                List<Predicate> list = treeToPredicates.get(tree);
+                if (list != null) {
+                    list.remove(p);
+                    if (list.isEmpty()) {
+                        treeToPredicates.remove(tree);
+                    }
+                }
+            }
+        }
+        verdicts.clear();
+        lastAffected = null;
+    }
+
+    /**
+     * Evaluate the predicate or reuse its verdict.
+     */
+    boolean eval(Predicate p, NamingManager nm, Set<GUITree> affected, Naming naming) {
+        VerdictKey key;
+        synchronized (this) {
+            if (nm != namingManager || nm.getVersion() != version) {
+                namingManager = nm;
+                version = nm.getVersion();
+                verdicts.clear();
+            }
+            if (affected != lastAffected) {
+                lastAffected = affected;
+                lastAffectedKey = new AffectedKey(affected);
+                lastOverlapping = overlapping(affected);
+            }
+            if (lastOverlapping.contains(p)) {
+                key = new VerdictKey(p, naming, lastAffectedKey);
+            } else {
+                key = new VerdictKey(p, null, null);
+            }
+            Boolean verdict = verdicts.get(key);
+            if (verdict != null) {
+                hits.incrementAndGet();
+                if (key.naming == null) {
+                    independent.incrementAndGet();
+                }
+                return verdict;
+            }
+            misses.incrementAndGet();
+        }
+        boolean verdict = p.eval(nm, affected, naming);
+        synchronized (this) {
+            if (nm == namingManager && nm.getVersion() == version) {
+                verdicts.put(key, verdict);
+            }
+        }
+        return verdict;
+    }
+
+    private Set<Predicate> overlapping(Set<GUITree> affected) {
+        Set<Predicate> overlapping = Collections.newSetFromMap(new IdentityHashMap<Predicate, Boolean>());
+        for (GUITree tree : affected) {
+            List<Predicate> list = treeToPredicates.get(tree);
+            if (list != null) {
+                overlapping.addAll(list);
+            }
+        }
+        return overlapping;
+    }
+
+    static void printStatistics() {
+        Logger.format("Predicate verdicts: hits (%d), misses (%d), naming independent hits (%d)", hits.get(), misses.get(),
+                independent.get());
+    }
+}
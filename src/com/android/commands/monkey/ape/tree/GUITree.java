@@ -31,6 +31,7 @@ import com.android.commands.monkey.ape.model.ModelAction;
 import com.android.commands.monkey.ape.model.State;
 import com.android.commands.monkey.ape.naming.Name;
 import com.android.commands.monkey.ape.naming.Naming;
+import com.android.commands.monkey.ape.naming.NamingFactory;
 import com.android.commands.monkey.ape.utils.Logger;
 import com.android.commands.monkey.ape.utils.Utils;
 
@@ -102,8 +103,22 @@ public class GUITree implements Serializable {
         return currentNames;
     }
 
+    /**
+     * Structural fingerprint of the whole tree.
+     * @return
+     */
+    public long getFingerprint() {
+        return rootNode.getFingerprint();
+    }
+
+    /**
+     * Fingerprints filter out most different trees before the structural
+     * comparison.
+     * @param tree
+     * @return
+     */
     public boolean isIsomorphicTo(GUITree tree) {
-        throw new RuntimeException("Not implemented");
+        return NamingFactory.isIsomorphic(this, tree);
     }
 
     public void printGUITree() {
@@ -193,7 +208,7 @@ public class GUITree implements Serializable {
         return nodes.length;
     }
 
-    public Document getDocument() {
+    public synchronized Document getDocument() {
         if (document == null) {
             Logger.iformat("Rebuild document for tree #%d", this.getTimestamp());
             document = GUITreeBuilder.buildDocumentFromGUITree(this);
@@ -202,10 +217,21 @@ public class GUITree implements Serializable {
         return document;
     }
 
+    /**
+     * @return the document if it has been built, otherwise null.
+     */
+    public Document getLoadedDocument() {
+        return document;
+    }
+
+    /**
+     * A DOM-free tree is registered as well so that its node infos get released.
+     * @param document
+     */
     public void setDocument(Document document) {
         this.document = document;
+        registerLoadedData(this);
         if (document != null) {
-            registerLoadedData(this);
             document.setUserData(GUITreeBuilder.GUI_TREE_PROP_NAME, this, null);
         }
     }
@@ -298,26 +324,16 @@ public class GUITree implements Serializable {
     }
 
     /**
-     * For debugging only, need to traverse the whole GUI tree.
+     * Walk up the parents of the given node to the root.
      * @param node
      * @return
      */
     public boolean containsHeavy(GUITreeNode node) {
-        return search(rootNode, node);
-    }
-
-    private boolean search(final GUITreeNode root, final GUITreeNode node) {
-        if (root == node) {
-            return true;
-        }
-        if (root.getChildCount() == 0) {
-            return false;
-        }
-        Iterator<GUITreeNode> it = root.getChildren();
-        while (it.hasNext()) {
-            if (search(it.next(), node)) {
+        while (node != null) {
+            if (node == rootNode) {
                 return true;
             }
+            node = node.getParent();
         }
         return false;
     }
@@ -332,9 +348,11 @@ public class GUITree implements Serializable {
     }
 
     private static void releaseNodeData(GUITreeNode node) {
-        Element e = node.getDomNode();
-        e.setUserData(GUITreeBuilder.GUI_TREE_NODE_PROP_NAME, null, null);
-        node.setDomNode(null);
+        if (node.hasDomNode()) {
+            Element e = node.getDomNode();
+            e.setUserData(GUITreeBuilder.GUI_TREE_NODE_PROP_NAME, null, null);
+            node.setDomNode(null);
+        }
         node.setNodeInfo(null);
         Iterator<GUITreeNode> iterator = node.getChildren();
         while (iterator.hasNext()) {
@@ -18,19 +18,19 @@ package com.android.commands.monkey.ape.tree;
 import static com.android.commands.monkey.ape.utils.Config.alwaysIgnoreWebView;
 import static com.android.commands.monkey.ape.utils.Config.alwaysIgnoreWebViewAction;
 import static com.android.commands.monkey.ape.utils.Config.computeImageText;
+import static com.android.commands.monkey.ape.utils.Config.domFreeTrees;
 import static com.android.commands.monkey.ape.utils.Config.excludeEmptyChild;
 import static com.android.commands.monkey.ape.utils.Config.excludeInvisibleNode;
 import static com.android.commands.monkey.ape.utils.Config.ignoreWebViewThreshold;
 import static com.android.commands.monkey.ape.utils.Config.patchGUITree;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -53,10 +53,14 @@ import com.android.commands.monkey.ape.model.StateKey;
 import com.android.commands.monkey.ape.model.xpathaction.XPathlet;
 import com.android.commands.monkey.ape.model.xpathaction.XPathletReader;
 import com.android.commands.monkey.ape.naming.Name;
+import com.android.commands.monkey.ape.naming.NameletMatcher;
 import com.android.commands.monkey.ape.naming.Naming;
+import com.android.commands.monkey.ape.naming.NamingCache;
 import com.android.commands.monkey.ape.naming.Naming.NamingResult;
 import com.android.commands.monkey.ape.naming.NamingManager;
 import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.StepTimer;
+import com.android.commands.monkey.ape.utils.StepTimer.Phase;
 import com.android.commands.monkey.ape.utils.StringCache;
 import com.android.commands.monkey.ape.utils.Utils;
 
@@ -86,6 +90,11 @@ public class GUITreeBuilder {
      * User configured rules to create GUI trees.
      */
     private static final List<XPathlet> xPathlets;
+    /**
+     * Matchers of xPathlets at the same index, used to apply xPathlets on
+     * DOM-free trees. Null if some xPathlet can only be evaluated by XPath.
+     */
+    private static final NameletMatcher[] xPathletMatchers;
     static {
         File jsonFile = new File("/sdcard/ape.xpath");
         XPathletReader reader = new XPathletReader();
@@ -94,6 +103,19 @@ public class GUITreeBuilder {
         } else {
             xPathlets = Collections.emptyList();
         }
+        NameletMatcher[] matchers = new NameletMatcher[xPathlets.size()];
+        for (int i = 0; i < matchers.length; i++) {
+            matchers[i] = NameletMatcher.compile(xPathlets.get(i).getExprStr());
+            if (matchers[i] == null) {
+                if (domFreeTrees) {
+                    Logger.wformat("XPathlet %s requires a DOM, GUI trees will be built with documents.",
+                            xPathlets.get(i).getExprStr());
+                }
+                matchers = null;
+                break;
+            }
+        }
+        xPathletMatchers = matchers;
     }
 
     public static GUITree getGUITree(Document document) {
@@ -123,6 +145,21 @@ public class GUITreeBuilder {
         }
     }
 
+    private static void applyXPathlets(GUITreeNode root) {
+        List<GUITreeNode> nodes = new ArrayList<GUITreeNode>();
+        for (int i = 0; i < xPathletMatchers.length; i++) {
+            XPathlet xpathlet = xPathlets.get(i);
+            nodes.clear();
+            xPathletMatchers[i].select(root, nodes);
+            Logger.iformat("Select %d nodes by %s", nodes.size(), xpathlet.getExprStr());
+            for (GUITreeNode n : nodes) {
+                n.resetActions(xpathlet.getActions());
+                n.setExtraThrottle(xpathlet.getThrottle());
+                n.setInputText(xpathlet.getText());
+            }
+        }
+    }
+
     static Rect parseRect(String bounds) {
         Matcher m = BOUNDS_RECT.matcher(bounds);
         if (m.matches()) {
@@ -162,6 +199,33 @@ public class GUITreeBuilder {
         buildGUITree(document);
     }
 
+    /**
+     * Build a GUI tree from nodes read by
+     * {@link GUITreeNode#readSubtree(java.io.DataInput)}. The document is
+     * built on demand.
+     * @param nm
+     * @param activity
+     * @param rootNode
+     */
+    public GUITreeBuilder(NamingManager nm, ComponentName activity, GUITreeNode rootNode) {
+        this(nm, activity);
+        rootNode.computeFingerprint();
+        tree = new GUITree(rootNode, activity);
+        tree.setDocument(null);
+        nameGUITree();
+    }
+
+    /**
+     * Build a GUI tree without naming it. It can be named later by
+     * {@link #GUITreeBuilder(NamingManager, GUITree)}.
+     * @param activity
+     * @param document
+     */
+    public GUITreeBuilder(ComponentName activity, Document document) {
+        this(null, activity);
+        buildGUITree(document);
+    }
+
     /**
      * For rebuild a new GUI tree from the given GUI tree
      * @param nm
@@ -169,7 +233,7 @@ public class GUITreeBuilder {
      */
     public GUITreeBuilder(NamingManager nm, GUITree tree) {
         this(nm, tree.getActivityName());
-        this.document = tree.getDocument();
+        this.document = tree.getLoadedDocument();
         this.tree = tree;
         rebuildGUITree();
     }
@@ -178,16 +242,23 @@ public class GUITreeBuilder {
         GUITreeNode rootNode = buildNodeAndXmlFromNodeInfo(rootInfo, bitmap);
         tree = new GUITree(rootNode, activity);
         tree.setDocument(document);
-        Naming current = nm.getNaming(tree);
-        NamingResult results = current.naming(tree, true);
-        tree.setCurrentNaming(current, results.getNames(), results.getNodes());
+        nameGUITree();
         return tree;
     }
 
+    private void nameGUITree() {
+        StepTimer.begin(Phase.NAMING);
+        try {
+            Naming current = nm.getNaming(tree);
+            NamingResult results = current.naming(tree, true);
+            tree.setCurrentNaming(current, results.getNames(), results.getNodes());
+        } finally {
+            StepTimer.end(Phase.NAMING);
+        }
+    }
+
     private void rebuildGUITree() {
-        Naming current = nm.getNaming(tree);
-        NamingResult results = current.naming(tree, true);
-        tree.setCurrentNaming(current, results.getNames(), results.getNodes());
+        nameGUITree();
         tree.setCurrentState(null);
     }
 
@@ -200,9 +271,9 @@ public class GUITreeBuilder {
         GUITreeNode rootNode = buildNodeFromXml(document);
         tree = new GUITree(rootNode, activity);
         tree.setDocument(document);
-        Naming current = nm.getNaming(tree);
-        NamingResult results = current.naming(tree, true);
-        tree.setCurrentNaming(current, results.getNames(), results.getNodes());
+        if (nm != null) {
+            nameGUITree();
+        }
         return tree;
     }
 
@@ -216,44 +287,53 @@ public class GUITreeBuilder {
     }
 
     protected GUITreeNode buildNodeAndXmlFromNodeInfo(AccessibilityNodeInfo info, Bitmap image) {
-        document = createDocument();
-        GUITreeNode root = buildNodeAndXmlFromNodeInfo(null, document, info, 0);
-        if (document != null) {
-            document.appendChild(root.getDomNode());
-            applyXPathlets(document);
+        GUITreeNode root;
+        if (domFreeTrees && xPathletMatchers != null) {
+            document = null;
+            root = buildNodeAndXmlFromNodeInfo(null, null, info, 0);
+            applyXPathlets(root);
+        } else {
+            document = createDocument();
+            root = buildNodeAndXmlFromNodeInfo(null, document, info, 0);
+            if (document != null) {
+                document.appendChild(root.getDomNode());
+                applyXPathlets(document);
+            }
         }
         if (patchGUITree) {
             patchGUITree(root);
         }
         if (computeImageText) {
             if (image != null) {
-                computeImageText(root, image);
-                image.recycle();
+                ImageTextHasher hasher = new ImageTextHasher(image);
+                try {
+                    computeImageText(root, hasher);
+                } finally {
+                    hasher.release();
+                }
             }
         }
         if (alwaysIgnoreWebViewAction && !alwaysIgnoreWebView) {
             ignoreActionsInWebView(root, root.isWebView());
         }
+        root.computeFingerprint();
         return root;
     }
 
     /**
      * An ImageButton may not have a text attribute. We compute a hash value from its bytes as its text.
      * @param node
-     * @param image
+     * @param hasher
      */
-    void computeImageText(GUITreeNode node, final Bitmap image) {
-        if (image == null) {
-            return;
-        }
+    void computeImageText(GUITreeNode node, ImageTextHasher hasher) {
         if (node.getChildCount() > 0) {
             Iterator<GUITreeNode> it = node.getChildren();
             while (it.hasNext()) {
-                computeImageText(it.next(), image);
+                computeImageText(it.next(), hasher);
             }
         } else {
             if (node.getText() == null || node.getText().length() == 0) {
-                node.computeAndSetImageText(image);
+                hasher.computeAndSetImageText(node);
             }
         }
     }
@@ -383,7 +463,7 @@ public class GUITreeBuilder {
             if (node.isClickable() || node.isCheckable() || node.isLongClickable() || node.isScrollable()) {
                 throw new IllegalStateException("Should be cleared!");
             }
-            if (node.getDomNode() == null) {
+            if (document != null && !node.hasDomNode()) {
                 throw new RuntimeException();
             }
         }
@@ -474,6 +554,7 @@ public class GUITreeBuilder {
 
     protected GUITreeNode buildNodeFromXml(Document document) {
         GUITreeNode root = buildNodeFromXml(null, 0, getFirstChildElement(document.getDocumentElement()));
+        root.computeFingerprint();
         return root;
     }
 
@@ -484,6 +565,7 @@ public class GUITreeBuilder {
         n.setClassName(e.getAttribute("class"));
         n.setPackageName(e.getAttribute("package"));
         n.setText(e.getAttribute("text"));
+        n.setContentDesc(e.getAttribute("content-desc"));
 
         n.setClickable(Boolean.valueOf(e.getAttribute("clickable")));
         n.setLongClickable(Boolean.valueOf(e.getAttribute("long-clickable")));
@@ -516,6 +598,8 @@ public class GUITreeBuilder {
                 n.addChild(buildNodeFromXml(n, ci++, (Element) xml));
             }
         }
+        // link after the children so that addChild does not move their elements
+        n.setDomNode(e);
         return n;
     }
 
@@ -624,8 +708,7 @@ public class GUITreeBuilder {
         return this.document;
     }
 
-    final static Map<Naming, Map<GUITree, StateKey>> namingToGUITreeCache = new HashMap<>();
-    final static Map<Naming, Map<GUITree, Object[]>> namingToGUITreeNodesCache = new HashMap<>();
+    final static NamingCache<GUITree, StateKey> namingToGUITreeCache = new NamingCache<>("state keys");
 
     public static StateKey getStateKey(Naming naming, GUITree tree) {
         if (tree.getCurrentNaming() == naming) {
@@ -634,7 +717,7 @@ public class GUITreeBuilder {
                 return current.getStateKey();
             }
         }
-        StateKey result = Utils.getFromMapMap(namingToGUITreeCache, naming, tree);
+        StateKey result = namingToGUITreeCache.get(naming, tree);
         if (result == null) {
             ComponentName activity = tree.getActivityName();
             if (tree.getCurrentNaming() == naming) {
@@ -642,32 +725,27 @@ public class GUITreeBuilder {
             } else {
                 result = State.buildStateKey(naming, activity, naming.getNames(tree));
             }
-            Utils.addToMapMap(namingToGUITreeCache, naming, tree, result);
+            namingToGUITreeCache.put(naming, tree, result);
         }
         return result;
     }
 
-    static Map<Naming, Map<GUITreeNode, Name>> namingToGUITreeNodeCache = new HashMap<>();
+    final static NamingCache<GUITreeNode, Name> namingToGUITreeNodeCache = new NamingCache<>("node names");
 
     public static Name getNodeName(Naming naming, GUITree tree, GUITreeNode node) {
         if (tree.getCurrentNaming() == naming) {
             return node.getXPathName();
         }
-        Name result = Utils.getFromMapMap(namingToGUITreeNodeCache, naming, node);
+        Name result = namingToGUITreeNodeCache.get(naming, node);
         if (result == null) {
             result = naming.getName(tree, node);
-            Utils.addToMapMap(namingToGUITreeNodeCache, naming, node, result);
+            namingToGUITreeNodeCache.put(naming, node, result);
         }
         return result;
     }
 
     public static void release(GUITree removed) {
-        Naming naming = removed.getCurrentNaming();
-        if (naming == null) {
-            return;
-        }
-        Utils.removeFromMapMap(namingToGUITreeCache, naming, removed);
-        Utils.removeFromMapMap(namingToGUITreeNodesCache, naming, removed);
-        naming.release(removed);
+        namingToGUITreeCache.removeAll(removed);
+        Naming.releaseAll(removed);
     }
 }
@@ -15,8 +15,15 @@
  */
 package com.android.commands.monkey.ape.tree;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -26,10 +33,9 @@ import com.android.commands.monkey.ape.model.ActionType;
 import com.android.commands.monkey.ape.naming.Name;
 import com.android.commands.monkey.ape.naming.NameManager;
 import com.android.commands.monkey.ape.naming.Namelet;
+import com.android.commands.monkey.ape.utils.ModelSerialization;
 import com.android.commands.monkey.ape.utils.StringCache;
 
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.Rect;
 import android.view.accessibility.AccessibilityNodeInfo;
 
@@ -46,46 +52,58 @@ public class GUITreeNode implements Serializable {
     private String text;
     private String contentDesc;
 
-    private boolean enabled;
-    private boolean checked;
-    private boolean checkable;
-    private boolean clickable;
-    private boolean isFocusable;
-    private boolean longClickable;
-    private int scrollable;
-    private boolean isPassword;
-
-    private int descendantCount = 1; // inclusive, include itself
-    private boolean focused;
-    private int parentLeft;
-    private int parentTop;
-    private int parentRight;
-    private int parentBottom;
-    private int screenLeft;
-    private int screenTop;
-    private int screenRight;
-    private int screenBottom;
+    private transient boolean enabled;
+    private transient boolean checked;
+    private transient boolean checkable;
+    private transient boolean clickable;
+    private transient boolean isFocusable;
+    private transient boolean longClickable;
+    private transient int scrollable;
+    private transient boolean isPassword;
+
+    private transient int descendantCount = 1; // inclusive, include itself
+    private transient boolean focused;
+    private transient int parentLeft;
+    private transient int parentTop;
+    private transient int parentRight;
+    private transient int parentBottom;
+    private transient int screenLeft;
+    private transient int screenTop;
+    private transient int screenRight;
+    private transient int screenBottom;
 
     private Name xpathName;
     private transient Namelet currentNamelet;
     private transient Element domNode;
     private transient AccessibilityNodeInfo nodeInfo;
 
-    private int index;
-    private final GUITreeNode parent;
+    private transient int index;
+    private GUITreeNode parent;
     private GUITreeNode children;
-    private int childCount;
+    private transient int childCount;
     private GUITreeNode sibling;
-    private int depth = 1;
-    private int height = 1;
+    private transient int depth = 1;
+    private transient int height = 1;
 
     private String typeSignature;
     private String inputText;
-    private int extraThrottle;
+    private transient int extraThrottle;
 
     private String indexPath;
 
-    private Name tempXPathName;
+    /**
+     * Names assigned by an ongoing naming pass. Kept per thread so that the
+     * same tree can be named under different namings concurrently.
+     */
+    private static final ThreadLocal<Map<GUITreeNode, Name>> tempXPathNames = new ThreadLocal<Map<GUITreeNode, Name>>() {
+
+        @Override
+        protected Map<GUITreeNode, Name> initialValue() {
+            return new IdentityHashMap<>();
+        }
+    };
+
+    private long fingerprint; // 0 if not computed
 
     public GUITreeNode(GUITreeNode parent) {
         this.parent = parent;
@@ -323,6 +341,9 @@ public class GUITreeNode implements Serializable {
 
     public void setText(String text) {
         this.text = text;
+        if (domNode != null) {
+            domNode.setAttribute("text", text);
+        }
     }
 
     public boolean isChecked() {
@@ -395,11 +416,22 @@ public class GUITreeNode implements Serializable {
     }
 
     public void setTempXPathName(Name name) {
-        this.tempXPathName = name;
+        if (name == null) {
+            tempXPathNames.get().remove(this);
+        } else {
+            tempXPathNames.get().put(this, name);
+        }
     }
 
     public Name getTempXPathName() {
-        return this.tempXPathName;
+        return tempXPathNames.get().get(this);
+    }
+
+    /**
+     * Clear the temp names set by the current thread.
+     */
+    public static void clearTempXPathNames() {
+        tempXPathNames.get().clear();
     }
 
     public void setXPathName(Name name) {
@@ -425,6 +457,22 @@ public class GUITreeNode implements Serializable {
         return new Rect(screenLeft, screenTop, screenRight, screenBottom);
     }
 
+    public int getScreenLeft() {
+        return screenLeft;
+    }
+
+    public int getScreenTop() {
+        return screenTop;
+    }
+
+    public int getScreenRight() {
+        return screenRight;
+    }
+
+    public int getScreenBottom() {
+        return screenBottom;
+    }
+
     public void setBoundsInScreen(Rect boundsInScreen) {
         this.screenLeft = boundsInScreen.left;
         this.screenTop = boundsInScreen.top;
@@ -522,6 +570,10 @@ public class GUITreeNode implements Serializable {
         return domNode;
     }
 
+    public boolean hasDomNode() {
+        return domNode != null;
+    }
+
     public void setDomNode(Element domNode) {
         this.domNode = domNode;
         if (domNode != null) {
@@ -586,52 +638,275 @@ public class GUITreeNode implements Serializable {
         }
     }
 
-    public void computeAndSetImageText(Bitmap image) {
+    /**
+     * Whether the text of this node should be computed from its pixels.
+     */
+    public boolean isImageTextCandidate() {
         if (isEmpty()) {
-            return;
+            return false;
         }
         if (!(isCheckable() || isClickable() || isScrollable() || isLongClickable())) {
-            return;
+            return false;
         }
         if (!this.className.contains("ImageButton")) {
-            return;
-        }
-        if (this.isOutOfRoot()) {
-            return;
-        }
-        int width = this.screenRight - this.screenLeft;
-        int height = this.screenBottom - this.screenTop;
-        int x = this.screenLeft;
-        int y = this.screenTop;
-        int imageWidth = image.getWidth();
-        int[] pixels = new int[height * imageWidth];
-        if (x < 0 || y < 0) {
-            return;
-        }
-        if (width < 2 || height < 2) {
-            return;
+            return false;
         }
-        if (x + width -1 > image.getWidth()) {
-            return;
+        return !this.isOutOfRoot();
+    }
+
+    /**
+     * Structural fingerprint of this subtree. Nodes of models saved without
+     * fingerprints compute it on first use.
+     * @return
+     */
+    public long getFingerprint() {
+        if (fingerprint == 0) {
+            computeFingerprint();
         }
-        if (y + height -1 > image.getHeight()) {
+        return fingerprint;
+    }
+
+    /**
+     * Compute fingerprints of this subtree bottom-up. A fingerprint covers the
+     * attributes compared by isomorphism checks and the fingerprints of the
+     * children in order.
+     * @return
+     */
+    long computeFingerprint() {
+        long h = mix(FINGERPRINT_SEED, index);
+        h = mix(h, className);
+        h = mix(h, packageName);
+        h = mix(h, resourceId);
+        h = mix(h, text);
+        h = mix(h, contentDesc);
+        int flags = (enabled ? 1 : 0) | (clickable ? 2 : 0) | (checkable ? 4 : 0) | (longClickable ? 8 : 0)
+                | (isScrollable() ? 16 : 0);
+        h = mix(h, flags);
+        h = mix(h, childCount);
+        GUITreeNode child = children;
+        while (child != null) {
+            h = mix(h, child.computeFingerprint());
+            child = child.sibling;
+        }
+        if (h == 0) {
+            h = 1;
+        }
+        this.fingerprint = h;
+        return h;
+    }
+
+    private static final long FINGERPRINT_SEED = 0xcbf29ce484222325L;
+    private static final long FINGERPRINT_PRIME = 0x100000001b3L;
+
+    private static long mix(long h, long v) {
+        h ^= v;
+        h *= FINGERPRINT_PRIME;
+        return h ^ (h >>> 29);
+    }
+
+    private static long mix(long h, String s) {
+        if (s == null) {
+            return mix(h, -1L);
+        }
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= FINGERPRINT_PRIME;
+        }
+        return mix(h, s.length());
+    }
+
+    private static final int FLAG_ENABLED = 1;
+    private static final int FLAG_CHECKED = 1 << 1;
+    private static final int FLAG_CHECKABLE = 1 << 2;
+    private static final int FLAG_CLICKABLE = 1 << 3;
+    private static final int FLAG_FOCUSABLE = 1 << 4;
+    private static final int FLAG_LONG_CLICKABLE = 1 << 5;
+    private static final int FLAG_PASSWORD = 1 << 6;
+    private static final int FLAG_FOCUSED = 1 << 7;
+
+    private int getFlags() {
+        return (enabled ? FLAG_ENABLED : 0)
+                | (checked ? FLAG_CHECKED : 0)
+                | (checkable ? FLAG_CHECKABLE : 0)
+                | (clickable ? FLAG_CLICKABLE : 0)
+                | (isFocusable ? FLAG_FOCUSABLE : 0)
+                | (longClickable ? FLAG_LONG_CLICKABLE : 0)
+                | (isPassword ? FLAG_PASSWORD : 0)
+                | (focused ? FLAG_FOCUSED : 0);
+    }
+
+    private void setFlags(int flags) {
+        enabled = (flags & FLAG_ENABLED) != 0;
+        checked = (flags & FLAG_CHECKED) != 0;
+        checkable = (flags & FLAG_CHECKABLE) != 0;
+        clickable = (flags & FLAG_CLICKABLE) != 0;
+        isFocusable = (flags & FLAG_FOCUSABLE) != 0;
+        longClickable = (flags & FLAG_LONG_CLICKABLE) != 0;
+        isPassword = (flags & FLAG_PASSWORD) != 0;
+        focused = (flags & FLAG_FOCUSED) != 0;
+    }
+
+    /**
+     * Flags are packed into a single varint and integer fields are written
+     * as varints, which are much smaller than the default field encoding.
+     * This is the node format of {@link ModelSerialization#VERSION} 2.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        ModelSerialization.writeVarInt(out, getFlags());
+        ModelSerialization.writeVarInt(out, scrollable);
+        ModelSerialization.writeVarInt(out, index);
+        ModelSerialization.writeVarInt(out, childCount);
+        ModelSerialization.writeVarInt(out, descendantCount);
+        ModelSerialization.writeVarInt(out, depth);
+        ModelSerialization.writeVarInt(out, height);
+        ModelSerialization.writeVarInt(out, extraThrottle);
+        ModelSerialization.writeSignedVarInt(out, parentLeft);
+        ModelSerialization.writeSignedVarInt(out, parentTop);
+        ModelSerialization.writeSignedVarInt(out, parentRight);
+        ModelSerialization.writeSignedVarInt(out, parentBottom);
+        ModelSerialization.writeSignedVarInt(out, screenLeft);
+        ModelSerialization.writeSignedVarInt(out, screenTop);
+        ModelSerialization.writeSignedVarInt(out, screenRight);
+        ModelSerialization.writeSignedVarInt(out, screenBottom);
+    }
+
+    /**
+     * Models saved before the packed format have the primitive fields in the
+     * default field encoding, which is still readable from the fields of the
+     * stream.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        resourceId = (String) fields.get("resourceId", null);
+        className = (String) fields.get("className", null);
+        packageName = (String) fields.get("packageName", null);
+        text = (String) fields.get("text", null);
+        contentDesc = (String) fields.get("contentDesc", null);
+        xpathName = (Name) fields.get("xpathName", null);
+        parent = (GUITreeNode) fields.get("parent", null);
+        children = (GUITreeNode) fields.get("children", null);
+        sibling = (GUITreeNode) fields.get("sibling", null);
+        typeSignature = (String) fields.get("typeSignature", null);
+        inputText = (String) fields.get("inputText", null);
+        indexPath = (String) fields.get("indexPath", null);
+        fingerprint = fields.get("fingerprint", 0L);
+        if (fields.getObjectStreamClass().getField("screenLeft") != null) {
+            readLegacyFields(fields);
             return;
         }
-        image = image.copy(Config.RGB_565, true);
-        if (image == null) {
-            return;
+        setFlags(ModelSerialization.readVarInt(in));
+        scrollable = ModelSerialization.readVarInt(in);
+        index = ModelSerialization.readVarInt(in);
+        childCount = ModelSerialization.readVarInt(in);
+        descendantCount = ModelSerialization.readVarInt(in);
+        depth = ModelSerialization.readVarInt(in);
+        height = ModelSerialization.readVarInt(in);
+        extraThrottle = ModelSerialization.readVarInt(in);
+        parentLeft = ModelSerialization.readSignedVarInt(in);
+        parentTop = ModelSerialization.readSignedVarInt(in);
+        parentRight = ModelSerialization.readSignedVarInt(in);
+        parentBottom = ModelSerialization.readSignedVarInt(in);
+        screenLeft = ModelSerialization.readSignedVarInt(in);
+        screenTop = ModelSerialization.readSignedVarInt(in);
+        screenRight = ModelSerialization.readSignedVarInt(in);
+        screenBottom = ModelSerialization.readSignedVarInt(in);
+    }
+
+    private void readLegacyFields(ObjectInputStream.GetField fields) throws IOException {
+        enabled = fields.get("enabled", false);
+        checked = fields.get("checked", false);
+        checkable = fields.get("checkable", false);
+        clickable = fields.get("clickable", false);
+        isFocusable = fields.get("isFocusable", false);
+        longClickable = fields.get("longClickable", false);
+        isPassword = fields.get("isPassword", false);
+        focused = fields.get("focused", false);
+        scrollable = fields.get("scrollable", 0);
+        index = fields.get("index", 0);
+        childCount = fields.get("childCount", 0);
+        descendantCount = fields.get("descendantCount", 1);
+        depth = fields.get("depth", 1);
+        height = fields.get("height", 1);
+        extraThrottle = fields.get("extraThrottle", 0);
+        parentLeft = fields.get("parentLeft", 0);
+        parentTop = fields.get("parentTop", 0);
+        parentRight = fields.get("parentRight", 0);
+        parentBottom = fields.get("parentBottom", 0);
+        screenLeft = fields.get("screenLeft", 0);
+        screenTop = fields.get("screenTop", 0);
+        screenRight = fields.get("screenRight", 0);
+        screenBottom = fields.get("screenBottom", 0);
+    }
+
+    /**
+     * Write the attributes of this node and its descendants, i.e., what a
+     * GUI tree builder collects from the device, without names or a
+     * document. This is much cheaper than printing the document of the tree.
+     */
+    public void writeSubtree(DataOutput out) throws IOException {
+        ModelSerialization.writeString(out, resourceId);
+        ModelSerialization.writeString(out, className);
+        ModelSerialization.writeString(out, packageName);
+        ModelSerialization.writeString(out, text);
+        ModelSerialization.writeString(out, contentDesc);
+        ModelSerialization.writeString(out, inputText);
+        ModelSerialization.writeVarInt(out, getFlags());
+        ModelSerialization.writeVarInt(out, scrollable);
+        ModelSerialization.writeVarInt(out, index);
+        ModelSerialization.writeVarInt(out, extraThrottle);
+        ModelSerialization.writeSignedVarInt(out, parentLeft);
+        ModelSerialization.writeSignedVarInt(out, parentTop);
+        ModelSerialization.writeSignedVarInt(out, parentRight);
+        ModelSerialization.writeSignedVarInt(out, parentBottom);
+        ModelSerialization.writeSignedVarInt(out, screenLeft);
+        ModelSerialization.writeSignedVarInt(out, screenTop);
+        ModelSerialization.writeSignedVarInt(out, screenRight);
+        ModelSerialization.writeSignedVarInt(out, screenBottom);
+        ModelSerialization.writeVarInt(out, childCount);
+        for (GUITreeNode child = children; child != null; child = child.sibling) {
+            child.writeSubtree(out);
         }
-        image.getPixels(pixels, 0, imageWidth, x, y, width - 1, height - 1);
-        int hash = 0;
-        int begin = 0;
-        for (int row = 0; row < height; row ++) {
-            for (int i = begin; i < begin + width; i++) {
-                hash = hash * 31 + pixels[i];
-            }
-            begin = begin + imageWidth;
+    }
+
+    /**
+     * Read nodes written by {@link #writeSubtree(DataOutput)}. The returned
+     * root can be named by GUITreeBuilder.
+     */
+    public static GUITreeNode readSubtree(DataInput in) throws IOException {
+        return readSubtree(null, in);
+    }
+
+    private static GUITreeNode readSubtree(GUITreeNode parent, DataInput in) throws IOException {
+        GUITreeNode node = new GUITreeNode(parent);
+        node.resourceId = readCachedString(in);
+        node.className = readCachedString(in);
+        node.packageName = readCachedString(in);
+        node.text = readCachedString(in);
+        node.contentDesc = readCachedString(in);
+        node.inputText = ModelSerialization.readString(in);
+        node.setFlags(ModelSerialization.readVarInt(in));
+        node.scrollable = ModelSerialization.readVarInt(in);
+        node.index = ModelSerialization.readVarInt(in);
+        node.extraThrottle = ModelSerialization.readVarInt(in);
+        node.parentLeft = ModelSerialization.readSignedVarInt(in);
+        node.parentTop = ModelSerialization.readSignedVarInt(in);
+        node.parentRight = ModelSerialization.readSignedVarInt(in);
+        node.parentBottom = ModelSerialization.readSignedVarInt(in);
+        node.screenLeft = ModelSerialization.readSignedVarInt(in);
+        node.screenTop = ModelSerialization.readSignedVarInt(in);
+        node.screenRight = ModelSerialization.readSignedVarInt(in);
+        node.screenBottom = ModelSerialization.readSignedVarInt(in);
+        int childCount = ModelSerialization.readVarInt(in);
+        for (int i = 0; i < childCount; i++) {
+            node.addChild(readSubtree(node, in));
         }
-        image.recycle();
-        setText(String.format("#%x", hash));
+        return node;
+    }
+
+    private static String readCachedString(DataInput in) throws IOException {
+        String value = ModelSerialization.readString(in);
+        return value == null ? null : StringCache.cacheString(value);
     }
 
     public void setNodeInfo(AccessibilityNodeInfo info) {
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.tree;
+
+import static com.android.commands.monkey.ape.utils.Config.perceptualImageText;
+
+import com.android.commands.monkey.ape.ScreenshotProfile;
+
+import android.graphics.Bitmap;
+
+/**
+ * Computes texts of image buttons from their pixels. The screen is converted
+ * to RGB_565 at most once per tree, and only the rectangle of each node is
+ * read into a per-thread scratch buffer.
+ * 
+ * @author txgu
+ *
+ */
+class ImageTextHasher {
+
+    private static final int HASH_SIZE = 8;
+
+    private static final ThreadLocal<int[]> scratch = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[4096];
+        }
+    };
+
+    private final Bitmap image;
+    private Bitmap converted;
+
+    ImageTextHasher(Bitmap image) {
+        this.image = image;
+    }
+
+    private static int[] getBuffer(int size) {
+        int[] buffer = scratch.get();
+        if (buffer.length < size) {
+            buffer = new int[Math.max(size, buffer.length << 1)];
+            scratch.set(buffer);
+        }
+        return buffer;
+    }
+
+    void computeAndSetImageText(GUITreeNode node) {
+        if (!node.isImageTextCandidate()) {
+            return;
+        }
+        int width = node.getScreenRight() - node.getScreenLeft();
+        int height = node.getScreenBottom() - node.getScreenTop();
+        int x = node.getScreenLeft();
+        int y = node.getScreenTop();
+        if (x < 0 || y < 0) {
+            return;
+        }
+        if (width < 2 || height < 2) {
+            return;
+        }
+        if (x + width - 1 > image.getWidth()) {
+            return;
+        }
+        if (y + height - 1 > image.getHeight()) {
+            return;
+        }
+        if (converted == null) {
+            converted = image.copy(Bitmap.Config.RGB_565, false);
+            if (converted == null) {
+                return;
+            }
+        }
+        int size = width * height;
+        int[] pixels = getBuffer(size);
+        // The last row and column are never read, as before.
+        converted.getPixels(pixels, 0, width, x, y, width - 1, height - 1);
+        for (int i = width - 1; i < size; i += width) {
+            pixels[i] = 0;
+        }
+        for (int i = size - width; i < size; i++) {
+            pixels[i] = 0;
+        }
+        if (perceptualImageText) {
+            node.setText(String.format("#p%x", perceptualHash(pixels, width - 1, height - 1, width)));
+        } else {
+            int hash = 0;
+            for (int i = 0; i < size; i++) {
+                hash = hash * 31 + pixels[i];
+            }
+            node.setText(String.format("#%x", hash));
+        }
+    }
+
+    /**
+     * Average hash of an 8x8 thumbnail of the region, each cell being the mean
+     * color of its pixels.
+     */
+    static long perceptualHash(int[] pixels, int width, int height, int stride) {
+        int[] cells = new int[HASH_SIZE * HASH_SIZE];
+        for (int cy = 0; cy < HASH_SIZE; cy++) {
+            int top = cy * height / HASH_SIZE;
+            int bottom = Math.max(top + 1, (cy + 1) * height / HASH_SIZE);
+            for (int cx = 0; cx < HASH_SIZE; cx++) {
+                int left = cx * width / HASH_SIZE;
+                int right = Math.max(left + 1, (cx + 1) * width / HASH_SIZE);
+                long r = 0, g = 0, b = 0;
+                int count = 0;
+                for (int row = top; row < bottom && row < height; row++) {
+                    int offset = row * stride;
+                    for (int col = left; col < right && col < width; col++) {
+                        int color = pixels[offset + col];
+                        r += (color >> 16) & 0xFF;
+                        g += (color >> 8) & 0xFF;
+                        b += color & 0xFF;
+                        count++;
+                    }
+                }
+                if (count > 0) {
+                    cells[cy * HASH_SIZE + cx] = (int) ((r / count) << 16 | (g / count) << 8 | (b / count));
+                }
+            }
+        }
+        return ScreenshotProfile.averageHash(cells, cells.length);
+    }
+
+    void release() {
+        if (converted != null) {
+            converted.recycle();
+            converted = null;
+        }
+    }
+}
@@ -52,6 +52,29 @@ public class Config {
     public static final boolean saveDotGraph = Config.getBoolean("ape.saveDotGraph", false);
     public static final boolean saveObjModel = Config.getBoolean("ape.saveObjModel", true);
     public static final boolean saveVisGraph = Config.getBoolean("ape.saveVisGraph", true);
+    /**
+     * Log GUI trees, action resolutions and actions to sataModel.ckpt during
+     * exploration so that the model of a killed run can be restored.
+     */
+    public static final boolean checkpoint = Config.getBoolean("ape.checkpoint", false);
+    /**
+     * Number of steps buffered before a segment is appended to the checkpoint.
+     */
+    public static final int checkpointBatch = Config.getInteger("ape.checkpointBatch", 10);
+    /**
+     * Number of steps after which the checkpoint is replaced by a snapshot of
+     * the model, which bounds the time to load it. 0 never compacts it.
+     */
+    public static final int checkpointSnapshotInterval = Config.getInteger("ape.checkpointSnapshotInterval", 1000);
+    /**
+     * Write a memory-mappable index of the model for offline analysis.
+     */
+    public static final boolean saveModelIndex = Config.getBoolean("ape.saveModelIndex", false);
+
+    /**
+     * Log a per-step breakdown of time into phases and print their percentiles at the end.
+     */
+    public static final boolean stepTimer = Config.getBoolean("ape.stepTimer", true);
 
     public static final boolean enableXPathAction = Config.getBoolean("ape.enableXPathAction", false);
     public static final boolean evolveModel = Config.getBoolean("ape.evolveModel", true);
@@ -69,6 +92,10 @@ public class Config {
     public static final int actionRefinmentThreshold = Config.getInteger("ape.actionRefinmentThreshold", 3);
     public static final int maxInitialNamesPerStateThreshold = Config.getInteger("ape.maxInitialNamesPerStateThreshold", 20);
     public static final boolean actionRefinementFirst = Config.getBoolean("ape.actionRefinementFirst", true);
+    /**
+     * Threads evaluating state refinement candidates, 1 to evaluate them on the calling thread.
+     */
+    public static final int refinementThreads = Config.getInteger("ape.refinementThreads", Runtime.getRuntime().availableProcessors());
 
     public static final boolean alwaysIgnoreWebView = Config.getBoolean("ape.alwaysIgnoreWebView", false); // false;
     public static final boolean alwaysIgnoreWebViewAction = Config.getBoolean("ape.alwaysIgnoreWebViewAction", false); // false;
@@ -78,6 +105,11 @@ public class Config {
 
     public static final boolean patchGUITree = Config.getBoolean("ape.patchGUITree", true);
     public static final boolean computeImageText = Config.getBoolean("ape.computeImageText", true);
+    /**
+     * Use an 8x8 average hash of the pixels as the text of an image button,
+     * which is stable across minor rendering noise.
+     */
+    public static final boolean perceptualImageText = Config.getBoolean("ape.perceptualImageText", false);
 
     public static final double defaultEpsilon = Config.getDouble("ape.defaultEpsilon", 0.05D); // 0.05D;
 
@@ -87,13 +119,57 @@ public class Config {
     public static final boolean useActionDiffer = Config.getBoolean("ape.useActionDiffer", true);
     public static final boolean doBackToTrivialActivity = Config.getBoolean("ape.doBackToTrivialActivity", false);
 
+    /**
+     * Capacity of each image writer queue.
+     */
     public static final int flushImagesThreshold = Config.getInteger("ape.flushImagesThreshold", 10);
+    /**
+     * What to do when an image writer queue is full: dropOldest, dropNewest,
+     * downscale, or block, which is lossless but stalls the exploration.
+     */
+    public static final String imageQueuePolicy = Config.get("ape.imageQueuePolicy", "dropOldest");
+    /**
+     * Screenshot profile: full (full size png) or compact (downscaled webp,
+     * identical frames skipped). Each setting below can still be overridden.
+     */
+    public static final String screenshotProfile = Config.get("ape.screenshotProfile", "full");
+    private static final boolean compactScreenshots = "compact".equals(screenshotProfile);
+    public static final double screenshotScale = Config.getDouble("ape.screenshotScale", compactScreenshots ? 0.5D : 1.0D);
+    public static final String screenshotFormat = Config.get("ape.screenshotFormat", compactScreenshots ? "webp" : "png");
+    public static final int screenshotQuality = Config.getInteger("ape.screenshotQuality", compactScreenshots ? 75 : 85);
+    public static final boolean skipIdenticalScreenshots = Config.getBoolean("ape.skipIdenticalScreenshots", compactScreenshots);
+    /**
+     * Max differing bits of the average hashes of two frames considered identical.
+     */
+    public static final int screenshotHashDistance = Config.getInteger("ape.screenshotHashDistance", 0);
     public static final int imageWriterCount = Config.getInteger("ape.imageWriterCount", 3);
+    /**
+     * Flush the action log after this many actions or this many ms.
+     */
+    public static final int actionLogFlushSteps = Config.getInteger("ape.actionLogFlushSteps", 20);
+    public static final long actionLogFlushInterval = Config.getLong("ape.actionLogFlushInterval", 2000L);
+    /**
+     * Also write actions to an indexed gzip trace (gzip) or not (none).
+     */
+    public static final String actionTrace = Config.get("ape.actionTrace", "none");
     public static final long defaultGUIThrottle = Config.getLong("ape.defaultGUIThrottle", 200L);
     public static final long swipeDuration = Config.getLong("ape.swipeDuration", 200);
     public static final double fuzzingRate = Config.getDouble("ape.fuzzingRate", 0.02D);
     public static final long refectchInfoWaitingInterval = Config.getLong("ape.refectchInfoWaitingInterval", 50);
     public static final int refectchInfoCount = Config.getInteger("ape.refectchInfoCount", 4);
+    /**
+     * End throttles after actions once the UI of the app has changed and
+     * then been quiet for settleQuietMillis.
+     */
+    public static final boolean settleDetection = Config.getBoolean("ape.settleDetection", false);
+    public static final long settleQuietMillis = Config.getLong("ape.settleQuietMillis", 150L);
+    /**
+     * Choose throttles from observed settle latencies of actions and
+     * activities. Requires settleDetection.
+     */
+    public static final boolean learnedThrottle = Config.getBoolean("ape.learnedThrottle", false);
+    public static final int learnedThrottleMinSamples = Config.getInteger("ape.learnedThrottleMinSamples", 3);
+    public static final double latencyAlpha = Config.getDouble("ape.latencyAlpha", 0.3D);
     public static final boolean doFuzzing = Config.getBoolean("ape.doFuzzing", true);
 
     public static final boolean ignoreEmpty = Config.getBoolean("ape.ignoreEmpty", true);
@@ -116,6 +192,40 @@ public class Config {
     public static final int trivialStateWidgetThreshold = Config.getInteger("ape.trivialStateWidgetThreshold", 5);
 
     public static final boolean usePatchNamer = Config.getBoolean("ape.usePatchNamer", true);
+    public static final boolean useNameletMatcher = Config.getBoolean("ape.useNameletMatcher", true);
+    /**
+     * Do not build DOM documents for GUI trees unless XPath evaluation or saving needs them.
+     */
+    public static final boolean domFreeTrees = Config.getBoolean("ape.domFreeTrees", false);
+    /**
+     * Keep graph adjacency in int indexed arrays instead of hash maps.
+     */
+    public static final boolean compactGraphStore = Config.getBoolean("ape.compactGraphStore", false);
+    /**
+     * Max entries of each naming result cache.
+     */
+    public static final int namingCacheSize = Config.getInteger("ape.namingCacheSize", 8192);
+
+    /**
+     * Lowest level to log: debug, info or warn.
+     */
+    public static final String logLevel = Config.get("ape.logLevel", "info");
+    /**
+     * Write log messages on a background thread.
+     */
+    public static final boolean asyncLog = Config.getBoolean("ape.asyncLog", true);
+    /**
+     * Capacity of the log ring buffer, rounded up to a power of two.
+     */
+    public static final int logBufferSize = Config.getInteger("ape.logBufferSize", 8192);
+    /**
+     * Max messages per second with the same format, 0 for no limit.
+     */
+    public static final int logRateLimit = Config.getInteger("ape.logRateLimit", 0);
+    /**
+     * Also write log messages as JSON lines to this file if not empty.
+     */
+    public static final String logJsonFile = Config.get("ape.logJsonFile", "");
 
     private static void loadConfiguration(String fileName) {
         File configFile = new File(fileName);
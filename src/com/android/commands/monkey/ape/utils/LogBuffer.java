@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded multi-producer single-consumer ring buffer of log records.
+ * Producers claim a slot with an atomic increment and never take a lock.
+ * A producer waits only when the buffer is full. The consumer is a daemon
+ * thread that hands records to the logger sinks in claim order.
+ * 
+ * @author txgu
+ *
+ */
+class LogBuffer implements Runnable {
+
+    interface Sink {
+        void write(Logger.Record record);
+
+        void flush();
+    }
+
+    private static final long IDLE_PARK_NANOS = 10000000L; // 10ms
+
+    private final AtomicReferenceArray<Logger.Record> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private volatile boolean waiting;
+    private final Sink sink;
+    private final Thread thread;
+
+    LogBuffer(int capacity, Sink sink) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.sink = sink;
+        this.thread = new Thread(this, "ape-logger");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    void publish(Logger.Record record) {
+        long seq = tail.getAndIncrement();
+        while (seq - head > mask) {
+            LockSupport.unpark(thread);
+            Thread.yield();
+        }
+        slots.set((int) (seq & mask), record);
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Wait until all records published before this call have been written.
+     */
+    void flush() {
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+        long target = tail.get();
+        while (head < target) {
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(100000L);
+        }
+    }
+
+    @Override
+    public void run() {
+        long h = head;
+        while (true) {
+            int index = (int) (h & mask);
+            Logger.Record record = slots.get(index);
+            if (record == null) {
+                sink.flush();
+                waiting = true;
+                if (slots.get(index) == null) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                waiting = false;
+                continue;
+            }
+            slots.set(index, null);
+            try {
+                sink.write(record);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            head = ++h;
+        }
+    }
+}
@@ -15,53 +15,302 @@
  */
 package com.android.commands.monkey.ape.utils;
 
+import static com.android.commands.monkey.ape.utils.Config.asyncLog;
+import static com.android.commands.monkey.ape.utils.Config.logBufferSize;
+import static com.android.commands.monkey.ape.utils.Config.logJsonFile;
+import static com.android.commands.monkey.ape.utils.Config.logLevel;
+import static com.android.commands.monkey.ape.utils.Config.logRateLimit;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.IllegalFormatException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.w3c.dom.Document;
 
+/**
+ * Messages below the configured level are dropped before their arguments
+ * are formatted. Other messages are formatted and written by a background
+ * thread unless ape.asyncLog is false. Arguments that may change before
+ * they are written are converted to strings by the caller.
+ * 
+ * @author txgu
+ *
+ */
 public class Logger {
 
-    private static final boolean debug = false;
+    public enum Level {
+        DEBUG, INFO, WARN
+    }
 
     public static final String TAG = "[APE] ";
 
+    private static final String PLAIN_PREFIX = "[APE] ";
+    private static final String DEBUG_PREFIX = "[APE] *** DEBUG *** ";
+    private static final String INFO_PREFIX = "[APE] *** INFO *** ";
+    private static final String WARNING_PREFIX = "[APE] *** WARNING *** ";
+
+    private static final Level level = parseLevel(logLevel);
+    private static final boolean debug = level == Level.DEBUG;
+
+    static class Record {
+        final long time;
+        final Level level;
+        final String prefix;
+        final String format; // null if message is preformatted
+        final Object[] args;
+
+        Record(Level level, String prefix, String format, Object[] args) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.prefix = prefix;
+            this.format = format;
+            this.args = args;
+        }
+
+        String getMessage() {
+            if (format == null) {
+                return (String) args[0];
+            }
+            try {
+                return String.format(format, args);
+            } catch (IllegalFormatException e) {
+                StringBuilder sb = new StringBuilder(format);
+                for (Object arg : args) {
+                    sb.append(' ').append(arg);
+                }
+                return sb.toString();
+            }
+        }
+    }
+
+    static class RateLimit {
+        long windowStart;
+        int count;
+        int suppressed;
+    }
+
+    private static final ConcurrentMap<String, RateLimit> rateLimits = new ConcurrentHashMap<>();
+
+    private static final LogBuffer.Sink sink = new LogBuffer.Sink() {
+
+        private final PrintStream out = System.out;
+        private final Writer json = openJsonFile(logJsonFile);
+
+        @Override
+        public synchronized void write(Record record) {
+            String message = record.getMessage();
+            out.append(record.prefix).append(message).append('\n');
+            if (json != null) {
+                try {
+                    JSONObject jObject = new JSONObject();
+                    jObject.put("time", record.time);
+                    jObject.put("level", record.level.name());
+                    jObject.put("message", message);
+                    json.write(jObject.toString());
+                    json.write('\n');
+                } catch (JSONException | IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void flush() {
+            out.flush();
+            if (json != null) {
+                try {
+                    json.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    };
+
+    private static final LogBuffer buffer = asyncLog ? new LogBuffer(logBufferSize, sink) : null;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    private static Writer openJsonFile(String fileName) {
+        if (fileName == null || fileName.isEmpty()) {
+            return null;
+        }
+        try {
+            return new BufferedWriter(new FileWriter(fileName, true));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static boolean isLoggable(Level l) {
+        return l.compareTo(level) >= 0;
+    }
+
+    private static void log(Level l, String prefix, String format, Object[] args) {
+        if (!isLoggable(l) || isRateLimited(format)) {
+            return;
+        }
+        write(new Record(l, prefix, format, snapshot(args)));
+    }
+
+    private static void log(Level l, String prefix, Object message) {
+        if (!isLoggable(l)) {
+            return;
+        }
+        write(new Record(l, prefix, null, new Object[] { String.valueOf(message) }));
+    }
+
+    private static void write(Record record) {
+        if (buffer != null) {
+            buffer.publish(record);
+        } else {
+            sink.write(record);
+            sink.flush();
+        }
+    }
+
+    /**
+     * Keep immutable values, convert others to strings now since they may
+     * change before the record is written.
+     */
+    private static Object[] snapshot(Object[] args) {
+        if (buffer == null || args == null) {
+            return args;
+        }
+        Object[] copy = null;
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null || arg instanceof String || arg instanceof Integer || arg instanceof Long
+                    || arg instanceof Double || arg instanceof Float || arg instanceof Boolean
+                    || arg instanceof Character || arg instanceof Short || arg instanceof Byte
+                    || arg instanceof Enum) {
+                continue;
+            }
+            if (copy == null) {
+                copy = args.clone();
+            }
+            if (arg instanceof AtomicInteger || arg instanceof AtomicLong) {
+                copy[i] = ((Number) arg).longValue();
+            } else {
+                copy[i] = String.valueOf(arg);
+            }
+        }
+        return copy != null ? copy : args;
+    }
+
+    private static boolean isRateLimited(String format) {
+        if (logRateLimit <= 0) {
+            return false;
+        }
+        RateLimit limit = rateLimits.get(format);
+        if (limit == null) {
+            RateLimit newLimit = new RateLimit();
+            limit = rateLimits.putIfAbsent(format, newLimit);
+            if (limit == null) {
+                limit = newLimit;
+            }
+        }
+        int suppressed = 0;
+        synchronized (limit) {
+            long now = System.currentTimeMillis();
+            if (now - limit.windowStart >= 1000L) {
+                suppressed = limit.suppressed;
+                limit.windowStart = now;
+                limit.count = 0;
+                limit.suppressed = 0;
+            }
+            if (limit.count >= logRateLimit) {
+                limit.suppressed++;
+                return true;
+            }
+            limit.count++;
+        }
+        if (suppressed > 0) {
+            write(new Record(Level.WARN, WARNING_PREFIX, null,
+                    new Object[] { "Suppressed " + suppressed + " messages of format: " + format.trim() }));
+        }
+        return false;
+    }
+
+    /**
+     * Block until all pending messages have been written.
+     */
+    public static void flush() {
+        if (buffer != null) {
+            buffer.flush();
+        }
+        sink.flush();
+    }
+
     public static void println(Object message) {
-        System.out.format("[APE] %s\n", message);
+        log(Level.INFO, PLAIN_PREFIX, message);
     }
 
     public static void format(String format, Object... args) {
-        System.out.format("[APE] " + format + "\n", args);
+        log(Level.INFO, PLAIN_PREFIX, format, args);
     }
 
     public static void dformat(String format, Object... args) {
         if (debug)
-            System.out.format("[APE] *** DEBUG *** " + format + "\n", args);
+            log(Level.DEBUG, DEBUG_PREFIX, format, args);
     }
 
     public static void wformat(String format, Object... args) {
-        System.out.format("[APE] *** WARNING *** " + format + "\n", args);
+        log(Level.WARN, WARNING_PREFIX, format, args);
     }
 
     public static void iformat(String format, Object... args) {
-        System.out.format("[APE] *** INFO *** " + format + "\n", args);
+        log(Level.INFO, INFO_PREFIX, format, args);
     }
 
     public static void wprintln(Object message) {
-        System.out.format("[APE] *** WARNING *** %s\n", message);
+        log(Level.WARN, WARNING_PREFIX, message);
     }
 
     public static void dprintln(Object message) {
-        if (debug) System.out.format("[APE] *** DEBUG *** %s\n", message);
+        if (debug) log(Level.DEBUG, DEBUG_PREFIX, message);
     }
 
     public static void iprintln(Object message) {
-        System.out.format("[APE] *** INFO *** %s\n", message);
+        log(Level.INFO, INFO_PREFIX, message);
     }
 
     public static void printXml(Document document) {
-        try {
-            Utils.printXml(System.out, document);
-            System.out.println();
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (!isLoggable(Level.INFO)) {
+            return;
+        }
+        flush();
+        synchronized (sink) {
+            try {
+                Utils.printXml(System.out, document);
+                System.out.println();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.android.commands.monkey.ape.naming.AbstractName;
+import com.android.commands.monkey.ape.naming.Name;
+import com.android.commands.monkey.ape.naming.NameManager;
+
+/**
+ * Versioned serialization of models. Equal strings share a single entry in
+ * the stream, i.e., a string table, and are interned through StringCache
+ * when loaded. Loaded names are interned through NameManager, so that names
+ * created when the model is continued are the loaded ones. Classes with many
+ * integer fields use the varint helpers in their own writeObject/readObject.
+ * 
+ * Version 1 is the first format with the header and packs the primitive
+ * fields of GUITreeNode. GUITreeNode keeps its serialVersionUID, and models
+ * saved as plain Java streams before this format are still read, with the
+ * default field encoding.
+ * 
+ * @author txgu
+ *
+ */
+public class ModelSerialization {
+
+    private static final int MAGIC = 0x4150454d; // APEM
+    public static final int VERSION = 1;
+
+    private static final short JAVA_STREAM_MAGIC = (short) 0xaced;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static class Output extends ObjectOutputStream {
+
+        private final Map<String, String> strings = new HashMap<>();
+
+        Output(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj instanceof String) {
+                String string = (String) obj;
+                String existing = strings.get(string);
+                if (existing == null) {
+                    strings.put(string, string);
+                    return string;
+                }
+                return existing;
+            }
+            return obj;
+        }
+    }
+
+    static class Input extends ObjectInputStream {
+
+        private final int nameBase = NameManager.getNextOrder();
+
+        Input(InputStream in) throws IOException {
+            super(in);
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            if (obj instanceof String) {
+                return StringCache.cacheString((String) obj);
+            }
+            if (obj instanceof AbstractName) {
+                return NameManager.getLoadedName((Name) obj, nameBase);
+            }
+            return obj;
+        }
+    }
+
+    public static void write(OutputStream out, Object object) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        ObjectOutputStream oos = new Output(dos);
+        oos.writeObject(object);
+        oos.flush();
+    }
+
+    /**
+     * Read an object written by {@link #write(OutputStream, Object)} or by a
+     * plain ObjectOutputStream.
+     */
+    public static Object read(InputStream in) throws IOException, ClassNotFoundException {
+        BufferedInputStream bis = new BufferedInputStream(in);
+        bis.mark(4);
+        DataInputStream dis = new DataInputStream(bis);
+        if (dis.readShort() == JAVA_STREAM_MAGIC) {
+            bis.reset();
+            return new Input(bis).readObject();
+        }
+        bis.reset();
+        if (dis.readInt() != MAGIC) {
+            throw new StreamCorruptedException("Not a model stream.");
+        }
+        int version = dis.readInt();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported model version " + version);
+        }
+        return new Input(dis).readObject();
+    }
+
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint.");
+    }
+
+    /**
+     * A varint of the length plus one, 0 for null, and the UTF-8 bytes.
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Zigzag encoding for values that may be negative, e.g., off-screen
+     * bounds.
+     */
+    public static void writeSignedVarInt(DataOutput out, int value) throws IOException {
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    public static int readSignedVarInt(DataInput in) throws IOException {
+        int value = readVarInt(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
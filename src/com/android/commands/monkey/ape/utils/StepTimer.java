@@ -0,0 +1,151 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.commands.monkey.ape.utils;
+
+import static com.android.commands.monkey.ape.utils.Config.stepTimer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Breaks down the wall time of each step into phases. Phases nest: time
+ * spent in an inner phase is not counted for the outer one. Only the thread
+ * that starts steps is timed.
+ * 
+ * @author txgu
+ *
+ */
+public class StepTimer {
+
+    public enum Phase {
+        FETCH, // fetch the accessibility tree
+        BUILD, // build the GUI tree
+        NAMING, // name the GUI tree
+        STATE, // build and validate the new state
+        EVOLVE, // abstraction refinement before updating the graph
+        GRAPH, // update the graph and resolve non-determinism
+        SELECT, // select the next action
+        INJECT, // inject events
+        THROTTLE, // sleep between events
+        OTHER;
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final int MAX_DEPTH = 16;
+
+    private static final long[] stepNanos = new long[PHASES.length];
+    private static final Histogram[] histograms = new Histogram[PHASES.length];
+    private static final Histogram stepHistogram = new Histogram();
+    static {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    private static final Phase[] stack = new Phase[MAX_DEPTH];
+    private static int depth;
+    private static long lastSwitch;
+    private static long stepBegin;
+    private static int step;
+    private static Thread owner;
+
+    private static boolean isTiming() {
+        return stepTimer && owner == Thread.currentThread();
+    }
+
+    public static void begin(Phase phase) {
+        if (!isTiming()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (depth > 0) {
+            stepNanos[stack[depth - 1].ordinal()] += now - lastSwitch;
+        }
+        if (depth < MAX_DEPTH) {
+            stack[depth] = phase;
+        }
+        depth++;
+        lastSwitch = now;
+    }
+
+    public static void end(Phase phase) {
+        if (!isTiming() || depth == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        depth--;
+        Phase top = depth < MAX_DEPTH ? stack[depth] : phase;
+        stepNanos[top.ordinal()] += now - lastSwitch;
+        lastSwitch = now;
+    }
+
+    /**
+     * Finish the current step and start a new one.
+     */
+    public static void nextStep() {
+        if (!stepTimer) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (owner == Thread.currentThread()) {
+            finishStep(now);
+        } else {
+            owner = Thread.currentThread();
+        }
+        depth = 0;
+        step++;
+        stepBegin = now;
+        lastSwitch = now;
+    }
+
+    private static void finishStep(long now) {
+        long total = now - stepBegin;
+        long timed = 0;
+        for (int i = 0; i < PHASES.length; i++) {
+            timed += stepNanos[i];
+        }
+        stepNanos[Phase.OTHER.ordinal()] += Math.max(0, total - timed);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < PHASES.length; i++) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(stepNanos[i]);
+            histograms[i].record(micros);
+            if (micros != 0) {
+                sb.append(' ').append(PHASES[i].name().toLowerCase()).append('=').append(micros / 1000);
+            }
+            stepNanos[i] = 0;
+        }
+        stepHistogram.record(TimeUnit.NANOSECONDS.toMicros(total));
+        Logger.iformat("Step %d takes %d ms:%s", step, TimeUnit.NANOSECONDS.toMillis(total), sb);
+    }
+
+    public static void printStatistics() {
+        if (!stepTimer || stepHistogram.getCount() == 0) {
+            return;
+        }
+        Logger.format("Step time breakdown over %d steps (ms):", stepHistogram.getCount());
+        Logger.format("%-9s %9s %9s %9s %9s %9s %6s", "phase", "mean", "p50", "p90", "p99", "max", "share");
+        for (int i = 0; i < PHASES.length; i++) {
+            print(PHASES[i].name().toLowerCase(), histograms[i], stepHistogram.getTotal());
+        }
+        print("step", stepHistogram, stepHistogram.getTotal());
+    }
+
+    private static void print(String name, Histogram histogram, long total) {
+        Logger.format("%-9s %9.1f %9.1f %9.1f %9.1f %9.1f %5.1f%%", name, histogram.getMean() / 1000,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getMax() / 1000.0,
+                total == 0 ? 0 : 100.0 * histogram.getTotal() / total);
+    }
+}
@@ -15,7 +15,7 @@
  */
 package com.android.commands.monkey.ape.utils;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import javax.xml.xpath.XPath;
@@ -25,9 +25,32 @@ import javax.xml.xpath.XPathFactory;
 
 public class XPathBuilder {
 
+    public static final int xpathCacheSize = Config.getInteger("ape.xpathCacheSize", 4096);
+
     static XPathFactory factory;
     static XPath xpath;
-    static Map<String, XPathExpression> cached = new HashMap<>();
+
+    /**
+     * LRU cache of compiled expressions keyed by the expression string.
+     * All accesses are guarded by the map itself.
+     */
+    static final Map<String, XPathExpression> cached = new LinkedHashMap<String, XPathExpression>(64, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+            if (size() > xpathCacheSize) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    static long hits;
+    static long misses;
+    static long evictions;
 
     static {
         factory = XPathFactory.newInstance();
@@ -37,7 +60,17 @@ public class XPathBuilder {
     private XPathBuilder() {}
 
     public static XPathExpression compile(String exprStr) throws XPathExpressionException {
-        return xpath.compile(exprStr);
+        synchronized (cached) {
+            XPathExpression expr = cached.get(exprStr);
+            if (expr != null) {
+                hits++;
+                return expr;
+            }
+            misses++;
+            expr = xpath.compile(exprStr);
+            cached.put(exprStr, expr);
+            return expr;
+        }
     }
 
     public static XPathExpression compileAbortOnError(String exprStr) {
@@ -47,4 +80,29 @@ public class XPathBuilder {
             throw new RuntimeException("Cannot compile xpath " + exprStr, e);
         }
     }
+
+    public static long getHits() {
+        synchronized (cached) {
+            return hits;
+        }
+    }
+
+    public static long getMisses() {
+        synchronized (cached) {
+            return misses;
+        }
+    }
+
+    public static long getEvictions() {
+        synchronized (cached) {
+            return evictions;
+        }
+    }
+
+    public static void printStatistics() {
+        synchronized (cached) {
+            Logger.format("XPath cache: size (%d/%d), hits (%d), misses (%d), evictions (%d)",
+                    cached.size(), xpathCacheSize, hits, misses, evictions);
+        }
+    }
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A J2SE replacement of android.os.SystemClock for the tools that run the
+ * model on a workstation, i.e., the reducer, the replayer, the benchmark and
+ * the tests. The framework jar implements these methods natively, which
+ * fails with UnsatisfiedLinkError on a J2SE VM. Put this directory before the
+ * framework jar on the class path. Clocks start when the class is loaded.
+ * 
+ * @author txgu
+ *
+ */
+public final class SystemClock {
+
+    private static final long BOOT_NANOS = System.nanoTime();
+
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedRealtimeNanos());
+    }
+
+    public static long elapsedRealtime() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedRealtimeNanos());
+    }
+
+    public static long elapsedRealtimeNanos() {
+        return System.nanoTime() - BOOT_NANOS;
+    }
+
+    public static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright 2020 Advanced Software Technologies Lab at ETH Zurich, Switzerland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ape;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.android.commands.monkey.ApeRRFormatter;
+import com.android.commands.monkey.ape.model.Action;
+import com.android.commands.monkey.ape.model.ActionType;
+import com.android.commands.monkey.ape.model.Graph;
+import com.android.commands.monkey.ape.model.Model;
+import com.android.commands.monkey.ape.model.ModelAction;
+import com.android.commands.monkey.ape.model.ModelCheckpoint;
+import com.android.commands.monkey.ape.model.ModelReplay;
+import com.android.commands.monkey.ape.model.State;
+import com.android.commands.monkey.ape.model.StateTransition;
+import com.android.commands.monkey.ape.naming.Name;
+import com.android.commands.monkey.ape.tree.GUITree;
+import com.android.commands.monkey.ape.tree.GUITreeBuilder;
+import com.android.commands.monkey.ape.tree.GUITreeNode;
+import com.android.commands.monkey.ape.utils.ModelSerialization;
+
+import android.content.ComponentName;
+
+/**
+ * Round trip of a model through ModelSerialization. A model is built from
+ * synthetic GUI trees and actions, written and read back, and the states,
+ * transitions, GUI tree nodes and the sharing of names are compared. The
+ * model in fixtures/sataModel-legacy.obj was saved with ObjectOutputStream
+ * before ModelSerialization and graph stores, from the same steps with GUI
+ * trees built from node infos as on the device. It is read and compared to
+ * the model built now, queried, and continued by one more step. The steps
+ * are also written to a checkpoint, with refreshed GUI trees, and the loaded
+ * model is compared to the replayed one. Models given
+ * on the command line, e.g., a sataModel.obj of an older run, are read and
+ * checked for the sharing of names, and written and read back again. Like
+ * the reducer, it runs on a J2SE VM with the framework jar on the class path,
+ * and stubs/ before it, from the root of the repository, and exits with a
+ * non-zero status on failures.
+ * <p>
+ * Usage: ModelSerializationTest [model-file...]
+ * @author txgu
+ *
+ */
+public class ModelSerializationTest {
+
+    static final String PACKAGE = "com.example.app";
+
+    static final ComponentName MAIN = new ComponentName(PACKAGE, PACKAGE + ".MainActivity");
+    static final ComponentName DETAIL = new ComponentName(PACKAGE, PACKAGE + ".DetailActivity");
+
+    static final File LEGACY_MODEL = new File("test/ape/fixtures/sataModel-legacy.obj");
+
+    static final Comparator<GUITree> TIMESTAMP_COMPARATOR = new Comparator<GUITree>() {
+
+        @Override
+        public int compare(GUITree o1, GUITree o2) {
+            return Integer.compare(o1.getTimestamp(), o2.getTimestamp());
+        }
+
+    };
+
+    int failures;
+
+    void check(boolean condition, String format, Object... args) {
+        if (!condition) {
+            failures++;
+            System.err.println("FAIL: " + String.format(format, args));
+        }
+    }
+
+    static String node(int index, String clazz, String id, String text, String bounds, String flags,
+            String... children) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<node index=\"").append(index).append("\" text=\"").append(text).append("\" resource-id=\"")
+                .append(id).append("\" class=\"").append(clazz).append("\" package=\"").append(PACKAGE)
+                .append("\" content-desc=\"\" bounds=\"").append(bounds).append("\"");
+        for (String flag : new String[] { "checkable", "checked", "clickable", "enabled", "focusable", "focused",
+                "scrollable", "long-clickable" }) {
+            sb.append(' ').append(flag).append("=\"").append(flags.contains(flag + ' ')).append('"');
+        }
+        sb.append('>');
+        for (String child : children) {
+            sb.append(child);
+        }
+        sb.append("</node>");
+        return sb.toString();
+    }
+
+    static Document document(String root) throws ParserConfigurationException, SAXException, IOException {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><hierarchy rotation=\"0\">" + root + "</hierarchy>";
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new InputSource(new StringReader(xml)));
+    }
+
+    static Document mainDocument(String title) throws ParserConfigurationException, SAXException, IOException {
+        return document(node(0, "android.widget.FrameLayout", "", "", "[0,0][1080,1920]", "enabled ",
+                node(0, "android.widget.LinearLayout", PACKAGE + ":id/content", "", "[0,63][1080,1920]", "enabled ",
+                        node(0, "android.widget.TextView", PACKAGE + ":id/title", title, "[0,63][1080,200]",
+                                "enabled "),
+                        node(1, "android.widget.EditText", PACKAGE + ":id/query", "", "[0,200][1080,320]",
+                                "clickable enabled focusable focused long-clickable "),
+                        node(2, "android.widget.CheckBox", PACKAGE + ":id/remember", "Remember",
+                                "[0,320][540,420]", "checkable checked clickable enabled focusable "),
+                        node(3, "android.widget.Button", PACKAGE + ":id/next", "Next", "[540,320][1080,420]",
+                                "clickable enabled focusable "))));
+    }
+
+    static Document detailDocument(int items) throws ParserConfigurationException, SAXException, IOException {
+        String[] children = new String[items];
+        for (int i = 0; i < items; i++) {
+            children[i] = node(i, "android.widget.TextView", PACKAGE + ":id/item", "Item " + i,
+                    "[0," + (100 + i * 100) + "][1080," + (200 + i * 100) + "]", "clickable enabled focusable ");
+        }
+        return document(node(0, "android.widget.FrameLayout", "", "", "[0,0][1080,1920]", "enabled ",
+                node(0, "android.widget.ListView", PACKAGE + ":id/list", "", "[0,100][1080,1920]",
+                        "enabled focusable scrollable ", children)));
+    }
+
+    static JSONObject action(ActionType type, GUITreeNode target) throws JSONException {
+        JSONObject jAction = new JSONObject();
+        jAction.put("actionType", type);
+        jAction.put("throttle", 200);
+        if (target != null) {
+            jAction.put("target", target.getXPathName().toXPath());
+        }
+        return jAction;
+    }
+
+    static GUITreeNode findNode(GUITreeNode node, String resourceId) {
+        if (resourceId.equals(node.getResourceID())) {
+            return node;
+        }
+        Iterator<GUITreeNode> it = node.getChildren();
+        while (it.hasNext()) {
+            GUITreeNode found = findNode(it.next(), resourceId);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    Model buildModel() throws Exception {
+        Model model = new Model(new Graph());
+        ModelReplay replay = new ModelReplay(model);
+        Document[] documents = new Document[] { mainDocument("Welcome"), detailDocument(3), mainDocument("Welcome"),
+                detailDocument(5), detailDocument(5), mainDocument("Hello") };
+        ComponentName[] activities = new ComponentName[] { MAIN, DETAIL, MAIN, DETAIL, DETAIL, MAIN };
+        String[] targets = new String[] { PACKAGE + ":id/next", null, PACKAGE + ":id/next", PACKAGE + ":id/item",
+                null, PACKAGE + ":id/remember" };
+        ActionType[] types = new ActionType[] { ActionType.MODEL_CLICK, ActionType.MODEL_BACK, ActionType.MODEL_CLICK,
+                ActionType.MODEL_CLICK, ActionType.MODEL_BACK, ActionType.MODEL_CLICK };
+        for (int step = 0; step < documents.length; step++) {
+            replayStep(replay, step, activities[step], documents[step], types[step], targets[step]);
+        }
+        check(replay.getUnresolvedActions() == 0, "%d unresolved actions", replay.getUnresolvedActions());
+        return model;
+    }
+
+    void replayStep(ModelReplay replay, int step, ComponentName activity, Document document, ActionType type,
+            String target) throws Exception {
+        Model model = replay.getModel();
+        GUITree tree = new GUITreeBuilder(model.getNamingManager(), activity, document).getGUITree();
+        replay.replayGUITree(tree, step);
+        GUITreeNode node = target == null ? null : findNode(tree.getRootNode(), target);
+        replay.replayAction(1000L * step, step, action(type, node));
+    }
+
+    /**
+     * Continue a model by the step after buildModel, a click on an item of
+     * the detail activity.
+     */
+    void continueModel(Model model) throws Exception {
+        ModelReplay replay = new ModelReplay(model);
+        int step = model.getActionHistory().size();
+        replayStep(replay, step, DETAIL, detailDocument(3), ActionType.MODEL_CLICK, PACKAGE + ":id/item");
+        check(replay.getUnresolvedActions() == 0, "%d unresolved actions after step %d", replay.getUnresolvedActions(),
+                step);
+    }
+
+    /**
+     * The steps of buildModel with a GUI tree refreshed into the same state
+     * at the first step and one into another state at the fifth step.
+     */
+    Model replaySteps(ModelReplay replay, ModelCheckpoint checkpoint, int from, int to) throws Exception {
+        Model model = replay.getModel();
+        Document[] documents = new Document[] { mainDocument("Welcome"), detailDocument(3), mainDocument("Welcome"),
+                detailDocument(5), detailDocument(5), mainDocument("Hello") };
+        ComponentName[] activities = new ComponentName[] { MAIN, DETAIL, MAIN, DETAIL, DETAIL, MAIN };
+        String[] targets = new String[] { PACKAGE + ":id/next", null, PACKAGE + ":id/next", PACKAGE + ":id/item",
+                null, PACKAGE + ":id/remember" };
+        ActionType[] types = new ActionType[] { ActionType.MODEL_CLICK, ActionType.MODEL_BACK, ActionType.MODEL_CLICK,
+                ActionType.MODEL_CLICK, ActionType.MODEL_BACK, ActionType.MODEL_CLICK };
+        for (int step = from; step < to; step++) {
+            if (checkpoint != null) {
+                checkpoint.beginStep(model);
+            }
+            Document observed = step == 0 ? mainDocument("Welcome") : step == 4 ? detailDocument(2) : null;
+            if (observed != null) {
+                GUITree tree = new GUITreeBuilder(model.getNamingManager(), activities[step], observed).getGUITree();
+                if (checkpoint != null) {
+                    checkpoint.appendGUITree(step, tree);
+                }
+                replay.replayObservedGUITree(tree, step);
+            }
+            GUITree tree = new GUITreeBuilder(model.getNamingManager(), activities[step], documents[step])
+                    .getGUITree();
+            if (checkpoint != null) {
+                checkpoint.appendGUITree(step, tree);
+            }
+            State state = replay.replayGUITree(tree, step);
+            if (checkpoint != null) {
+                checkpoint.appendResolutions(step, state.getActions());
+            }
+            GUITreeNode node = targets[step] == null ? null : findNode(tree.getRootNode(), targets[step]);
+            Action action = replay.replayAction(1000L * step, step, action(types[step], node));
+            if (checkpoint != null) {
+                checkpoint.appendAction(1000L * step, step, ApeRRFormatter.recordAction(action, step));
+            }
+        }
+        check(replay.getUnresolvedActions() == 0, "%d unresolved actions", replay.getUnresolvedActions());
+        return model;
+    }
+
+    void testCheckpoint() throws Exception {
+        File file = File.createTempFile("sataModel", ".ckpt");
+        try {
+            Model model = new Model(new Graph());
+            ModelCheckpoint checkpoint = new ModelCheckpoint(file);
+            checkpoint.begin(model);
+            replaySteps(new ModelReplay(model), checkpoint, 0, 6);
+            checkpoint.close();
+            check(model.getGraph().size() > 1, "too few states: %d", model.getGraph().size());
+            Model loaded = ModelCheckpoint.load(file);
+            compare(model, loaded);
+            checkSharedNames(loaded);
+            checkQueries(model, loaded);
+            // A model continued as the agent had it between two steps, as a compacted snapshot holds it.
+            Model half = replaySteps(new ModelReplay(new Model(new Graph())), null, 0, 3);
+            Model continued = replaySteps(new ModelReplay(half, false), null, 3, 6);
+            compare(model, continued);
+        } finally {
+            file.delete();
+        }
+    }
+
+    static Model roundTrip(Model model) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ModelSerialization.write(out, model);
+        return (Model) ModelSerialization.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    static String describe(State state) {
+        StringBuilder sb = new StringBuilder(state.getActivity());
+        for (Name widget : state.getWidgets()) {
+            sb.append(' ').append(widget.toXPath());
+        }
+        sb.append(" actions=").append(state.getCountOfActions());
+        sb.append(" trees=").append(state.getGUITrees().size());
+        sb.append(" visited=").append(state.getVisitedCount());
+        return sb.toString();
+    }
+
+    static String describe(StateTransition edge) {
+        ModelAction action = edge.getAction();
+        return describe(edge.getSource()) + " -" + action.getType()
+                + (action.requireTarget() ? " " + action.getTarget().toXPath() : "") + "-> "
+                + describe(edge.getTarget()) + " hit=" + edge.getHittingCount() + " miss="
+                + edge.getMissingCount();
+    }
+
+    static String describe(GUITreeNode node) {
+        Name name = node.getXPathName();
+        return String.format(
+                "%s %s %s %s %s %s enabled=%b checked=%b checkable=%b clickable=%b focusable=%b longClickable=%b password=%b focused=%b scroll=%s index=%d children=%d descendants=%d depth=%d height=%d throttle=%d parent=%s screen=%s path=%s type=%s input=%s fingerprint=%x",
+                name == null ? null : name.toXPath(), node.getClassName(), node.getResourceID(),
+                node.getPackageName(), node.getText(), node.getContentDesc(), node.isEnabled(), node.isChecked(),
+                node.isCheckable(), node.isClickable(), node.isFocusable(), node.isLongClickable(),
+                node.isPassword(), node.isFocused(), node.getScrollType(), node.getIndex(), node.getChildCount(),
+                node.getDescendantCount(), node.getDepth(), node.getHeight(), node.getExtraThrottle(),
+                node.getBoundsInParent(), node.getBoundsInScreen(), node.getIndexPath(), node.getTypeSignature(),
+                node.getInputText(), node.getFingerprint());
+    }
+
+    static List<String> describeStates(Graph graph) {
+        List<String> results = new ArrayList<>();
+        for (State state : graph.getStates()) {
+            results.add(describe(state));
+        }
+        Collections.sort(results);
+        return results;
+    }
+
+    static List<String> describeTransitions(Graph graph) {
+        List<String> results = new ArrayList<>();
+        for (State state : graph.getStates()) {
+            for (StateTransition edge : graph.getOutStateTransitions(state)) {
+                results.add(describe(edge));
+            }
+        }
+        Collections.sort(results);
+        return results;
+    }
+
+    static List<GUITree> sortedGUITrees(Model model) {
+        List<GUITree> trees = new ArrayList<>();
+        Iterator<GUITree> it = model.getGUITrees();
+        while (it.hasNext()) {
+            trees.add(it.next());
+        }
+        Collections.sort(trees, TIMESTAMP_COMPARATOR);
+        return trees;
+    }
+
+    void compareNodes(int step, GUITreeNode expected, GUITreeNode actual) {
+        String e = describe(expected);
+        String a = describe(actual);
+        check(e.equals(a), "node at step %d differs:\n  expected %s\n  actual   %s", step, e, a);
+        check((expected.getParent() == null) == (actual.getParent() == null), "parent of node at step %d", step);
+        if (expected.getChildCount() != actual.getChildCount()) {
+            return;
+        }
+        Iterator<GUITreeNode> ei = expected.getChildren();
+        Iterator<GUITreeNode> ai = actual.getChildren();
+        while (ei.hasNext() && ai.hasNext()) {
+            GUITreeNode child = ai.next();
+            check(child.getParent() == actual, "parent of child at step %d", step);
+            compareNodes(step, ei.next(), child);
+        }
+        check(!ei.hasNext() && !ai.hasNext(), "children of node at step %d", step);
+    }
+
+    void compare(Model expected, Model actual) {
+        Graph eg = expected.getGraph();
+        Graph ag = actual.getGraph();
+        check(eg.size() == ag.size(), "states: expected %d, actual %d", eg.size(), ag.size());
+        check(describeStates(eg).equals(describeStates(ag)), "states differ:\n  expected %s\n  actual   %s",
+                describeStates(eg), describeStates(ag));
+        check(describeTransitions(eg).equals(describeTransitions(ag)),
+                "transitions differ:\n  expected %s\n  actual   %s", describeTransitions(eg),
+                describeTransitions(ag));
+        check(expected.getActionHistory().size() == actual.getActionHistory().size(), "action history: %d vs %d",
+                expected.getActionHistory().size(), actual.getActionHistory().size());
+        List<GUITree> ets = sortedGUITrees(expected);
+        List<GUITree> ats = sortedGUITrees(actual);
+        check(ets.size() == ats.size(), "GUI trees: expected %d, actual %d", ets.size(), ats.size());
+        for (int i = 0; i < Math.min(ets.size(), ats.size()); i++) {
+            GUITree et = ets.get(i);
+            GUITree at = ats.get(i);
+            check(et.getTimestamp() == at.getTimestamp(), "timestamp of GUI tree %d", i);
+            check(et.getActivityName().equals(at.getActivityName()), "activity of GUI tree %d", i);
+            check(et.getFingerprint() == at.getFingerprint(), "fingerprint of GUI tree %d", i);
+            compareNodes(et.getTimestamp(), et.getRootNode(), at.getRootNode());
+        }
+    }
+
+    void addName(IdentityHashMap<Name, Name> seen, List<Name> names, Name name) {
+        if (name != null && seen.put(name, name) == null) {
+            names.add(name);
+        }
+    }
+
+    void collectNames(GUITreeNode node, IdentityHashMap<Name, Name> seen, List<Name> names) {
+        addName(seen, names, node.getXPathName());
+        Iterator<GUITreeNode> it = node.getChildren();
+        while (it.hasNext()) {
+            collectNames(it.next(), seen, names);
+        }
+    }
+
+    /**
+     * Equal names reachable from states, actions and nodes must be a single
+     * instance, as they are when the model is built.
+     */
+    void checkSharedNames(Model model) {
+        IdentityHashMap<Name, Name> seen = new IdentityHashMap<>();
+        List<Name> names = new ArrayList<>();
+        for (State state : model.getGraph().getStates()) {
+            Set<Name> widgets = Collections.newSetFromMap(new IdentityHashMap<Name, Boolean>());
+            for (Name widget : state.getWidgets()) {
+                addName(seen, names, widget);
+                widgets.add(widget);
+            }
+            for (ModelAction action : state.getActions()) {
+                if (action.requireTarget()) {
+                    addName(seen, names, action.getTarget());
+                    check(widgets.contains(action.getTarget()), "target of %s is not a widget of its state", action);
+                }
+            }
+            for (GUITree tree : state.getGUITrees()) {
+                collectNames(tree.getRootNode(), seen, names);
+            }
+        }
+        Map<Name, Name> canonical = new HashMap<>();
+        int shared = 0;
+        for (Name name : names) {
+            Name existing = canonical.get(name);
+            if (existing == null) {
+                canonical.put(name, name);
+            } else {
+                check(existing == name, "name %s is not shared", name.toXPath());
+                shared++;
+            }
+        }
+        check(shared == 0, "%d equal names are distinct instances", shared);
+        check(!names.isEmpty(), "no names");
+    }
+
+    void testRoundTrip() throws Exception {
+        Model model = buildModel();
+        check(model.getGraph().size() > 1, "too few states: %d", model.getGraph().size());
+        checkSharedNames(model);
+        Model read = roundTrip(model);
+        compare(model, read);
+        checkSharedNames(read);
+        compare(read, roundTrip(read));
+    }
+
+    static Model readModel(File file) throws IOException, ClassNotFoundException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            Object object = ModelSerialization.read(in);
+            if (object instanceof Graph) {
+                return new Model((Graph) object);
+            }
+            return (Model) object;
+        }
+    }
+
+    static List<String> describeReachability(Graph graph) {
+        List<String> results = new ArrayList<>();
+        for (State from : graph.getStates()) {
+            for (State to : graph.getStates()) {
+                if (from != to && graph.isReachable(from, to)) {
+                    results.add(describe(from) + " ~> " + describe(to));
+                }
+            }
+        }
+        Collections.sort(results);
+        return results;
+    }
+
+    /**
+     * Queries of the graph and the GUI trees that go through the graph store
+     * and the nodes rather than the fields compared by describe.
+     */
+    void checkQueries(Model expected, Model actual) {
+        Graph eg = expected.getGraph();
+        Graph ag = actual.getGraph();
+        check(eg.getCountOfUnvisitedActions() == ag.getCountOfUnvisitedActions(), "unvisited actions: %d vs %d",
+                eg.getCountOfUnvisitedActions(), ag.getCountOfUnvisitedActions());
+        check(describeReachability(eg).equals(describeReachability(ag)), "reachability differs");
+        for (State state : ag.getStates()) {
+            for (StateTransition edge : ag.getOutStateTransitions(state)) {
+                check(edge.getSource() == state, "source of %s", edge);
+                check(ag.getInStateTransitions(edge.getTarget()).contains(edge), "%s is not an in transition", edge);
+                check(ag.getStateTransition(state, edge.getAction(), edge.getTarget()) == edge, "lookup of %s", edge);
+                check(ag.getOutStateTransitions(edge.getAction()).contains(edge), "%s is not a transition of %s", edge,
+                        edge.getAction());
+            }
+            for (GUITree tree : state.getGUITrees()) {
+                check(tree.getCurrentState() == state, "state of GUI tree %d", tree.getTimestamp());
+                check(ag.getOrCreateState(GUITreeBuilder.getStateKey(tree.getCurrentNaming(), tree)) == state,
+                        "state key of GUI tree %d", tree.getTimestamp());
+                tree.getDocument();
+                GUITreeNode root = tree.getRootNode();
+                check(root.getFingerprint() != 0, "fingerprint of GUI tree %d", tree.getTimestamp());
+                for (String id : Arrays.asList(PACKAGE + ":id/next", PACKAGE + ":id/item")) {
+                    GUITreeNode node = findNode(root, id);
+                    if (node == null) {
+                        continue;
+                    }
+                    check(node.getXPathName() != null, "name of %s in GUI tree %d", id, tree.getTimestamp());
+                    check(GUITreeBuilder.getGUITreeNode(node.getDomNode()) == node,
+                            "element of %s in the rebuilt document of GUI tree %d", id, tree.getTimestamp());
+                }
+            }
+        }
+    }
+
+    void testLegacyModel() throws Exception {
+        Model legacy = readModel(LEGACY_MODEL);
+        Model model = buildModel();
+        compare(model, legacy);
+        checkSharedNames(legacy);
+        checkQueries(model, legacy);
+        compare(legacy, roundTrip(legacy));
+        continueModel(model);
+        continueModel(legacy);
+        compare(model, legacy);
+        checkQueries(model, legacy);
+    }
+
+    void testModelFile(File file) throws Exception {
+        Model model = readModel(file);
+        System.out.format("%s: %d states%n", file, model.getGraph().size());
+        checkSharedNames(model);
+        compare(model, roundTrip(model));
+    }
+
+    public static void main(String[] args) throws Exception {
+        ModelSerializationTest test = new ModelSerializationTest();
+        test.testRoundTrip();
+        test.testLegacyModel();
+        test.testCheckpoint();
+        for (String arg : args) {
+            test.testModelFile(new File(arg));
+        }
+        if (test.failures != 0) {
+            System.err.format("%d failures%n", test.failures);
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}